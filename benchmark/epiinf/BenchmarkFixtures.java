@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.models.BirthDeathModel;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SIRModel;
+import epiinf.models.SISModel;
+
+/**
+ * Models and simulated trees shared by the benchmarks.  Model parameters
+ * are scaled with the requested number of tips so that trees of every
+ * size come from epidemics of comparable shape.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BenchmarkFixtures {
+
+    /**
+     * Seed used for all fixture simulations, so that every run of a
+     * benchmark sees the same tree.
+     */
+    public static final long SEED = 42;
+
+    /**
+     * Create an epidemic model expected to produce roughly the given number
+     * of samples.
+     *
+     * @param modelType one of "SIS", "SIR" or "BD"
+     * @param nTips target number of samples
+     * @return initialized model
+     */
+    public static EpidemicModel createModel(String modelType, int nTips) {
+        double recoveryRate = 1.0;
+        double psiSamplingRate = 0.1;
+
+        // With R0 = 2 around 80% of the susceptible population is
+        // eventually infected, and roughly one in eleven of these
+        // infections is sampled.
+        double S0 = 20.0*nTips;
+        double infectionRate = 2.0*recoveryRate/S0;
+        double growthRate = infectionRate*S0 - recoveryRate - psiSamplingRate;
+
+        EpidemicModel model;
+        switch (modelType) {
+            case "SIR":
+                // Long enough for the epidemic to burn out
+                model = new SIRModel();
+                model.initByName(
+                        "origin", new RealParameter(String.valueOf(2.0*Math.log(S0)/growthRate)),
+                        "S0", new RealParameter(String.valueOf(S0)),
+                        "infectionRate", new RealParameter(String.valueOf(infectionRate)),
+                        "recoveryRate", new RealParameter(String.valueOf(recoveryRate)),
+                        "psiSamplingVariable", new RealParameter(String.valueOf(psiSamplingRate)),
+                        "removalProb", new RealParameter("1.0"));
+                break;
+
+            case "SIS":
+                // Stop shortly after the endemic equilibrium is reached
+                model = new SISModel();
+                model.initByName(
+                        "origin", new RealParameter(String.valueOf(Math.log(S0)/growthRate + 1.0)),
+                        "S0", new RealParameter(String.valueOf(S0)),
+                        "infectionRate", new RealParameter(String.valueOf(infectionRate)),
+                        "recoveryRate", new RealParameter(String.valueOf(recoveryRate)),
+                        "psiSamplingVariable", new RealParameter(String.valueOf(psiSamplingRate)),
+                        "removalProb", new RealParameter("1.0"));
+                break;
+
+            case "BD":
+                // Run until around twenty times as many infections as
+                // tips have occurred
+                model = new BirthDeathModel();
+                model.initByName(
+                        "origin", new RealParameter(String.valueOf(Math.log(S0)/growthRate)),
+                        "infectionRate", new RealParameter(String.valueOf(2.0*recoveryRate)),
+                        "recoveryRate", new RealParameter(String.valueOf(recoveryRate)),
+                        "psiSamplingVariable", new RealParameter(String.valueOf(psiSamplingRate)),
+                        "removalProb", new RealParameter("1.0"));
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown model type " + modelType);
+        }
+
+        return model;
+    }
+
+    /**
+     * Simulate a trajectory with at least the given number of samples.
+     *
+     * @param model epidemic model
+     * @param nTips minimum number of samples
+     * @return simulated trajectory
+     */
+    public static SimulatedTrajectory simulateTrajectory(EpidemicModel model, int nTips) {
+        Randomizer.setSeed(SEED);
+
+        SimulatedTrajectory trajectory = new SimulatedTrajectory();
+        trajectory.initByName(
+                "model", model,
+                "minSampleCount", nTips);
+
+        return trajectory;
+    }
+
+    /**
+     * Simulate a transmission tree with at least the given number of tips.
+     *
+     * @param model epidemic model
+     * @param nTips minimum number of tips
+     * @param finalTreeSampleOffset parameter in which to store the offset
+     *                              of the final sample
+     * @return simulated tree
+     */
+    public static SimulatedTransmissionTree simulateTree(EpidemicModel model, int nTips,
+                                                         RealParameter finalTreeSampleOffset) {
+        SimulatedTransmissionTree tree = new SimulatedTransmissionTree();
+        tree.initByName(
+                "epidemicTrajectory", simulateTrajectory(model, nTips),
+                "finalTreeSampleOffsetParam", finalTreeSampleOffset);
+
+        return tree;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.parameter.RealParameter;
+import epiinf.models.EpidemicModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times updating the observed event list after a single node height
+ * change, as happens following most tree operator moves, and building
+ * the list from scratch.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObservedEventsListBenchmark {
+
+    @Param({"500", "5000"})
+    public int nTips;
+
+    private SimulatedTransmissionTree tree;
+    private EpidemicModel model;
+    private RealParameter finalTreeSampleOffset;
+    private ObservedEventsList observedEventsList;
+
+    private Node node;
+    private double[] nodeHeights;
+    private int move;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = BenchmarkFixtures.createModel("SIR", nTips);
+        finalTreeSampleOffset = new RealParameter("0.0");
+        tree = BenchmarkFixtures.simulateTree(model, nTips, finalTreeSampleOffset);
+
+        observedEventsList = new ObservedEventsList(tree, null, null,
+                model, finalTreeSampleOffset);
+        observedEventsList.updateEventList();
+
+        // Alternate an internal child of the root between its own height
+        // and a height between those of its parent and its children.
+        node = tree.getRoot().getLeft().isLeaf()
+                ? tree.getRoot().getRight()
+                : tree.getRoot().getLeft();
+        double minHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        nodeHeights = new double[] {node.getHeight(),
+                0.5*(minHeight + tree.getRoot().getHeight())};
+    }
+
+    @Benchmark
+    public int updateAfterHeightChange() {
+        move = 1 - move;
+        node.setHeight(nodeHeights[move]);
+
+        observedEventsList.makeDirty();
+        return observedEventsList.getEventCount();
+    }
+
+    @Benchmark
+    public int buildFromScratch() {
+        return new ObservedEventsList(tree, null, null,
+                model, finalTreeSampleOffset).getEventCount();
+    }
+}
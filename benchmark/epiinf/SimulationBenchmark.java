@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.models.EpidemicModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the trajectory and transmission tree simulators.  Each trajectory
+ * benchmark performs a single simulation attempt, which may end in
+ * extinction.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SimulationBenchmark {
+
+    /**
+     * Number of tau leaping steps used by simulateTL().
+     */
+    private static final int TAU_LEAPING_STEPS = 1000;
+
+    @Param({"SIS", "SIR", "BD"})
+    public String modelType;
+
+    @Param({"50", "500", "5000"})
+    public int nTips;
+
+    private SimulatedTrajectory trajectory, trajectoryTL, treeTrajectory;
+    private RealParameter finalTreeSampleOffset;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EpidemicModel model = BenchmarkFixtures.createModel(modelType, nTips);
+
+        treeTrajectory = BenchmarkFixtures.simulateTrajectory(model, nTips);
+        finalTreeSampleOffset = new RealParameter("0.0");
+
+        trajectory = new SimulatedTrajectory(model, model.getOrigin(), 0, 0);
+        trajectoryTL = new SimulatedTrajectory(model, model.getOrigin(), TAU_LEAPING_STEPS, 0);
+
+        Randomizer.setSeed(BenchmarkFixtures.SEED);
+    }
+
+    @Benchmark
+    public boolean simulate() {
+        return trajectory.simulate();
+    }
+
+    @Benchmark
+    public boolean simulateTL() {
+        return trajectoryTL.simulateTL();
+    }
+
+    @Benchmark
+    public SimulatedTransmissionTree simulateTransmissionTree() {
+        SimulatedTransmissionTree tree = new SimulatedTransmissionTree();
+        tree.initByName(
+                "epidemicTrajectory", treeTrajectory,
+                "finalTreeSampleOffsetParam", finalTreeSampleOffset);
+
+        return tree;
+    }
+}
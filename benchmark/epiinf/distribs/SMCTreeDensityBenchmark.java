@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.BenchmarkFixtures;
+import epiinf.SimulatedTransmissionTree;
+import epiinf.models.EpidemicModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a single evaluation of the SMC tree density for trees simulated
+ * under each epidemic model.  The exact birth-death density is disabled
+ * so that the particle filter is timed for every model.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SMCTreeDensityBenchmark {
+
+    @Param({"SIS", "SIR", "BD"})
+    public String modelType;
+
+    @Param({"50", "500", "5000"})
+    public int nTips;
+
+    @Param({"SSA", "TL"})
+    public String algorithm;
+
+    @Param({"100", "1000"})
+    public int nParticles;
+
+    private SMCTreeDensity density;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EpidemicModel model = BenchmarkFixtures.createModel(modelType, nTips);
+        RealParameter finalTreeSampleOffset = new RealParameter("0.0");
+        SimulatedTransmissionTree tree = BenchmarkFixtures.simulateTree(model,
+                nTips, finalTreeSampleOffset);
+
+        density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", finalTreeSampleOffset,
+                "nParticles", nParticles,
+                "useTauLeaping", algorithm.equals("TL"),
+                "useExactBirthDeath", false);
+
+        Randomizer.setSeed(BenchmarkFixtures.SEED);
+    }
+
+    @Benchmark
+    public double calculateLogP() {
+        return density.calculateLogP();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.Randomizer;
+import epiinf.BenchmarkFixtures;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times construction of the alias tables and a full ensemble's worth of
+ * draws, as performed by one multinomial resampling step.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplacementSamplerBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int n;
+
+    private double[] probabilities;
+    private ReplacementSampler sampler;
+    private final RandomStream random = new RandomizerStream();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Randomizer.setSeed(BenchmarkFixtures.SEED);
+
+        // Skewed weights, as typically seen before resampling
+        probabilities = new double[n];
+        double sum = 0.0;
+        for (int i=0; i<n; i++) {
+            probabilities[i] = Randomizer.nextExponential(1.0);
+            probabilities[i] *= probabilities[i];
+            sum += probabilities[i];
+        }
+        for (int i=0; i<n; i++)
+            probabilities[i] /= sum;
+
+        sampler = new ReplacementSampler(probabilities);
+    }
+
+    @Benchmark
+    public ReplacementSampler setProbabilities() {
+        sampler.setProbabilities(probabilities);
+        return sampler;
+    }
+
+    @Benchmark
+    public void drawEnsemble(Blackhole blackhole) {
+        for (int i=0; i<n; i++)
+            blackhole.consume(sampler.next(random));
+    }
+}
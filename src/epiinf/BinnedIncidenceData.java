@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.GammaFunction;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Counts of unsequenced samples reported in time bins, such as weekly
+ * case reports.  Rather than treating each case as an observed event with
+ * an exact time, the count reported for a bin is compared with the
+ * integral of the unsequenced psi sampling propensity over the bin.  Each
+ * unsequenced sample is reported with the given probability, and reported
+ * counts follow a Poisson or negative binomial distribution about their
+ * expected value.  With Poisson noise and a reporting probability of one
+ * this is equivalent to observing the individual samples without their
+ * times.  Unsequenced samples do not alter prevalence, so SMCTreeDensity
+ * requires a removal probability of zero.  When a tree is also present,
+ * only the fraction 1 - sequencingProb of psi samples is attributed to
+ * the bins, so a sequencing probability is then required.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Incidence counts reported in time bins, observed with a " +
+        "reporting probability and Poisson or negative binomial noise.")
+public class BinnedIncidenceData extends CalculationNode {
+
+    public enum NoiseModel { POISSON, NEGATIVE_BINOMIAL }
+
+    public Input<String> valueInput = new Input<>("value",
+            "String containing pairs of whitespace-delimited " +
+                    "bin end time and incidence count pairs.");
+
+    public Input<String> fileNameInput = new Input<>("fromFile",
+            "Name of file containing pairs of whitespace-delimited " +
+                    "bin end time and incidence count pairs.");
+
+    public Input<Boolean> fileHasHeaderInput = new Input<>(
+            "fileHasHeader",
+            "If true, discards the first line of a provided input file.",
+            false);
+
+    public Input<String> dateFormatInput = new Input<>("dateFormat",
+            "Times are represented as dates with given format.");
+
+    public Input<RealParameter> finalSampleOffsetInput = new Input<>("finalSampleOffset",
+            "Difference in time between final bin end and end of observation period.",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> valuesAreAgesInput = new Input<>("valuesAreAges",
+            "If true, numeric values are treated as ages (before end of " +
+                    "sampling period). Default is false.",
+            false);
+
+    public Input<Double> binWidthInput = new Input<>("binWidth",
+            "Width of each bin.  If not provided, each bin begins at the " +
+                    "end of the previous bin and the first bin begins at " +
+                    "the start of the epidemic.");
+
+    public Input<Function> reportingProbInput = new Input<>("reportingProb",
+            "Probability that an unsequenced sample is reported.  " +
+                    "(Defaults to 1.)");
+
+    public Input<NoiseModel> noiseModelInput = new Input<>("noiseModel",
+            "Distribution of reported counts about their expected value: " +
+                    "POISSON (default) or NEGATIVE_BINOMIAL.",
+            NoiseModel.POISSON, NoiseModel.values());
+
+    public Input<Function> dispersionInput = new Input<>("dispersion",
+            "Size parameter k of the negative binomial distribution, " +
+                    "which has variance mu + mu^2/k.");
+
+    // Bins in order of increasing time, i.e. decreasing age
+    private double[] binStartAges, binEndAges;
+    private int[] binCounts;
+
+    public BinnedIncidenceData() { }
+
+    @Override
+    public void initAndValidate() {
+
+        StringBuilder string = null;
+        if (valueInput.get() != null) {
+            string = new StringBuilder(valueInput.get());
+        } else if (fileNameInput.get() != null) {
+            string = new StringBuilder();
+
+            boolean isHeader = fileHasHeaderInput.get();
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(fileNameInput.get()))) {
+                String nextLine;
+                while ((nextLine = reader.readLine()) != null) {
+                    if (nextLine.startsWith("#"))
+                        continue;
+
+                    if (isHeader) {
+                        isHeader = false;
+                        continue;
+                    }
+
+                    string.append(" ").append(nextLine);
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (string == null)
+            throw new IllegalArgumentException("Must supply either fromFile " +
+                    "or value input.");
+
+        String[] valueStrings = string.toString().trim().split("\\s+");
+
+        if (valueStrings.length % 2 != 0)
+            throw new IllegalArgumentException("Error parsing binned incidence data.");
+
+        int nBins = valueStrings.length/2;
+        double[] times = new double[nBins];
+        int[] counts = new int[nBins];
+
+        double maxTime = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<nBins; i++) {
+            if (dateFormatInput.get() != null) {
+                LocalDate date = LocalDate.parse(valueStrings[2 * i], DateTimeFormatter.ofPattern(dateFormatInput.get()));
+                times[i] = date.getYear() + (date.getDayOfYear()-1.0) / (date.isLeapYear() ? 366.0 : 365.0);
+            } else {
+                times[i] = Double.parseDouble(valueStrings[2 * i]);
+            }
+            counts[i] = Integer.parseInt(valueStrings[2*i + 1]);
+
+            if (counts[i] < 0)
+                throw new IllegalArgumentException("Incidence counts must be non-negative.");
+
+            maxTime = Math.max(maxTime, times[i]);
+        }
+
+        // Sort bins in order of decreasing age
+        Integer[] order = new Integer[nBins];
+        double[] ages = new double[nBins];
+        for (int i=0; i<nBins; i++) {
+            order[i] = i;
+            ages[i] = valuesAreAgesInput.get()
+                    ? times[i]
+                    : maxTime - times[i] + finalSampleOffsetInput.get().getValue();
+        }
+        Arrays.sort(order, (i, j) -> Double.compare(ages[j], ages[i]));
+
+        if (binWidthInput.get() != null && !(binWidthInput.get() > 0.0))
+            throw new IllegalArgumentException("binWidth must be positive.");
+
+        binStartAges = new double[nBins];
+        binEndAges = new double[nBins];
+        binCounts = new int[nBins];
+        for (int b=0; b<nBins; b++) {
+            binEndAges[b] = ages[order[b]];
+            binCounts[b] = counts[order[b]];
+
+            if (binWidthInput.get() != null)
+                binStartAges[b] = binEndAges[b] + binWidthInput.get();
+            else
+                binStartAges[b] = b > 0 ? binEndAges[b-1] : Double.POSITIVE_INFINITY;
+        }
+
+        for (int b=1; b<nBins; b++) {
+            if (binStartAges[b] > binEndAges[b-1] + ObservedEventsList.tolerance)
+                throw new IllegalArgumentException("Incidence bins must not overlap.");
+        }
+
+        if (noiseModelInput.get() == NoiseModel.NEGATIVE_BINOMIAL
+                && dispersionInput.get() == null)
+            throw new IllegalArgumentException("Negative binomial noise model " +
+                    "requires dispersion parameter.");
+    }
+
+    /**
+     * @return number of bins
+     */
+    public int getBinCount() {
+        return binCounts.length;
+    }
+
+    /**
+     * @param b bin index, in order of increasing time
+     * @return age of start of bin, or positive infinity if the bin begins
+     * at the start of the epidemic
+     */
+    public double getBinStartAge(int b) {
+        return binStartAges[b];
+    }
+
+    /**
+     * @param b bin index, in order of increasing time
+     * @return age of end of bin
+     */
+    public double getBinEndAge(int b) {
+        return binEndAges[b];
+    }
+
+    /**
+     * @param b bin index, in order of increasing time
+     * @return true if the bin begins where the previous bin ends, or at
+     * the start of the epidemic
+     */
+    public boolean startsAtPreviousBinEnd(int b) {
+        if (binStartAges[b] == Double.POSITIVE_INFINITY)
+            return true;
+
+        return b > 0 && Math.abs(binStartAges[b] - binEndAges[b-1]) < ObservedEventsList.tolerance;
+    }
+
+    /**
+     * @param b bin index, in order of increasing time
+     * @return reported count
+     */
+    public int getReportedCount(int b) {
+        return binCounts[b];
+    }
+
+    /**
+     * Compute the log probability of a reported count.
+     *
+     * @param count reported count
+     * @param expectedSamples expected number of unsequenced samples in bin
+     * @return log probability of count
+     */
+    public double getLogCountProbability(int count, double expectedSamples) {
+        double reportingProb = reportingProbInput.get() != null
+                ? reportingProbInput.get().getArrayValue()
+                : 1.0;
+        double mean = reportingProb*expectedSamples;
+
+        if (count == 0 && mean == 0.0)
+            return 0.0;
+
+        if (!(mean > 0.0))
+            return Double.NEGATIVE_INFINITY;
+
+        if (noiseModelInput.get() == NoiseModel.POISSON)
+            return count*Math.log(mean) - mean - GammaFunction.lnGamma(count + 1);
+
+        double k = dispersionInput.get().getArrayValue();
+        return GammaFunction.lnGamma(count + k) - GammaFunction.lnGamma(k)
+                - GammaFunction.lnGamma(count + 1)
+                + k*Math.log(k/(k + mean)) + count*Math.log(mean/(k + mean));
+    }
+}
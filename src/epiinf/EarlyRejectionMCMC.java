@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.Evaluator;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCTreeDensity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MCMC which passes the acceptance threshold of each Metropolis-Hastings
+ * step to the particle filter of an SMCTreeDensity, allowing the filter
+ * to abandon a proposal as soon as its estimate can no longer lead to
+ * acceptance.  The threshold is computed when the particle filter starts,
+ * from the values of the posterior terms evaluated before it.  Terms
+ * evaluated after the particle filter (or alongside it, when a compound
+ * distribution uses threads) are not evaluated in advance: no threshold
+ * is applied in steps which change them.  The posterior must contain
+ * exactly one SMCTreeDensity.
+ *
+ * The uniform variate of a step is drawn just before the particle filter
+ * starts, whereas MCMC draws it after evaluating the proposed state and
+ * only when the acceptance ratio is below one.  Acceptance probabilities
+ * are unaffected, but a chain does not reproduce the MCMC chain with the
+ * same seed.  Steps which do not evaluate the particle filter draw the
+ * variate as MCMC does.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("MCMC which allows the particle filter of an SMCTreeDensity " +
+        "to reject proposals early.")
+public class EarlyRejectionMCMC extends MCMC {
+
+    private SMCTreeDensity smcDensity;
+    private List<Distribution> precedingDensities, followingDensities;
+
+    // Quantities of the current step, set when the threshold is computed
+    private double logU, otherLogP;
+    private boolean thresholdComputed;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        findDensities();
+    }
+
+    /**
+     * Identify the particle filter density and the remaining leaf
+     * distributions of the posterior, split into those evaluated before
+     * and after the particle filter.
+     */
+    private void findDensities() {
+        List<Distribution> leaves = new ArrayList<>();
+        boolean ordered = collectLeaves(posteriorInput.get(), leaves);
+
+        List<SMCTreeDensity> smcDensities = new ArrayList<>();
+        precedingDensities = new ArrayList<>();
+        followingDensities = new ArrayList<>();
+        for (Distribution dist : leaves) {
+            if (dist instanceof SMCTreeDensity)
+                smcDensities.add((SMCTreeDensity) dist);
+            else if (ordered && smcDensities.isEmpty())
+                precedingDensities.add(dist);
+            else
+                followingDensities.add(dist);
+        }
+
+        if (smcDensities.size() != 1)
+            throw new IllegalArgumentException("EarlyRejectionMCMC requires " +
+                    "a posterior containing exactly one SMCTreeDensity, " +
+                    "found " + smcDensities.size() + ".");
+
+        smcDensity = smcDensities.get(0);
+    }
+
+    /**
+     * Collect the leaf distributions of a distribution in the order in
+     * which they are evaluated.
+     *
+     * @param dist distribution
+     * @param leaves list to which leaves are added
+     * @return false if some leaves are evaluated concurrently
+     */
+    private static boolean collectLeaves(Distribution dist, List<Distribution> leaves) {
+        if (!(dist instanceof CompoundDistribution)) {
+            leaves.add(dist);
+            return true;
+        }
+
+        CompoundDistribution compound = (CompoundDistribution) dist;
+        boolean ordered = !compound.useThreadsInput.get();
+        for (Distribution child : compound.pDistributions.get())
+            ordered = collectLeaves(child, leaves) && ordered;
+
+        return ordered;
+    }
+
+    /**
+     * Draw the uniform variate of the current step and compute the
+     * threshold below which the log density estimate of the particle
+     * filter leads to rejection of the proposed state.  Called once the
+     * particle filter starts, at which point the preceding posterior
+     * terms have been evaluated.
+     *
+     * @param logHastingsRatio log Hastings ratio of the proposal
+     * @return threshold, or negative infinity if none applies
+     */
+    private double computeLogPThreshold(double logHastingsRatio) {
+        logU = Math.log(Randomizer.nextDouble());
+        thresholdComputed = true;
+
+        otherLogP = 0.0;
+        for (Distribution dist : precedingDensities)
+            otherLogP += dist.getCurrentLogP();
+
+        for (Distribution dist : followingDensities) {
+            if (dist.isDirtyCalculation())
+                return Double.NEGATIVE_INFINITY;
+
+            otherLogP += dist.getCurrentLogP();
+        }
+
+        double threshold = logU + oldLogLikelihood - logHastingsRatio - otherLogP;
+        return Double.isNaN(threshold) ? Double.NEGATIVE_INFINITY : threshold;
+    }
+
+    @Override
+    protected Operator propagateState(final long sampleNr) {
+        state.store(sampleNr);
+
+        final Operator operator = operatorSchedule.selectOperator();
+
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
+
+        if (evaluatorDistribution != null) {
+            evaluator = () -> {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+
+                double logP = evaluatorDistribution.calculateLogP();
+
+                state.restore();
+                state.restoreCalculationNodes();
+                state.setEverythingDirty(false);
+
+                return logP;
+            };
+        }
+
+        final double logHastingsRatio = operator.proposal(evaluator);
+
+        if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+
+            if (operator.requiresStateInitialisation()) {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+            }
+
+            thresholdComputed = false;
+            smcDensity.setLogPThreshold(() -> computeLogPThreshold(logHastingsRatio));
+
+            newLogLikelihood = posterior.calculateLogP();
+            if (newLogLikelihood == Double.POSITIVE_INFINITY)
+                newLogLikelihood = Double.NEGATIVE_INFINITY;
+
+            // Threshold applies to a single evaluation only
+            smcDensity.setLogPThreshold(null);
+
+            boolean abandoned = thresholdComputed && smcDensity.wasAbandoned();
+
+            // The acceptance ratio of an abandoned proposal is reported to
+            // the operator's optimize() using the bound on the particle
+            // filter estimate, which lies below the acceptance threshold.
+            if (abandoned)
+                logAlpha = otherLogP + smcDensity.getLogPUpperBound()
+                        - oldLogLikelihood + logHastingsRatio;
+            else
+                logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio;
+
+            boolean accept;
+            if (thresholdComputed)
+                accept = !abandoned && logAlpha >= logU;
+            else
+                accept = logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha);
+
+            if (accept) {
+                // accept
+                oldLogLikelihood = newLogLikelihood;
+                state.acceptCalculationNodes();
+
+                if (sampleNr >= 0)
+                    operator.accept();
+            } else {
+                // reject
+                if (sampleNr >= 0) {
+                    operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY
+                            && !abandoned ? -1 : 0);
+                }
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        } else {
+            // operation failed
+            if (sampleNr >= 0)
+                operator.reject(-2);
+
+            state.restore();
+            if (!operator.requiresStateInitialisation()) {
+                state.setEverythingDirty(false);
+                state.restoreCalculationNodes();
+            }
+        }
+        log(sampleNr);
+        return operator;
+    }
+}
@@ -27,8 +27,12 @@ public class EpidemicState {
     public double time;
     public int modelIntervalIdx, observedEventIdx;
 
+    // Integral of the psi sampling propensity since the last incidence
+    // bin boundary, used to evaluate binned incidence counts.
+    public double samplingPropensityIntegral;
+
     public enum Algorithm {
-        NA, SSA, TL
+        NA, SSA, TL, CLE
     };
     public Algorithm algorithm;
 
@@ -68,6 +72,7 @@ public class EpidemicState {
         stateCopy.time = time;
         stateCopy.modelIntervalIdx = modelIntervalIdx;
         stateCopy.observedEventIdx = observedEventIdx;
+        stateCopy.samplingPropensityIntegral = samplingPropensityIntegral;
 
         stateCopy.algorithm = algorithm;
 
@@ -82,6 +87,7 @@ public class EpidemicState {
         time = otherState.time;
         modelIntervalIdx = otherState.modelIntervalIdx;
         observedEventIdx = otherState.observedEventIdx;
+        samplingPropensityIntegral = otherState.samplingPropensityIntegral;
 
         algorithm = otherState.algorithm;
     }
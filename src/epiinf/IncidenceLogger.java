@@ -43,6 +43,8 @@ public class IncidenceLogger extends BEASTObject implements Loggable{
     public void initAndValidate() {
         treeDensity = treeDensityInput.get();
         model = treeDensity.modelInput.get();
+
+        treeDensity.requireTrajectories();
     }
 
     @Override
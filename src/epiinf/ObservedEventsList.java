@@ -25,11 +25,23 @@ import epiinf.models.EpidemicModel;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
+ * Maintains the time-ordered table of observed events.  Event times,
+ * types, multiplicities and lineage counts are stored in parallel
+ * primitive arrays, and are read using the index of the event.
+ *
+ * Every tree node, incidence age, incidence data entry, incidence bin
+ * boundary and rho sampling time is a source which contributes to one
+ * event in the table.  When the
+ * table is updated, only the sources whose ages or types have changed are
+ * moved, and lineage counts are updated between their old and new
+ * positions.  A change of origin shifts all event times uniformly.  The
+ * table is only rebuilt from scratch when its structure changes or when
+ * many sources move at once.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Maintains a sorted list of observed events.")
@@ -38,8 +50,8 @@ public class ObservedEventsList {
     private TreeInterface tree;
     private Function incidenceAges;
     private IncidenceData incidenceData;
+    private BinnedIncidenceData binnedIncidence;
     private Function finalTreeSampleOffset;
-    private List<ObservedEvent> eventList, rhoEventsToAdd;
 
     private EpidemicModel model;
 
@@ -47,143 +59,534 @@ public class ObservedEventsList {
      * Tolerance for deviation between tree node ages and trajectory events.
      */
     public static final double tolerance = 1e-10;
-    
+
+    private static final ObservedEvent.Type[] TYPES = ObservedEvent.Type.values();
+    private static final byte NO_EVENT = -1;
+    private static final byte COALESCENCE = (byte)ObservedEvent.Type.COALESCENCE.ordinal();
+    private static final byte LEAF = (byte)ObservedEvent.Type.LEAF.ordinal();
+    private static final byte SAMPLED_ANCESTOR = (byte)ObservedEvent.Type.SAMPLED_ANCESTOR.ordinal();
+    private static final byte UNSEQUENCED_SAMPLE = (byte)ObservedEvent.Type.UNSEQUENCED_SAMPLE.ordinal();
+    private static final byte INCIDENCE_BIN_START = (byte)ObservedEvent.Type.INCIDENCE_BIN_START.ordinal();
+    private static final byte INCIDENCE_BIN_END = (byte)ObservedEvent.Type.INCIDENCE_BIN_END.ordinal();
+    private static final byte OBSERVATION_END = (byte)ObservedEvent.Type.OBSERVATION_END.ordinal();
+
     private boolean dirty;
-    
+
+    // Event table.  Ages are relative to the end of the observation
+    // period, and each event records how many sources contribute to it.
+    private int nEvents;
+    private double[] eventTimes = new double[0], eventAges = new double[0];
+    private byte[] eventTypes = new byte[0];
+    private int[] eventMultiplicities = new int[0], eventLineages = new int[0];
+    private int[] eventSourceCounts = new int[0];
+
+    // Sources are indexed by tree node number, followed by incidence ages,
+    // incidence data entries, the start and end of each incidence bin and
+    // rho sampling times.  Each source records the age, type and weight
+    // with which it was placed in the table and the age of the event it
+    // contributes to.
+    private int nTreeNodes, nIncidenceAges, nIncidenceData, nBinBoundaries, nRhoEvents;
+    private double[] sourceAges = new double[0], sourceEventAges = new double[0];
+    private byte[] sourceTypes = new byte[0];
+    private int[] sourceWeights = new int[0];
+
+    private int[] sourceOrder = new int[0], sourceOrderScratch = new int[0];
+    private double[] sourceTimes = new double[0];
+    private int[] changedSources = new int[0];
+
+    // Most recently read source properties
+    private double readAge;
+    private byte readType;
+    private int readWeight;
+
+    private double currentOrigin, currentOffset;
+
     public ObservedEventsList(TreeInterface tree,
                               Function incidenceAges,
                               IncidenceData incidenceData,
                               EpidemicModel model,
                               Function finalTreeSampleOffset) {
+        this(tree, incidenceAges, incidenceData, null, model, finalTreeSampleOffset);
+    }
+
+    public ObservedEventsList(TreeInterface tree,
+                              Function incidenceAges,
+                              IncidenceData incidenceData,
+                              BinnedIncidenceData binnedIncidence,
+                              EpidemicModel model,
+                              Function finalTreeSampleOffset) {
         this.tree = tree;
         this.incidenceAges = incidenceAges;
         this.incidenceData = incidenceData;
+        this.binnedIncidence = binnedIncidence;
         this.model = model;
         this.finalTreeSampleOffset = finalTreeSampleOffset;
 
-        eventList = new ArrayList<>();
-        rhoEventsToAdd = new ArrayList<>();
-
         dirty = true;
     }
 
     /**
-     * Ensure list of tree events is up to date.
+     * Ensure table of observed events is up to date.
+     *
+     * @return true if the table was modified
      */
-    public void updateEventList() {
+    public boolean updateEventList() {
         if (!dirty)
-            return;
+            return false;
 
-        eventList.clear();
+        dirty = false;
 
-        // Assemble event list
+        if (nEvents == 0 || sourceCountsChanged()
+                || getFinalTreeSampleOffset() != currentOffset) {
+            rebuildEventList();
+            return true;
+        }
 
-        if (tree != null) {
-            for (Node node : tree.getNodesAsArray()) {
+        // Origin changes shift all events uniformly
+        double origin = model.getOrigin();
+        boolean originChanged = origin != currentOrigin;
+        if (originChanged) {
+            currentOrigin = origin;
+            for (int i=0; i<nEvents; i++)
+                eventTimes[i] = origin - eventAges[i];
+        }
 
-                if (node.isFake())
-                    continue;
+        // Identify sources which have moved or changed type
+        int nSources = sourceAges.length;
+        int nChanged = 0;
+        for (int s=0; s<nSources; s++) {
+            readSource(s);
+            if (readAge != sourceAges[s] || readType != sourceTypes[s])
+                changedSources[nChanged++] = s;
+        }
 
-                ObservedEvent event = new ObservedEvent();
-                if (node.isLeaf()) {
-                    if (node.isDirectAncestor())
-                        event.type = ObservedEvent.Type.SAMPLED_ANCESTOR;
-                    else
-                        event.type = ObservedEvent.Type.LEAF;
-                } else {
-                    event.type = ObservedEvent.Type.COALESCENCE;
+        // Each move may shift O(n) events, so fall back to rebuilding
+        // the table when many sources have changed.
+        if ((double)nChanged*nChanged > nSources) {
+            rebuildEventList();
+        } else {
+            for (int i=0; i<nChanged; i++) {
+                if (!moveSource(changedSources[i])) {
+                    rebuildEventList();
+                    break;
                 }
+            }
+        }
+
+        return originChanged || nChanged > 0;
+    }
+
+    /**
+     * @return offset of final tree sample, which defaults to zero
+     */
+    private double getFinalTreeSampleOffset() {
+        return finalTreeSampleOffset != null
+                ? finalTreeSampleOffset.getArrayValue()
+                : 0.0;
+    }
+
+    /**
+     * @return true if the number of sources of each kind differs from that
+     * used to construct the current table
+     */
+    private boolean sourceCountsChanged() {
+        return (tree != null ? tree.getNodeCount() : 0) != nTreeNodes
+                || (incidenceAges != null ? incidenceAges.getDimension() : 0) != nIncidenceAges
+                || countRhoEvents() != nRhoEvents;
+    }
+
+    /**
+     * @return number of rho sampling events in model
+     */
+    private int countRhoEvents() {
+        int count = 0;
+        for (ModelEvent modelEvent : model.getModelEventList()) {
+            if (modelEvent.type == ModelEvent.Type.RHO_SAMPLING)
+                count += 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Read current age, type and weight of a source into readAge,
+     * readType and readWeight.
+     *
+     * @param s source index
+     */
+    private void readSource(int s) {
+        if (s < nTreeNodes) {
+            Node node = tree.getNode(s);
+            if (node.isFake())
+                readType = NO_EVENT;
+            else if (node.isLeaf())
+                readType = node.isDirectAncestor() ? SAMPLED_ANCESTOR : LEAF;
+            else
+                readType = COALESCENCE;
+
+            readAge = node.getHeight() + currentOffset;
+            readWeight = 1;
+            return;
+        }
+
+        int i = s - nTreeNodes;
+        if (i < nIncidenceAges) {
+            readType = UNSEQUENCED_SAMPLE;
+            readAge = incidenceAges.getArrayValue(i);
+            readWeight = 1;
+            return;
+        }
 
-                event.time = getTimeFromAge(node.getHeight() + finalTreeSampleOffset.getArrayValue());
+        i -= nIncidenceAges;
+        if (i < nIncidenceData) {
+            readType = UNSEQUENCED_SAMPLE;
+            readAge = incidenceData.getUniqueAges().get(i);
+            readWeight = incidenceData.getAgeCounts().get(i);
+            return;
+        }
 
-                eventList.add(event);
+        i -= nIncidenceData;
+        if (i < nBinBoundaries) {
+            int b = i/2;
+            if (i % 2 == 1) {
+                readType = INCIDENCE_BIN_END;
+                readAge = binnedIncidence.getBinEndAge(b);
+                readWeight = binnedIncidence.getReportedCount(b);
+            } else {
+                // Bins only need a start event when they are preceded by
+                // a period during which incidence is not reported.
+                readAge = binnedIncidence.getBinStartAge(b);
+                readType = binnedIncidence.startsAtPreviousBinEnd(b) || readAge >= currentOrigin
+                        ? NO_EVENT
+                        : INCIDENCE_BIN_START;
+                readWeight = 0;
             }
+            return;
         }
 
-        if (incidenceAges != null) {
-            for (int i = 0; i < incidenceAges.getDimension(); i++) {
-                ObservedEvent event = new ObservedEvent();
-                event.type = ObservedEvent.Type.UNSEQUENCED_SAMPLE;
-                event.time = getTimeFromAge(incidenceAges.getArrayValue(i));
-                eventList.add(event);
+        // Add multiplicity 0 LEAF events for each rho sampling time.
+        // Required to ensure a lack of samples resulting from a rho sampling
+        // event is still considered an observation.
+        i -= nBinBoundaries;
+        for (ModelEvent modelEvent : model.getModelEventList()) {
+            if (modelEvent.type != ModelEvent.Type.RHO_SAMPLING)
+                continue;
+
+            if (i == 0) {
+                readType = LEAF;
+                readAge = currentOrigin - modelEvent.time;
+                readWeight = 0;
+                return;
             }
+            i -= 1;
         }
+    }
 
-        if (incidenceData != null) {
-            List<Double> uniqueAges = incidenceData.getUniqueAges();
-            List<Integer> ageCounts = incidenceData.getAgeCounts();
-            for (int i=0; i<uniqueAges.size(); i++) {
-                ObservedEvent event = new ObservedEvent();
-                event.type = ObservedEvent.Type.UNSEQUENCED_SAMPLE;
-                event.time = getTimeFromAge(uniqueAges.get(i));
-                event.multiplicity = ageCounts.get(i);
-                eventList.add(event);
+    /**
+     * Assemble event table from scratch.
+     */
+    private void rebuildEventList() {
+        currentOrigin = model.getOrigin();
+        currentOffset = getFinalTreeSampleOffset();
+
+        nTreeNodes = tree != null ? tree.getNodeCount() : 0;
+        nIncidenceAges = incidenceAges != null ? incidenceAges.getDimension() : 0;
+        nIncidenceData = incidenceData != null ? incidenceData.getUniqueAges().size() : 0;
+        nBinBoundaries = binnedIncidence != null ? 2*binnedIncidence.getBinCount() : 0;
+        nRhoEvents = countRhoEvents();
+
+        int nSources = nTreeNodes + nIncidenceAges + nIncidenceData + nBinBoundaries + nRhoEvents;
+        if (sourceAges.length != nSources) {
+            sourceAges = new double[nSources];
+            sourceEventAges = new double[nSources];
+            sourceTypes = new byte[nSources];
+            sourceWeights = new int[nSources];
+            sourceOrder = new int[nSources];
+            sourceOrderScratch = new int[nSources];
+            sourceTimes = new double[nSources];
+            changedSources = new int[nSources];
+        }
+        ensureEventCapacity(nSources + 1);
+
+        int nEventSources = 0;
+        for (int s=0; s<nSources; s++) {
+            readSource(s);
+            sourceAges[s] = readAge;
+            sourceTypes[s] = readType;
+            sourceWeights[s] = readWeight;
+            if (readType != NO_EVENT) {
+                sourceTimes[s] = getTimeFromAge(readAge);
+                sourceOrder[nEventSources++] = s;
             }
         }
 
         // Sort events in order of absolute time
-        Collections.sort(eventList);
+        sortSources(0, nEventSources);
 
-        // Add multiplicity 0 LEAF events for each rho sampling time.
-        // Required to ensure a lack of samples resulting from a rho sampling
-        // event is still considered an observation.
-        eventList.addAll(model.getModelEventList().stream()
-                .filter(e -> e.type == ModelEvent.Type.RHO_SAMPLING)
-                .map(e -> {
-                    ObservedEvent event = new ObservedEvent();
-                    event.time = e.time;
-                    event.type = ObservedEvent.Type.LEAF;
-                    event.multiplicity = 0;
-
-                    return event;
-                })
-                .collect(Collectors.toList()));
+        // Collate concurrent events
+        nEvents = 0;
+        for (int i=0; i<nEventSources; i++) {
+            int s = sourceOrder[i];
+
+            int last = nEvents - 1;
+            if (last >= 0 && Math.abs(sourceTimes[s] - eventTimes[last]) < tolerance
+                    && sourceTypes[s] == eventTypes[last]) {
+                eventMultiplicities[last] += sourceWeights[s];
+                eventSourceCounts[last] += 1;
+            } else {
+                setEvent(nEvents++, s);
+            }
+
+            sourceEventAges[s] = eventAges[nEvents-1];
+        }
 
         // Include end-of-observation event
-        // (This is always the last event in the list, even when a rho sampling event occurs at
+        // (This is always the last event in the table, even when a rho sampling event occurs at
         // exactly the same time.)
-        ObservedEvent endOfObservationEvent = new ObservedEvent();
-        endOfObservationEvent.type = ObservedEvent.Type.OBSERVATION_END;
-        endOfObservationEvent.time = model.getOrigin();
-        eventList.add(endOfObservationEvent);
+        eventTimes[nEvents] = currentOrigin;
+        eventAges[nEvents] = 0.0;
+        eventTypes[nEvents] = OBSERVATION_END;
+        eventMultiplicities[nEvents] = 1;
+        eventSourceCounts[nEvents] = 0;
+        nEvents += 1;
+
+        updateLineageCounts(0, nEvents-1);
+    }
 
-        // Collate concurrent events
-        int i=1;
-        while (i<eventList.size()) {
-            if (Math.abs(eventList.get(i).time-eventList.get(i-1).time)<tolerance
-                    && eventList.get(i).type == eventList.get(i-1).type) {
-                eventList.get(i-1).multiplicity += eventList.get(i).multiplicity;
-                eventList.remove(i);
-            } else
-                i += 1;
-        }
-
-        // Mark final event:
-        eventList.get(eventList.size()-1).isFinal = true;
-
-        // Compute lineage counts
-        int k = 1;
-        for (ObservedEvent event : eventList) {
-            event.lineages = k;
-
-            switch (event.type) {
-                case COALESCENCE:
-                    k += event.multiplicity;
-                    break;
-                case LEAF:
-                    k -= event.multiplicity;
-                    break;
-                default:
-                    break;
+    /**
+     * Stable merge sort of the given range of sourceOrder by source time.
+     * Ties retain the order of the source indices.
+     *
+     * @param from first index of range
+     * @param to index one past the end of range
+     */
+    private void sortSources(int from, int to) {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        sortSources(from, mid);
+        sortSources(mid, to);
+
+        if (sourceTimes[sourceOrder[mid-1]] <= sourceTimes[sourceOrder[mid]])
+            return;
+
+        System.arraycopy(sourceOrder, from, sourceOrderScratch, from, to - from);
+        int i = from, j = mid;
+        for (int k=from; k<to; k++) {
+            if (j >= to || (i < mid
+                    && sourceTimes[sourceOrderScratch[i]] <= sourceTimes[sourceOrderScratch[j]]))
+                sourceOrder[k] = sourceOrderScratch[i++];
+            else
+                sourceOrder[k] = sourceOrderScratch[j++];
+        }
+    }
+
+    /**
+     * Grow event table to hold at least the given number of events.
+     */
+    private void ensureEventCapacity(int capacity) {
+        if (eventTimes.length >= capacity)
+            return;
+
+        capacity = Math.max(capacity, 2*eventTimes.length);
+        eventTimes = Arrays.copyOf(eventTimes, capacity);
+        eventAges = Arrays.copyOf(eventAges, capacity);
+        eventTypes = Arrays.copyOf(eventTypes, capacity);
+        eventMultiplicities = Arrays.copyOf(eventMultiplicities, capacity);
+        eventLineages = Arrays.copyOf(eventLineages, capacity);
+        eventSourceCounts = Arrays.copyOf(eventSourceCounts, capacity);
+    }
+
+    /**
+     * Set table entry to an event holding only the given source.
+     *
+     * @param i event index
+     * @param s source index
+     */
+    private void setEvent(int i, int s) {
+        eventTimes[i] = getTimeFromAge(sourceAges[s]);
+        eventAges[i] = sourceAges[s];
+        eventTypes[i] = sourceTypes[s];
+        eventMultiplicities[i] = sourceWeights[s];
+        eventSourceCounts[i] = 1;
+    }
+
+    /**
+     * Shift table entries from the given index onwards by the given
+     * number of places.
+     */
+    private void shiftEvents(int from, int shift) {
+        int length = nEvents - from;
+        System.arraycopy(eventTimes, from, eventTimes, from + shift, length);
+        System.arraycopy(eventAges, from, eventAges, from + shift, length);
+        System.arraycopy(eventTypes, from, eventTypes, from + shift, length);
+        System.arraycopy(eventMultiplicities, from, eventMultiplicities, from + shift, length);
+        System.arraycopy(eventLineages, from, eventLineages, from + shift, length);
+        System.arraycopy(eventSourceCounts, from, eventSourceCounts, from + shift, length);
+        nEvents += shift;
+    }
+
+    /**
+     * Move a source from its current event to the position given by its
+     * current age and type, and update lineage counts in between.
+     *
+     * @param s source index
+     * @return false if the event containing the source could not be found,
+     * in which case the table is left unchanged and must be rebuilt
+     */
+    private boolean moveSource(int s) {
+        int from = -1, to = -1;
+
+        // Remove source from its current event
+        if (sourceTypes[s] != NO_EVENT) {
+            from = indexOfEvent(sourceEventAges[s], sourceTypes[s]);
+            if (from < 0)
+                return false;
+
+            eventMultiplicities[from] -= sourceWeights[s];
+            eventSourceCounts[from] -= 1;
+            if (eventSourceCounts[from] == 0)
+                shiftEvents(from + 1, -1);
+        }
+
+        readSource(s);
+        sourceAges[s] = readAge;
+        sourceTypes[s] = readType;
+        sourceWeights[s] = readWeight;
+
+        // Add source to an existing concurrent event or to a new one.
+        // The end-of-observation event always remains last.
+        if (sourceTypes[s] != NO_EVENT) {
+            double time = getTimeFromAge(sourceAges[s]);
+            int idx = upperBound(time);
+
+            if (idx > 0 && isConcurrent(idx - 1, s, time)) {
+                to = idx - 1;
+            } else if (idx < nEvents - 1 && isConcurrent(idx, s, time)) {
+                to = idx;
+            } else {
+                to = idx;
+                ensureEventCapacity(nEvents + 1);
+                shiftEvents(to, 1);
+                setEvent(to, s);
+                eventMultiplicities[to] = 0;
+                eventSourceCounts[to] = 0;
             }
+
+            eventMultiplicities[to] += sourceWeights[s];
+            eventSourceCounts[to] += 1;
+            sourceEventAges[s] = eventAges[to];
         }
 
-        dirty = false;
+        if (from < 0 && to < 0)
+            return true;
+
+        updateLineageCounts(from < 0 ? to : (to < 0 ? from : Math.min(from, to)),
+                Math.max(from, to));
+
+        return true;
+    }
+
+    /**
+     * @return true if the given source would be collated with the event
+     */
+    private boolean isConcurrent(int i, int s, double time) {
+        return eventTypes[i] == sourceTypes[s] && Math.abs(eventTimes[i] - time) < tolerance;
+    }
+
+    /**
+     * @param time event time
+     * @return index of first event, excluding the end-of-observation event,
+     * later than the given time
+     */
+    private int upperBound(double time) {
+        int lo = 0, hi = nEvents - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (eventTimes[mid] <= time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Locate the event with the given age and type.  As with collation,
+     * ages are compared to within the tolerance, with an exact match
+     * preferred over an approximate one.
+     *
+     * @param age age of event
+     * @param type type of event
+     * @return index of event with given age and type, or -1 if there is
+     * no such event
+     */
+    private int indexOfEvent(double age, byte type) {
+        double time = currentOrigin - age;
+
+        int lo = 0, hi = nEvents - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (eventTimes[mid] < time - tolerance)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        int match = -1;
+        for (int i=lo; i<nEvents && eventTimes[i] <= time + tolerance; i++) {
+            if (eventTypes[i] != type)
+                continue;
+
+            if (eventAges[i] == age)
+                return i;
+
+            if (match < 0 && Math.abs(eventAges[i] - age) < tolerance)
+                match = i;
+        }
+
+        return match;
+    }
+
+    /**
+     * Recompute lineage counts starting from the given event.  Counts are
+     * recomputed at least up to the second given index, and beyond it
+     * until they agree with the existing counts.
+     *
+     * @param from index of first event to update
+     * @param to index of last event which must be updated
+     */
+    private void updateLineageCounts(int from, int to) {
+        int k = from > 0
+                ? eventLineages[from-1] + getLineageChange(from-1)
+                : 1;
+
+        for (int i=from; i<nEvents; i++) {
+            if (i > to && eventLineages[i] == k)
+                break;
+
+            eventLineages[i] = k;
+            k += getLineageChange(i);
+        }
+    }
+
+    /**
+     * @return change in lineage count across the given event
+     */
+    private int getLineageChange(int i) {
+        if (eventTypes[i] == COALESCENCE)
+            return eventMultiplicities[i];
+        else if (eventTypes[i] == LEAF)
+            return -eventMultiplicities[i];
+        else
+            return 0;
     }
 
     /**
      * Obtain absolute epidemic time corresponding to given age prior to end of observation period.
-     * 
+     *
      * @param age age to convert
      * @return time
      */
@@ -197,22 +600,94 @@ public class ObservedEventsList {
     public double getOrigin() {
         return model.getOrigin();
     }
-    
+
+    /**
+     * @return number of observed events, including the end of the
+     * observation period
+     */
+    public int getEventCount() {
+        updateEventList();
+        return nEvents;
+    }
+
+    /**
+     * @param i event index
+     * @return time of event
+     */
+    public double getEventTime(int i) {
+        updateEventList();
+        return eventTimes[i];
+    }
+
+    /**
+     * @param i event index
+     * @return type of event
+     */
+    public ObservedEvent.Type getEventType(int i) {
+        updateEventList();
+        return TYPES[eventTypes[i]];
+    }
+
     /**
-     * Retrieve list of events on tree.
-     * 
-     * @return event list
+     * @param i event index
+     * @return number of simultaneous observations making up event
+     */
+    public int getEventMultiplicity(int i) {
+        updateEventList();
+        return eventMultiplicities[i];
+    }
+
+    /**
+     * @param i event index
+     * @return number of tree lineages present immediately before event
+     */
+    public int getEventLineages(int i) {
+        updateEventList();
+        return eventLineages[i];
+    }
+
+    /**
+     * Copy event into the given event object.
+     *
+     * @param i event index
+     * @param event event object to copy into
+     */
+    public void getEvent(int i, ObservedEvent event) {
+        updateEventList();
+
+        event.time = eventTimes[i];
+        event.type = TYPES[eventTypes[i]];
+        event.multiplicity = eventMultiplicities[i];
+        event.lineages = eventLineages[i];
+        event.isFinal = i == nEvents - 1;
+    }
+
+    /**
+     * Assemble a list of event objects from the event table.  This is
+     * retained for compatibility only: the list is allocated afresh on
+     * each call, so code which reads events repeatedly should use
+     * getEventCount() and getEvent() instead.
+     *
+     * @return newly allocated list of observed events
      */
     public List<ObservedEvent> getEventList() {
         updateEventList();
+
+        List<ObservedEvent> eventList = new ArrayList<>(nEvents);
+        for (int i=0; i<nEvents; i++) {
+            ObservedEvent event = new ObservedEvent();
+            getEvent(i, event);
+            eventList.add(event);
+        }
+
         return eventList;
     }
 
     public int getCurrentLineageCount(EpidemicState state) {
         updateEventList();
 
-        if (state.observedEventIdx<eventList.size())
-            return eventList.get(state.observedEventIdx).lineages;
+        if (state.observedEventIdx<nEvents)
+            return eventLineages[state.observedEventIdx];
         else
             return 0;
     }
@@ -225,17 +700,17 @@ public class ObservedEventsList {
     }
 
     public void dump(PrintStream ps) {
-        dump(ps, null);
+        dump(ps, -1);
     }
 
 
-    public void dump(PrintStream ps, ObservedEvent finalEvent) {
+    public void dump(PrintStream ps, int finalEventIdx) {
         updateEventList();
 
         ps.println("time multiplicity type isFinal");
-        for (ObservedEvent event : eventList) {
-            ps.println(event.time + " " + event.multiplicity + " " + event.type
-                    + " " + (event == finalEvent));
+        for (int i=0; i<nEvents; i++) {
+            ps.println(eventTimes[i] + " " + eventMultiplicities[i] + " " + TYPES[eventTypes[i]]
+                    + " " + (i == finalEventIdx));
         }
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.inference.CalculationNode;
+import epiinf.distribs.SMCTreeDensity;
+
+import java.io.PrintStream;
+
+/**
+ * Logs the number of particles currently used by an SMC tree density.
+ * Mainly useful when the particle count is being adapted.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ParticleCountLogger extends CalculationNode implements Loggable {
+
+    public Input<SMCTreeDensity> treeDensityInput = new Input<>("treeDensity",
+            "SMC Tree density whose particle count to log.",
+            Input.Validate.REQUIRED);
+
+    SMCTreeDensity treeDensity;
+
+    public ParticleCountLogger() { }
+
+    @Override
+    public void initAndValidate() {
+        treeDensity = treeDensityInput.get();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        if (getID() == null)
+            out.print("nParticles\t");
+        else
+            out.print(getID() + "\t");
+    }
+
+    @Override
+    public void log(long nSample, PrintStream out) {
+        out.print(treeDensity.getParticleCount() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.inference.CalculationNode;
+import epiinf.distribs.SMCDiagnostics;
+import epiinf.distribs.SMCTreeDensity;
+
+import java.io.PrintStream;
+
+/**
+ * Logs counters describing the most recent evaluation of an SMC tree
+ * density: the numbers of SSA steps, tau leaps and Langevin leaps taken,
+ * the number of particles whose weight dropped to zero, the number of
+ * resampling steps, the minimum and mean effective sample size over
+ * observed events, the number of distinct ancestors of the final ensemble
+ * and the wall time in milliseconds.
+ *
+ * Since the most recent evaluation may belong to a rejected proposal,
+ * these columns describe the cost and quality of the likelihood estimates
+ * being computed rather than the current state of the chain.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SMCDiagnosticsLogger extends CalculationNode implements Loggable {
+
+    public Input<SMCTreeDensity> treeDensityInput = new Input<>("treeDensity",
+            "SMC Tree density whose diagnostics to log.",
+            Input.Validate.REQUIRED);
+
+    private static final String[] COLUMNS = {
+            "ssaSteps", "tauLeaps", "langevinLeaps", "deadParticles",
+            "nanWeights", "resamples", "minESS", "meanESS", "uniqueAncestors", "wallTime"};
+
+    SMCTreeDensity treeDensity;
+
+    public SMCDiagnosticsLogger() { }
+
+    @Override
+    public void initAndValidate() {
+        treeDensity = treeDensityInput.get();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = getID() == null ? "smc" : getID();
+
+        for (String column : COLUMNS)
+            out.print(prefix + "." + column + "\t");
+    }
+
+    @Override
+    public void log(long nSample, PrintStream out) {
+        SMCDiagnostics diagnostics = treeDensity.getDiagnostics();
+
+        out.print(diagnostics.getSSASteps() + "\t");
+        out.print(diagnostics.getTauLeaps() + "\t");
+        out.print(diagnostics.getLangevinLeaps() + "\t");
+        out.print(diagnostics.getDeadParticles() + "\t");
+        out.print(diagnostics.getNaNWeights() + "\t");
+        out.print(diagnostics.getResampleCount() + "\t");
+        out.print(diagnostics.getMinESS() + "\t");
+        out.print(diagnostics.getMeanESS() + "\t");
+        out.print(diagnostics.getUniqueAncestors() + "\t");
+        out.print(diagnostics.getWallTime() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
@@ -24,7 +24,12 @@ import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import epiinf.models.EpidemicModel;
+import epiinf.models.ModelSnapshot;
 import epiinf.models.SISModel;
+import epiinf.util.DiscreteVariates;
+import epiinf.util.LeapSampler;
+import epiinf.util.RandomStream;
+import epiinf.util.SplittableRandomStream;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
@@ -62,24 +67,43 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
             "conditionedSamplingTimes",
             "Times at which to force psi-sampling events");
 
+    public Input<LeapSampler.Type> leapingAlgorithmInput = new Input<>(
+            "leapingAlgorithm",
+            "Algorithm used to draw reaction counts during tau leaps: POISSON " +
+                    "(default), BINOMIAL or R_LEAPING.  The latter two never " +
+                    "produce negative population sizes.",
+            LeapSampler.Type.POISSON, LeapSampler.Type.values());
+
     EpidemicModel model;
     int nSteps, minSampleCount;
     double[] conditionedSamplingTimes;
+    LeapSampler leapSampler = new LeapSampler(LeapSampler.Type.POISSON);
+
+    // Each simulation draws from its own stream, so that replicate
+    // simulations may safely be run in parallel.
+    RandomStream random;
 
     public SimulatedTrajectory() { }
 
     public SimulatedTrajectory(EpidemicModel model, double origin, int nSteps, int minSampleCount,
-                               double[] conditionedSamplingTimes) {
+                               double[] conditionedSamplingTimes, RandomStream random) {
         this.model = model;
         this.origin = origin;
         this.nSteps = nSteps;
         this.minSampleCount = minSampleCount;
 
         this.conditionedSamplingTimes = conditionedSamplingTimes;
+        this.random = random;
 
         simulationLoop();
     }
 
+    public SimulatedTrajectory(EpidemicModel model, double origin, int nSteps, int minSampleCount,
+                               double[] conditionedSamplingTimes) {
+        this(model, origin, nSteps, minSampleCount, conditionedSamplingTimes,
+                new SplittableRandomStream(Randomizer.nextLong()));
+    }
+
     public SimulatedTrajectory(EpidemicModel model, double origin, int nSteps, int minSampleCount) {
         this(model, origin, nSteps, minSampleCount, null);
     }
@@ -96,6 +120,9 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         if (conditionedSamplingTimesInput.get() != null)
             conditionedSamplingTimes = conditionedSamplingTimesInput.get().getDoubleValues();
 
+        random = new SplittableRandomStream(Randomizer.nextLong());
+        leapSampler = new LeapSampler(leapingAlgorithmInput.get());
+
         simulationLoop();
 
         if (fileNameInput.get() != null) {
@@ -139,6 +166,8 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         eventList.clear();
         stateList.clear();
 
+        ModelSnapshot snapshot = model.getSnapshot();
+
         EpidemicState thisState = model.getInitialState();
         stateList.add(model.getInitialState());
 
@@ -154,7 +183,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             double dt;
             if (totalPropensity>0.0)
-                dt = Randomizer.nextExponential(totalPropensity);
+                dt = random.nextExponential(totalPropensity);
             else
                 dt = Double.POSITIVE_INFINITY;
 
@@ -162,7 +191,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             EpidemicEvent nextEvent = new EpidemicEvent();
 
-            double nextModelEventTime = model.getNextModelEventTime(thisState);
+            double nextModelEventTime = snapshot.getNextEventTime(thisState.modelIntervalIdx);
             double nextConditionedSamplingTime = remainingConditionedSamplingTimes.isEmpty()
                     ? Double.POSITIVE_INFINITY
                     : remainingConditionedSamplingTimes.get(0);
@@ -173,7 +202,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     if (thisState.I <= 0.0)
                         return false;
 
-                    if (model.currentRemovalProb == 1.0 || Randomizer.nextDouble() < model.currentRemovalProb)
+                    if (model.currentRemovalProb == 1.0 || random.nextDouble() < model.currentRemovalProb)
                         nextEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
                     else
                         nextEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
@@ -186,21 +215,16 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     remainingConditionedSamplingTimes.remove(0);
 
                 } else {
-                    ModelEvent event = model.getNextModelEvent(thisState);
+                    if (snapshot.isRhoSamplingEvent(thisState.modelIntervalIdx)) {
+                        double rho = snapshot.getRho(thisState.modelIntervalIdx);
 
-                    if (event.type == ModelEvent.Type.RHO_SAMPLING) {
                         nextEvent.type = EpidemicEvent.RHO_SAMPLE;
 
-                        // Got to be a better way of sampling from a binomial distribution
-                        nextEvent.multiplicity = 0;
-                        for (int i = 0; i < thisState.I; i++) {
-                            if (Randomizer.nextDouble() < event.rho)
-                                nextEvent.multiplicity += 1;
-                        }
-
+                        nextEvent.multiplicity = DiscreteVariates.nextBinomial(
+                                (int)Math.ceil(thisState.I), rho, random);
 
-                        nextEvent.time = event.time;
-                        thisState.time = event.time;
+                        nextEvent.time = nextModelEventTime;
+                        thisState.time = nextModelEventTime;
 
                         model.incrementState(thisState, nextEvent);
                         eventList.add(nextEvent);
@@ -219,7 +243,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             nextEvent.time = thisState.time;
 
-            double u = totalPropensity*Randomizer.nextDouble();
+            double u = totalPropensity*random.nextDouble();
 
             for (int type = 0; type<EpidemicEvent.nTypes; type++) {
                 u -= model.propensities[type];
@@ -258,6 +282,8 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         eventList.clear();
         stateList.clear();
 
+        ModelSnapshot snapshot = model.getSnapshot();
+
         EpidemicState thisState = model.getInitialState();
         stateList.add(model.getInitialState());
 
@@ -266,7 +292,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         for (int tidx = 1; tidx<nSteps; tidx++) {
             model.calculatePropensities(thisState);
 
-            double nextModelEventTime = model.getNextModelEventTime(thisState);
+            double nextModelEventTime = snapshot.getNextEventTime(thisState.modelIntervalIdx);
             double nextConditionedSamplingTime = remainingConditionedSamplingTimes.isEmpty()
                     ? Double.POSITIVE_INFINITY
                     : remainingConditionedSamplingTimes.get(0);
@@ -274,36 +300,40 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             double trueDt = Math.min(dt, nextModelEventOrSamplingTime - thisState.time);
 
-            EpidemicEvent infectEvent = new EpidemicEvent();
-            infectEvent.type = EpidemicEvent.INFECTION;
-            infectEvent.multiplicity = Math.round(
-                    Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.INFECTION]));
-            model.incrementState(thisState, infectEvent);
-            infectEvent.time = thisState.time + trueDt;
-            eventList.add(infectEvent);
-
-            EpidemicEvent recovEvent = new EpidemicEvent();
-            recovEvent.type = EpidemicEvent.RECOVERY;
-            recovEvent.multiplicity = Math.round(
-                    Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.RECOVERY]));
-            model.incrementState(thisState, recovEvent);
-            recovEvent.time = thisState.time + trueDt;
-            eventList.add(recovEvent);
-
-            EpidemicEvent psiSampRemoveEvent = new EpidemicEvent();
-            psiSampRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
-            psiSampRemoveEvent.multiplicity = Math.round(
-                    Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]));
-            model.incrementState(thisState, psiSampRemoveEvent);
-            psiSampRemoveEvent.time = thisState.time + trueDt;
-            eventList.add(psiSampRemoveEvent);
-
-            EpidemicEvent psiSampNoRemoveEvent = new EpidemicEvent();
-            psiSampNoRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
-            psiSampNoRemoveEvent.multiplicity = Math.round(
-                    Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]));
-            psiSampNoRemoveEvent.time = thisState.time + trueDt;
-            eventList.add(psiSampNoRemoveEvent);
+            if (leapSampler.getType() == LeapSampler.Type.POISSON) {
+                EpidemicEvent infectEvent = new EpidemicEvent();
+                infectEvent.type = EpidemicEvent.INFECTION;
+                infectEvent.multiplicity = (int)Math.round(
+                        random.nextPoisson(trueDt*model.propensities[EpidemicEvent.INFECTION]));
+                model.incrementState(thisState, infectEvent);
+                infectEvent.time = thisState.time + trueDt;
+                eventList.add(infectEvent);
+
+                EpidemicEvent recovEvent = new EpidemicEvent();
+                recovEvent.type = EpidemicEvent.RECOVERY;
+                recovEvent.multiplicity = (int)Math.round(
+                        random.nextPoisson(trueDt*model.propensities[EpidemicEvent.RECOVERY]));
+                model.incrementState(thisState, recovEvent);
+                recovEvent.time = thisState.time + trueDt;
+                eventList.add(recovEvent);
+
+                EpidemicEvent psiSampRemoveEvent = new EpidemicEvent();
+                psiSampRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
+                psiSampRemoveEvent.multiplicity = (int)Math.round(
+                        random.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]));
+                model.incrementState(thisState, psiSampRemoveEvent);
+                psiSampRemoveEvent.time = thisState.time + trueDt;
+                eventList.add(psiSampRemoveEvent);
+
+                EpidemicEvent psiSampNoRemoveEvent = new EpidemicEvent();
+                psiSampNoRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
+                psiSampNoRemoveEvent.multiplicity = (int)Math.round(
+                        random.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]));
+                psiSampNoRemoveEvent.time = thisState.time + trueDt;
+                eventList.add(psiSampNoRemoveEvent);
+            } else {
+                leapBounded(thisState, trueDt);
+            }
 
 
             if (trueDt < dt) {
@@ -314,7 +344,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
                     EpidemicEvent samplingEvent = new EpidemicEvent();
 
-                    if (model.currentRemovalProb == 1.0 || Randomizer.nextDouble() < model.currentRemovalProb)
+                    if (model.currentRemovalProb == 1.0 || random.nextDouble() < model.currentRemovalProb)
                         samplingEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
                     else
                         samplingEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
@@ -327,20 +357,16 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     remainingConditionedSamplingTimes.remove(0);
 
                 } else {
-                    ModelEvent event = model.getNextModelEvent(thisState);
+                    if (snapshot.isRhoSamplingEvent(thisState.modelIntervalIdx)) {
+                        double rho = snapshot.getRho(thisState.modelIntervalIdx);
 
-                    if (event.type == ModelEvent.Type.RHO_SAMPLING) {
 
                         EpidemicEvent rhoSampEvent = new EpidemicEvent();
                         rhoSampEvent.type = EpidemicEvent.RHO_SAMPLE;
-                        rhoSampEvent.time = event.time;
+                        rhoSampEvent.time = nextModelEventTime;
 
-                        // Got to be a better way of sampling from a binomial distribution
-                        rhoSampEvent.multiplicity = 0;
-                        for (int i = 0; i < thisState.I; i++) {
-                            if (Randomizer.nextDouble() < event.rho)
-                                rhoSampEvent.multiplicity += 1;
-                        }
+                        rhoSampEvent.multiplicity = DiscreteVariates.nextBinomial(
+                                (int)Math.ceil(thisState.I), rho, random);
 
                         model.incrementState(thisState, rhoSampEvent);
                     }
@@ -350,6 +376,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
             }
 
             // Rough error correction - doesn't conserve number.
+            // Only needed for Poisson leaps.
             if (!thisState.isValid()) {
                 thisState.I = Math.max(0, thisState.I);
                 thisState.S = Math.max(0, thisState.S);
@@ -364,6 +391,58 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         return true;
     }
 
+    /**
+     * Take a leap of the given length using a leaping algorithm which
+     * cannot produce negative population sizes, recording the resulting
+     * events.  R-leaps which end early are followed by further leaps
+     * until the full length is covered.
+     *
+     * @param thisState state to update
+     * @param dt length of leap
+     */
+    private void leapBounded(EpidemicState thisState, double dt) {
+        int nInfections = 0, nRecoveries = 0, nPsiSampRemove = 0, nPsiSampNoRemove = 0;
+
+        double remaining = dt;
+        while (remaining > 0.0) {
+            double recovProp = model.propensities[EpidemicEvent.RECOVERY];
+            double removalProp = recovProp + model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
+
+            leapSampler.leap(remaining, model.propensities[EpidemicEvent.INFECTION], removalProp,
+                    model.getMaxInfections(thisState), thisState.I, random);
+            double duration = leapSampler.getDuration();
+
+            // Split removals between recovery and sampling
+            int nRemovals = leapSampler.getRemovals();
+            int nRecov = DiscreteVariates.nextBinomial(nRemovals, recovProp/removalProp, random);
+
+            model.incrementState(thisState, EpidemicEvent.INFECTION, leapSampler.getInfections());
+            model.incrementState(thisState, EpidemicEvent.RECOVERY, nRecov);
+            model.incrementState(thisState, EpidemicEvent.PSI_SAMPLE_REMOVE, nRemovals - nRecov);
+
+            nInfections += leapSampler.getInfections();
+            nRecoveries += nRecov;
+            nPsiSampRemove += nRemovals - nRecov;
+            nPsiSampNoRemove += (int)Math.round(random.nextPoisson(
+                    duration*model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]));
+
+            remaining -= duration;
+            if (remaining > 0.0)
+                model.calculatePropensities(thisState);
+        }
+
+        int[] types = {EpidemicEvent.INFECTION, EpidemicEvent.RECOVERY,
+                EpidemicEvent.PSI_SAMPLE_REMOVE, EpidemicEvent.PSI_SAMPLE_NOREMOVE};
+        int[] counts = {nInfections, nRecoveries, nPsiSampRemove, nPsiSampNoRemove};
+        for (int i=0; i<types.length; i++) {
+            EpidemicEvent event = new EpidemicEvent();
+            event.type = types[i];
+            event.multiplicity = counts[i];
+            event.time = thisState.time + dt;
+            eventList.add(event);
+        }
+    }
+
     /**
      * Main method for debugging.
      *
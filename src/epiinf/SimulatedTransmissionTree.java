@@ -26,6 +26,9 @@ import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
 
+import epiinf.util.RandomStream;
+import epiinf.util.SplittableRandomStream;
+
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -92,10 +95,15 @@ public class SimulatedTransmissionTree extends Tree {
             "incidenceFileName",
             "Name of file to write incidence times to.");
 
+    // Source of random numbers used to construct this tree
+    RandomStream random;
+
     public SimulatedTransmissionTree() { }
     
     @Override
     public void initAndValidate() {
+        random = new SplittableRandomStream(Randomizer.nextLong());
+
         EpidemicTrajectory traj = trajInput.get();
         boolean truncateTrajectory = truncateTrajectoryInput.get();
         double leafFrac = leafSampleFracInput.get();
@@ -119,7 +127,7 @@ public class SimulatedTransmissionTree extends Tree {
                         || event.type == EpidemicEvent.OTHER_SAMPLE
                         || leafFrac == 1.0
                         || (useDetLeafSel && cumulativeLeafFrac < leafFrac)
-                        || Randomizer.nextDouble()<leafFrac) {
+                        || random.nextDouble()<leafFrac) {
                     sequencedSamplingEvents.add(event);
                     nLeafSamples += event.multiplicity;
                 } else {
@@ -219,12 +227,12 @@ public class SimulatedTransmissionTree extends Tree {
                     case EpidemicEvent.INFECTION:
                         double pCoalesce = k * (k - 1) / (N * (N - 1));
 
-                        if (Randomizer.nextDouble() < pCoalesce) {
-                            int childIdx = Randomizer.nextInt(k);
+                        if (random.nextDouble() < pCoalesce) {
+                            int childIdx = random.nextInt(k);
                             Node child1 = activeNodes.get(childIdx);
                             activeNodes.remove(childIdx);
 
-                            childIdx = Randomizer.nextInt(k - 1);
+                            childIdx = random.nextInt(k - 1);
                             Node child2 = activeNodes.get(childIdx);
                             activeNodes.remove(childIdx);
 
@@ -260,7 +268,7 @@ public class SimulatedTransmissionTree extends Tree {
                         leaf.setID("t" + nextLeafNr);
                         nextLeafNr += 1;
 
-                        double u = Randomizer.nextDouble()*N;
+                        double u = random.nextDouble()*N;
                         if (u < k) {
                             Node sibling = activeNodes.get((int)u);
                             activeNodes.remove(sibling);
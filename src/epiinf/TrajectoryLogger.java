@@ -48,6 +48,8 @@ public class TrajectoryLogger extends CalculationNode implements Loggable {
     public void initAndValidate() {
         treeDensity = treeDensityInput.get();
         model = treeDensity.modelInput.get();
+
+        treeDensity.requireTrajectories();
     }
 
     @Override
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicEvent;
+import epiinf.ObservedEvent;
+import epiinf.ObservedEventsList;
+import epiinf.models.EpidemicModel;
+import epiinf.models.ModelSnapshot;
+
+/**
+ * Exact tree density under the linear birth-death model with
+ * piecewise-constant rates, psi sampling with removal probability and
+ * rho sampling, i.e. the birth-death skyline density of Stadler et al.
+ * (PNAS 110:228-233, 2013) extended to sampled ancestors as in
+ * Gavryushkina et al. (PLoS Comput. Biol. 10:e1003919, 2014).  The
+ * density is normalized to agree with the tree density estimated by
+ * SMCTreeDensity.
+ *
+ * Within each model interval, the probability p0 that an individual
+ * has no sampled descendants and the probability g of a lineage
+ * producing no further observed events obey
+ *
+ *   dp0/da = mu - (lambda+mu+psi) p0 + lambda p0^2,
+ *   dg/da = (2 lambda p0 - lambda - mu - psi) g,
+ *
+ * where a is the age before the end of the observation period.  Both
+ * are evaluated in closed form, so the density costs O(events +
+ * intervals) to evaluate.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class BirthDeathSkylineDensity {
+
+    private int nIntervals;
+    private double[] intervalYoungAge = new double[0], intervalP0 = new double[0];
+
+    /**
+     * Compute log tree density.
+     *
+     * @param model birth-death model, which must be up to date
+     * @param snapshot compiled model parameters
+     * @param observedEvents table of observed events
+     * @return log tree density
+     */
+    double calculateLogP(EpidemicModel model, ModelSnapshot snapshot,
+                         ObservedEventsList observedEvents) {
+
+        double origin = model.getOrigin();
+        computeIntervalP0(model, snapshot, origin);
+
+        double logP = 0.0;
+        double t = 0.0;
+        int intervalIdx = snapshot.getInitialIntervalIdx();
+
+        int nEvents = observedEvents.getEventCount();
+        for (int e=0; e<nEvents; e++) {
+            double eventTime = observedEvents.getEventTime(e);
+            ObservedEvent.Type eventType = observedEvents.getEventType(e);
+            int k = observedEvents.getEventLineages(e);
+
+            // Lineages must survive until the event without producing
+            // any other observed event.
+            while (!model.timesLEQ(eventTime, getIntervalEnd(snapshot, intervalIdx, origin))) {
+                double tEnd = getIntervalEnd(snapshot, intervalIdx, origin);
+                logP += k*getLogG(snapshot, intervalIdx, origin - t, origin - tEnd);
+
+                // Lineages crossing a rho sampling time without being sampled
+                if (snapshot.isRhoSamplingEvent(intervalIdx))
+                    logP += k*Math.log(1.0 - snapshot.getRho(intervalIdx));
+
+                t = tEnd;
+                intervalIdx += 1;
+            }
+
+            logP += k*getLogG(snapshot, intervalIdx, origin - t, origin - eventTime);
+            t = eventTime;
+
+            double lambda = snapshot.getRate(intervalIdx, EpidemicEvent.INFECTION);
+            double psiRemove = snapshot.getRate(intervalIdx, EpidemicEvent.PSI_SAMPLE_REMOVE);
+            double psiNoRemove = snapshot.getRate(intervalIdx, EpidemicEvent.PSI_SAMPLE_NOREMOVE);
+
+            boolean isRhoSamplingTime = model.timesEqual(eventTime, snapshot.getNextEventTime(intervalIdx))
+                    && snapshot.isRhoSamplingEvent(intervalIdx);
+
+            int m = observedEvents.getEventMultiplicity(e);
+            switch (eventType) {
+                case COALESCENCE:
+                    logP += m*Math.log(2.0*lambda);
+                    break;
+
+                case SAMPLED_ANCESTOR:
+                    // Rho sampling always removes sampled individuals
+                    if (isRhoSamplingTime)
+                        return Double.NEGATIVE_INFINITY;
+
+                    logP += m*Math.log(psiNoRemove);
+                    break;
+
+                case LEAF:
+                    if (isRhoSamplingTime) {
+
+                        // Sampled lineages end here, remaining lineages are
+                        // accounted for when the rho sampling time is crossed.
+                        logP += m*Math.log(snapshot.getRho(intervalIdx));
+                    } else {
+                        double p0 = getP0(snapshot, intervalIdx, origin - eventTime);
+                        logP += m*Math.log(psiRemove + psiNoRemove*p0);
+                    }
+                    break;
+
+                case OBSERVATION_END:
+                    // Lineages still present at the end of the observation
+                    // period cannot be accounted for.
+                    if (k > 0)
+                        return Double.NEGATIVE_INFINITY;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Observed events of type "
+                            + eventType + " are not supported by the exact "
+                            + "birth-death density.");
+            }
+
+            if (logP == Double.NEGATIVE_INFINITY || Double.isNaN(logP))
+                return Double.NEGATIVE_INFINITY;
+        }
+
+        return logP;
+    }
+
+    /**
+     * @return time of the end of the given model interval, truncated
+     * to the end of the observation period
+     */
+    private double getIntervalEnd(ModelSnapshot snapshot, int intervalIdx, double origin) {
+        return Math.min(snapshot.getNextEventTime(intervalIdx), origin);
+    }
+
+    /**
+     * Compute p0 at the young end of each model interval which overlaps
+     * the observation period, working backwards from its end.
+     */
+    private void computeIntervalP0(EpidemicModel model, ModelSnapshot snapshot, double origin) {
+        nIntervals = snapshot.getEventCount() + 1;
+        if (intervalP0.length < nIntervals) {
+            intervalP0 = new double[nIntervals];
+            intervalYoungAge = new double[nIntervals];
+        }
+
+        // Find interval containing the end of the observation period
+        int lastIdx = snapshot.getInitialIntervalIdx();
+        while (!model.timesLEQ(origin, snapshot.getNextEventTime(lastIdx)))
+            lastIdx += 1;
+
+        double p0 = 1.0;
+        if (model.timesEqual(origin, snapshot.getNextEventTime(lastIdx))
+                && snapshot.isRhoSamplingEvent(lastIdx))
+            p0 = 1.0 - snapshot.getRho(lastIdx);
+
+        for (int i=lastIdx; i>=snapshot.getInitialIntervalIdx(); i--) {
+            if (i < lastIdx && snapshot.isRhoSamplingEvent(i))
+                p0 *= 1.0 - snapshot.getRho(i);
+
+            intervalYoungAge[i] = origin - getIntervalEnd(snapshot, i, origin);
+            intervalP0[i] = p0;
+
+            double intervalOldAge = i > snapshot.getInitialIntervalIdx()
+                    ? origin - snapshot.getNextEventTime(i-1)
+                    : origin;
+            p0 = getP0(snapshot, i, intervalOldAge);
+        }
+    }
+
+    /**
+     * @return probability that an individual alive at the given age within
+     * the given interval has no sampled descendants
+     */
+    private double getP0(ModelSnapshot snapshot, int intervalIdx, double age) {
+        double lambda = snapshot.getRate(intervalIdx, EpidemicEvent.INFECTION);
+        double mu = snapshot.getRate(intervalIdx, EpidemicEvent.RECOVERY);
+        double psi = snapshot.getPsiSamplingRate(intervalIdx);
+        double A = Math.sqrt((lambda-mu-psi)*(lambda-mu-psi) + 4*lambda*psi);
+        double z = lambda+mu+psi+A > 0.0 ? 2*mu/(lambda+mu+psi+A) : 0.0;
+
+        double s = age - intervalYoungAge[intervalIdx];
+        double p0Young = intervalP0[intervalIdx];
+        double h = A > 0.0 ? -Math.expm1(-A*s)/A : s;
+
+        return z - (z - p0Young)*Math.exp(-A*s)/(1.0 + lambda*(z - p0Young)*h);
+    }
+
+    /**
+     * @return log of the probability that a lineage present at the younger
+     * age produces no observed events between the older and younger ages,
+     * both of which must lie within the given interval
+     */
+    private double getLogG(ModelSnapshot snapshot, int intervalIdx, double oldAge, double youngAge) {
+        return getLogG(snapshot, intervalIdx, oldAge) - getLogG(snapshot, intervalIdx, youngAge);
+    }
+
+    /**
+     * @return log g at the given age relative to the young end of the
+     * interval
+     */
+    private double getLogG(ModelSnapshot snapshot, int intervalIdx, double age) {
+        double lambda = snapshot.getRate(intervalIdx, EpidemicEvent.INFECTION);
+        double mu = snapshot.getRate(intervalIdx, EpidemicEvent.RECOVERY);
+        double psi = snapshot.getPsiSamplingRate(intervalIdx);
+        double A = Math.sqrt((lambda-mu-psi)*(lambda-mu-psi) + 4*lambda*psi);
+        double z = lambda+mu+psi+A > 0.0 ? 2*mu/(lambda+mu+psi+A) : 0.0;
+
+        double s = age - intervalYoungAge[intervalIdx];
+        double p0Young = intervalP0[intervalIdx];
+        double h = A > 0.0 ? -Math.expm1(-A*s)/A : s;
+
+        return -A*s - 2.0*Math.log1p(lambda*(z - p0Young)*h);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+/**
+ * Snapshot of the particle filter taken immediately after the ensemble
+ * has been propagated to (and possibly resampled at) an observed event.
+ * Restarting the filter from a snapshot reproduces the remainder of the
+ * calculation without repeating the work done before the event.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class EnsembleCheckpoint {
+
+    final ParticleEnsemble particles;
+    final double[] logParticleWeights;
+    final int[] auxiliaryCursors;
+
+    double logP;
+    int resamplingCursor;
+    boolean isValid;
+
+    /**
+     * Create storage for a snapshot of the given number of particles.
+     *
+     * @param nParticles number of particles
+     * @param useAuxiliaryRandoms whether auxiliary variable cursors are stored
+     */
+    EnsembleCheckpoint(int nParticles, boolean useAuxiliaryRandoms) {
+        particles = new ParticleEnsemble(nParticles);
+        logParticleWeights = new double[nParticles];
+        auxiliaryCursors = useAuxiliaryRandoms ? new int[nParticles] : null;
+    }
+
+    /**
+     * Save filter state.
+     *
+     * @param srcParticles particle ensemble
+     * @param srcLogParticleWeights log particle weights
+     * @param srcLogP log density accumulated so far
+     * @param srcAuxiliaryCursors particle auxiliary variable cursors (may be null)
+     * @param srcResamplingCursor resampling auxiliary variable cursor
+     */
+    void save(ParticleEnsemble srcParticles, double[] srcLogParticleWeights,
+              double srcLogP, int[] srcAuxiliaryCursors, int srcResamplingCursor) {
+        particles.copyFrom(srcParticles);
+        System.arraycopy(srcLogParticleWeights, 0, logParticleWeights, 0,
+                logParticleWeights.length);
+        if (auxiliaryCursors != null)
+            System.arraycopy(srcAuxiliaryCursors, 0, auxiliaryCursors, 0,
+                    auxiliaryCursors.length);
+        logP = srcLogP;
+        resamplingCursor = srcResamplingCursor;
+        isValid = true;
+    }
+
+    /**
+     * Restore filter state.  The log density is returned rather than
+     * restored.
+     *
+     * @param dstParticles particle ensemble
+     * @param dstLogParticleWeights log particle weights
+     * @param dstAuxiliaryCursors particle auxiliary variable cursors (may be null)
+     * @return log density accumulated up to the checkpoint
+     */
+    double load(ParticleEnsemble dstParticles, double[] dstLogParticleWeights,
+                int[] dstAuxiliaryCursors) {
+        dstParticles.copyFrom(particles);
+        System.arraycopy(logParticleWeights, 0, dstLogParticleWeights, 0,
+                logParticleWeights.length);
+        if (auxiliaryCursors != null)
+            System.arraycopy(auxiliaryCursors, 0, dstAuxiliaryCursors, 0,
+                    auxiliaryCursors.length);
+        return logP;
+    }
+}
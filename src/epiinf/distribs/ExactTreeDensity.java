@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.TreeDistribution;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Binomial;
+import beast.base.util.GammaFunction;
+import epiinf.EpidemicEvent;
+import epiinf.EpidemicState;
+import epiinf.IncidenceData;
+import epiinf.ObservedEvent;
+import epiinf.ObservedEventsList;
+import epiinf.models.EpidemicModel;
+import epiinf.models.ModelSnapshot;
+import epiinf.util.KrylovExponential;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Exact tree density for epidemic models with a finite state space, such
+ * as the SIS and SIR models.  The probability distribution over the
+ * epidemic states reachable from the initial state, jointly with the
+ * observed events so far, is propagated forward in time by integrating
+ * the master equation between observed events.  For the SIS model the
+ * states are indexed by prevalence alone, while for the SIR model they
+ * are (S, I) pairs.
+ *
+ * Between observed events the distribution evolves under the generator
+ * of the process restricted to unobserved infections and recoveries of
+ * unobserved individuals, with all other reactions removing probability
+ * mass, and is advanced using Krylov approximations to the action of the
+ * matrix exponential.  Observed events and rho sampling then apply the
+ * same probabilities as the particle weights of SMCTreeDensity, so the
+ * two densities agree up to the Monte Carlo error of the latter.  The
+ * cost grows with the number of states, so this is practical for
+ * populations of up to a few thousand (SIS) or a few hundred (SIR).
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Compute exact density of tree conditional on model parameters "
+    + "by integrating the master equation.")
+public class ExactTreeDensity extends TreeDistribution {
+
+    public Input<EpidemicModel> modelInput = new Input<>(
+            "model", "Epidemic model.", Validate.REQUIRED);
+
+    public Input<Function> finalTreeSampleOffsetInput = new Input<>(
+            "finalTreeSampleOffset",
+            "Difference in time between final TREE sample and end " +
+                    "of observation process.  (Defaults to zero.)");
+
+    public Input<RealParameter> incidenceParamInput = new Input<>(
+            "incidenceParameter",
+            "Ages of unsequenced samples.");
+
+    public Input<IncidenceData> incidenceDataInput = new Input<>(
+            "incidenceData",
+            "Incindence data (as a histogram).");
+
+    public Input<Integer> maxStatesInput = new Input<>(
+            "maxStates",
+            "Maximum number of epidemic states to include in the state " +
+                    "space.  Memory and time per step grow linearly with " +
+                    "this number.",
+            100000);
+
+    public Input<Integer> krylovDimensionInput = new Input<>(
+            "krylovDimension",
+            "Maximum dimension of Krylov subspaces used to compute matrix " +
+                    "exponentials.",
+            15);
+
+    public Input<Double> toleranceInput = new Input<>(
+            "tolerance",
+            "Relative error tolerance per unit time for matrix exponentials.",
+            1e-10);
+
+    protected EpidemicModel model;
+    protected ObservedEventsList observedEventsList;
+
+    private ModelSnapshot modelSnapshot;
+    private KrylovExponential krylov;
+
+    // State space.  Transition targets are -1 where the transition
+    // leads to an invalid state.
+    private int nStates;
+    private double[] stateS, stateI;
+    private int[] infectionTarget, removalTarget;
+    private double initialS = Double.NaN, initialI = Double.NaN;
+
+    // Propensities within the current model interval
+    private int intervalIdx;
+    private double[] infectionProps, recoveryProps, samplingProps;
+    private double generatorNorm;
+
+    // Probability distribution over states and scratch space
+    private double[] prob, probScratch;
+    private double time;
+
+    private final EpidemicState scratchState = new EpidemicState();
+
+    private final Generator generator = new Generator();
+
+    public ExactTreeDensity() {
+        treeIntervalsInput.setRule(Validate.FORBIDDEN);
+        treeInput.setRule(Validate.OPTIONAL); // Possible to have only incidence data!
+    }
+
+    @Override
+    public void initAndValidate() {
+        model = modelInput.get();
+
+        if (treeInput.get() == null && incidenceParamInput.get() == null)
+            throw new IllegalArgumentException("Must specify at least one of tree or incidence.");
+
+        if (maxStatesInput.get() < 1)
+            throw new IllegalArgumentException("maxStates must be positive.");
+
+        if (Double.isInfinite(model.getMaxPrevalence()))
+            throw new IllegalArgumentException("Exact tree density requires " +
+                    "a model with a finite population, such as SIR or SIS.");
+
+        observedEventsList = new ObservedEventsList(treeInput.get(),
+                incidenceParamInput.get(), incidenceDataInput.get(),
+                model, finalTreeSampleOffsetInput.get());
+
+        krylov = new KrylovExponential(krylovDimensionInput.get(), toleranceInput.get());
+    }
+
+    @Override
+    public double calculateLogP() {
+        logP = 0.0;
+
+        modelSnapshot = model.getSnapshot();
+
+        // Early exit if first tree event occurs before origin.
+        if (observedEventsList.getEventTime(0) < 0) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        updateStateSpace();
+
+        Arrays.fill(prob, 0.0);
+        prob[0] = 1.0;
+        time = 0.0;
+        intervalIdx = modelSnapshot.getInitialIntervalIdx();
+        updatePropensities();
+
+        int nObservedEvents = observedEventsList.getEventCount();
+        for (int i=0; i<nObservedEvents; i++) {
+            double eventTime = observedEventsList.getEventTime(i);
+            ObservedEvent.Type eventType = observedEventsList.getEventType(i);
+            int lineages = observedEventsList.getEventLineages(i);
+
+            propagate(eventTime, lineages);
+            logP += normalize();
+
+            if (eventType != ObservedEvent.Type.OBSERVATION_END) {
+                applyObservedEvent(eventType, eventTime,
+                        observedEventsList.getEventMultiplicity(i), lineages);
+                logP += normalize();
+            }
+
+            if (logP == Double.NEGATIVE_INFINITY)
+                return logP;
+        }
+
+        return logP;
+    }
+
+    /**
+     * Enumerate the states reachable from the initial state by infections
+     * and removals.  The state space only depends on the initial state, so
+     * is only rebuilt when this changes.
+     */
+    private void updateStateSpace() {
+        EpidemicState initialState = model.getInitialState();
+        if (initialState.S == initialS && initialState.I == initialI)
+            return;
+
+        int maxStates = maxStatesInput.get();
+
+        Map<Long, Integer> stateIndices = new HashMap<>();
+        double[] S = new double[16], I = new double[16];
+        int[] infTarget = new int[16], remTarget = new int[16];
+
+        S[0] = initialState.S;
+        I[0] = initialState.I;
+        stateIndices.put(getStateKey(S[0], I[0]), 0);
+        int n = 1;
+
+        // Breadth-first search, with the state arrays doubling as the queue
+        for (int s=0; s<n; s++) {
+            for (int t=0; t<2; t++) {
+                scratchState.S = S[s];
+                scratchState.I = I[s];
+                scratchState.R = 0;
+
+                int target = -1;
+
+                // No infections occur in the absence of infected individuals
+                if (t == 1 || I[s] > 0) {
+                    model.incrementState(scratchState,
+                            t == 0 ? EpidemicEvent.INFECTION : EpidemicEvent.RECOVERY, 1);
+
+                    if (scratchState.isValid()) {
+                        long key = getStateKey(scratchState.S, scratchState.I);
+                        Integer idx = stateIndices.get(key);
+                        if (idx == null) {
+                            if (n == maxStates)
+                                throw new IllegalArgumentException("Epidemic state space " +
+                                        "exceeds maxStates (" + maxStates + ").  Exact " +
+                                        "tree density requires a finite population.");
+
+                            if (n == S.length) {
+                                S = Arrays.copyOf(S, 2*n);
+                                I = Arrays.copyOf(I, 2*n);
+                                infTarget = Arrays.copyOf(infTarget, 2*n);
+                                remTarget = Arrays.copyOf(remTarget, 2*n);
+                            }
+
+                            idx = n++;
+                            S[idx] = scratchState.S;
+                            I[idx] = scratchState.I;
+                            stateIndices.put(key, idx);
+                        }
+                        target = idx;
+                    }
+                }
+
+                if (t == 0)
+                    infTarget[s] = target;
+                else
+                    remTarget[s] = target;
+            }
+        }
+
+        nStates = n;
+        stateS = Arrays.copyOf(S, n);
+        stateI = Arrays.copyOf(I, n);
+        infectionTarget = Arrays.copyOf(infTarget, n);
+        removalTarget = Arrays.copyOf(remTarget, n);
+
+        infectionProps = new double[n];
+        recoveryProps = new double[n];
+        samplingProps = new double[n];
+        prob = new double[n];
+        probScratch = new double[n];
+
+        initialS = initialState.S;
+        initialI = initialState.I;
+    }
+
+    private static long getStateKey(double S, double I) {
+        return (Math.round(S) << 32) | Math.round(I);
+    }
+
+    /**
+     * Compute propensities of all states within the current model
+     * interval, together with a bound on the norm of the generator.
+     */
+    private void updatePropensities() {
+        model.calculatePropensities(modelSnapshot, stateS, stateI, intervalIdx,
+                0, nStates, infectionProps, recoveryProps, samplingProps);
+
+        generatorNorm = 0.0;
+        for (int s=0; s<nStates; s++) {
+            generatorNorm = Math.max(generatorNorm,
+                    2.0*(infectionProps[s] + recoveryProps[s] + samplingProps[s]));
+        }
+    }
+
+    /**
+     * Propagate the state distribution up to the given time, applying
+     * any rate changes and unobserved rho sampling events on the way.
+     *
+     * @param endTime time to propagate to
+     * @param lineages number of observed lineages
+     */
+    private void propagate(double endTime, int lineages) {
+        generator.lineages = lineages;
+
+        while (true) {
+            double modelEventTime = modelSnapshot.getNextEventTime(intervalIdx);
+
+            // Rho sampling events coinciding with the observed event are
+            // dealt with by applyObservedEvent().
+            if (modelEventTime < endTime
+                    && !(modelSnapshot.isRhoSamplingEvent(intervalIdx)
+                    && model.timesEqual(modelEventTime, endTime))) {
+
+                advance(modelEventTime);
+
+                if (modelSnapshot.isRhoSamplingEvent(intervalIdx)) {
+                    // Probability that rho sampling produced no samples
+                    double rho = modelSnapshot.getRho(intervalIdx);
+                    for (int s=0; s<nStates; s++)
+                        prob[s] *= Math.pow(1.0 - rho, stateI[s]);
+                }
+
+                intervalIdx += 1;
+                updatePropensities();
+            } else {
+                advance(endTime);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Integrate the master equation within the current model interval.
+     *
+     * @param endTime time to integrate to
+     */
+    private void advance(double endTime) {
+        if (endTime > time) {
+            krylov.apply(generator, generatorNorm, endTime - time, prob);
+
+            // Remove small negative values arising from approximation error
+            for (int s=0; s<nStates; s++) {
+                if (prob[s] < 0.0)
+                    prob[s] = 0.0;
+            }
+        }
+
+        time = endTime;
+    }
+
+    /**
+     * Multiply the state distribution by the probability of the observed
+     * event, updating states where the event changes them.
+     *
+     * @param type type of observed event
+     * @param eventTime time of observed event
+     * @param multiplicity multiplicity of observed event
+     * @param lineages number of observed lineages prior to event
+     */
+    private void applyObservedEvent(ObservedEvent.Type type, double eventTime,
+                                    int multiplicity, int lineages) {
+
+        if (type == ObservedEvent.Type.COALESCENCE) {
+            for (int i=0; i<multiplicity; i++) {
+                Arrays.fill(probScratch, 0.0);
+                for (int s=0; s<nStates; s++) {
+                    int target = infectionTarget[s];
+                    if (prob[s] == 0.0 || target < 0)
+                        continue;
+
+                    double newI = stateI[target];
+                    probScratch[target] += prob[s]*2.0/newI/(newI - 1)*infectionProps[s];
+                }
+                swapProbs();
+            }
+
+            return;
+        }
+
+        if (model.timesEqual(eventTime, modelSnapshot.getNextEventTime(intervalIdx))
+                && modelSnapshot.isRhoSamplingEvent(intervalIdx)) {
+
+            double rho = modelSnapshot.getRho(intervalIdx);
+            int k = multiplicity;
+
+            Arrays.fill(probScratch, 0.0);
+            for (int s=0; s<nStates; s++) {
+                int I = (int)Math.round(stateI[s]);
+                if (prob[s] == 0.0 || I < k)
+                    continue;
+
+                int target = s;
+                for (int j=0; j<k && target >= 0; j++)
+                    target = removalTarget[target];
+                if (target < 0)
+                    continue;
+
+                double logSampleProb = Binomial.logChoose(I, k)
+                        + k*Math.log(rho)
+                        + (I > k ? (I-k)*Math.log(1.0 - rho) : 0.0)
+                        + GammaFunction.lnGamma(1 + k);
+                probScratch[target] += prob[s]*Math.exp(logSampleProb);
+            }
+            swapProbs();
+
+            // Rho sampling event has now been accounted for
+            intervalIdx += 1;
+            updatePropensities();
+
+            return;
+        }
+
+        // Sum over the number of samples which are removals
+        double removalProb = type == ObservedEvent.Type.SAMPLED_ANCESTOR
+                ? 0.0
+                : modelSnapshot.getRemovalProb(intervalIdx);
+
+        Arrays.fill(probScratch, 0.0);
+        for (int s=0; s<nStates; s++) {
+            int I = (int)Math.round(stateI[s]);
+            if (prob[s] == 0.0 || I == 0)
+                continue;
+
+            int target = s;
+            for (int removals=0; removals<=multiplicity && target >= 0; removals++) {
+                double logRemovalProb = Binomial.logChoose(multiplicity, removals)
+                        + (removals > 0 ? removals*Math.log(removalProb) : 0.0)
+                        + (removals < multiplicity ? (multiplicity-removals)*Math.log(1.0 - removalProb) : 0.0);
+
+                if (logRemovalProb > Double.NEGATIVE_INFINITY) {
+                    probScratch[target] += prob[s]*Math.exp(logRemovalProb
+                            + SMCTreeDensity.getSamplingLogProb(model, modelSnapshot, intervalIdx,
+                            type, multiplicity, removals, lineages, I));
+                }
+
+                target = removalTarget[target];
+            }
+        }
+        swapProbs();
+    }
+
+    private void swapProbs() {
+        double[] tmp = prob;
+        prob = probScratch;
+        probScratch = tmp;
+    }
+
+    /**
+     * Normalize the state distribution.
+     *
+     * @return log of total probability prior to normalization
+     */
+    private double normalize() {
+        double total = 0.0;
+        for (int s=0; s<nStates; s++)
+            total += prob[s];
+
+        if (!(total > 0.0))
+            return Double.NEGATIVE_INFINITY;
+
+        for (int s=0; s<nStates; s++)
+            prob[s] /= total;
+
+        return Math.log(total);
+    }
+
+    /**
+     * Generator of the master equation between observed events, given
+     * the number of observed lineages.  Infections involving two observed
+     * lineages, recoveries of observed lineages and sampling are excluded
+     * and remove probability mass.
+     */
+    private class Generator implements KrylovExponential.Operator {
+        int lineages;
+
+        @Override
+        public void apply(double[] x, double[] y) {
+            Arrays.fill(y, 0.0);
+
+            double pairs = lineages*(lineages - 1.0);
+            for (int s=0; s<nStates; s++) {
+                double xs = x[s];
+                if (xs == 0.0)
+                    continue;
+
+                double I = stateI[s];
+                double infectionProp = infectionProps[s];
+                double recoveryProp = recoveryProps[s];
+
+                y[s] -= (infectionProp + recoveryProp + samplingProps[s])*xs;
+
+                int target = infectionTarget[s];
+                if (target >= 0 && infectionProp > 0.0) {
+                    double unobservedInfectProp = infectionProp*(1.0 - pairs/I/(I + 1));
+                    if (unobservedInfectProp > 0.0)
+                        y[target] += unobservedInfectProp*xs;
+                }
+
+                target = removalTarget[s];
+                if (target >= 0 && I > lineages)
+                    y[target] += recoveryProp*xs;
+            }
+        }
+    }
+
+    /**
+     * @return Epidemic model
+     */
+    public EpidemicModel getModel() {
+        return modelInput.get();
+    }
+
+
+    /*
+     * StateNode implementation
+     */
+
+    @Override
+    protected boolean requiresRecalculation() {
+        observedEventsList.makeDirty();
+
+        if (model.isDirtyCalculation())
+            return true;
+
+        return observedEventsList.updateEventList();
+    }
+
+    @Override
+    public void restore() {
+        // Bring the event table back in line with the restored state now,
+        // so that the reversal is not mistaken for a change next time.
+        observedEventsList.makeDirty();
+        observedEventsList.updateEventList();
+        super.restore();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicEvent;
+import epiinf.EpidemicState;
+import epiinf.ModelEvent;
+import epiinf.ObservedEvent;
+import epiinf.ObservedEventsList;
+import epiinf.models.EpidemicModel;
+
+import java.util.List;
+
+/**
+ * Record of the epidemic model dynamics and observed events used in a
+ * particle filter calculation.  Comparing a record against the current
+ * model and observed events identifies the earliest point from which a
+ * new calculation can differ from the recorded one.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class FilterInputRecord {
+
+    private static final int[] RATE_TYPES = {
+            EpidemicEvent.INFECTION, EpidemicEvent.RECOVERY,
+            EpidemicEvent.PSI_SAMPLE_REMOVE, EpidemicEvent.PSI_SAMPLE_NOREMOVE};
+
+    boolean isEmpty = true;
+
+    // Model dynamics
+
+    private double origin, initialS, initialI, initialR, sequencingProb;
+    private int initialModelIntervalIdx, nModelEvents;
+    private double[] modelEventTimes = new double[0], rhos = new double[0];
+    private ModelEvent.Type[] modelEventTypes = new ModelEvent.Type[0];
+    private double[][] intervalRates = new double[0][];
+    private double[] intervalRemovalProbs = new double[0];
+
+    // Observed events
+
+    private int nObservedEvents;
+    private double[] observedEventTimes = new double[0];
+    private ObservedEvent.Type[] observedEventTypes = new ObservedEvent.Type[0];
+    private int[] observedEventMultiplicities = new int[0], observedEventLineages = new int[0];
+
+    /**
+     * Record the current model dynamics and observed events.
+     *
+     * @param model epidemic model
+     * @param observedEvents table of observed events
+     */
+    void record(EpidemicModel model, ObservedEventsList observedEvents) {
+        EpidemicState initialState = model.getInitialState();
+        List<ModelEvent> modelEvents = model.getModelEventList();
+
+        origin = model.getOrigin();
+        initialS = initialState.S;
+        initialI = initialState.I;
+        initialR = initialState.R;
+        initialModelIntervalIdx = initialState.modelIntervalIdx;
+        sequencingProb = getSequencingProb(model);
+
+        nModelEvents = modelEvents.size();
+        if (modelEventTimes.length < nModelEvents) {
+            modelEventTimes = new double[nModelEvents];
+            rhos = new double[nModelEvents];
+            modelEventTypes = new ModelEvent.Type[nModelEvents];
+        }
+        if (intervalRates.length < nModelEvents + 1) {
+            intervalRates = new double[nModelEvents + 1][RATE_TYPES.length];
+            intervalRemovalProbs = new double[nModelEvents + 1];
+        }
+
+        for (int i=initialModelIntervalIdx; i<nModelEvents; i++) {
+            ModelEvent event = modelEvents.get(i);
+            modelEventTimes[i] = event.time;
+            modelEventTypes[i] = event.type;
+            rhos[i] = event.rho;
+        }
+
+        for (int i=initialModelIntervalIdx; i<=nModelEvents; i++) {
+            for (int j=0; j<RATE_TYPES.length; j++)
+                intervalRates[i][j] = model.getIntervalRate(i, RATE_TYPES[j]);
+            intervalRemovalProbs[i] = model.getIntervalRemovalProb(i);
+        }
+
+        nObservedEvents = observedEvents.getEventCount();
+        if (observedEventTimes.length < nObservedEvents) {
+            observedEventTimes = new double[nObservedEvents];
+            observedEventTypes = new ObservedEvent.Type[nObservedEvents];
+            observedEventMultiplicities = new int[nObservedEvents];
+            observedEventLineages = new int[nObservedEvents];
+        }
+
+        for (int i=0; i<nObservedEvents; i++) {
+            observedEventTimes[i] = observedEvents.getEventTime(i);
+            observedEventTypes[i] = observedEvents.getEventType(i);
+            observedEventMultiplicities[i] = observedEvents.getEventMultiplicity(i);
+            observedEventLineages[i] = observedEvents.getEventLineages(i);
+        }
+
+        isEmpty = false;
+    }
+
+    /**
+     * Find the earliest time at which the dynamics of the given model may
+     * differ from the recorded dynamics.
+     *
+     * @param model epidemic model
+     * @return earliest time of difference, or positive infinity if the
+     * dynamics are identical
+     */
+    double getEarliestModelChangeTime(EpidemicModel model) {
+        if (isEmpty)
+            return 0.0;
+
+        EpidemicState initialState = model.getInitialState();
+        List<ModelEvent> modelEvents = model.getModelEventList();
+
+        if (model.getOrigin() != origin
+                || initialState.S != initialS
+                || initialState.I != initialI
+                || initialState.R != initialR
+                || initialState.modelIntervalIdx != initialModelIntervalIdx
+                || getSequencingProb(model) != sequencingProb)
+            return 0.0;
+
+        int nCommon = Math.min(nModelEvents, modelEvents.size());
+
+        double intervalStartTime = 0.0;
+        for (int i=initialModelIntervalIdx; ; i++) {
+
+            // Compare rates within interval i
+            for (int j=0; j<RATE_TYPES.length; j++) {
+                if (model.getIntervalRate(i, RATE_TYPES[j]) != intervalRates[i][j])
+                    return intervalStartTime;
+            }
+            if (model.getIntervalRemovalProb(i) != intervalRemovalProbs[i])
+                return intervalStartTime;
+
+            if (i == nCommon)
+                break;
+
+            // Compare event ending interval i
+            ModelEvent event = modelEvents.get(i);
+            if (event.time != modelEventTimes[i])
+                return Math.min(event.time, modelEventTimes[i]);
+
+            if (event.type != modelEventTypes[i] || event.rho != rhos[i])
+                return event.time;
+
+            intervalStartTime = event.time;
+        }
+
+        if (modelEvents.size() != nModelEvents)
+            return intervalStartTime;
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Find the index of the first observed event which differs from the
+     * recorded observed events.
+     *
+     * @param observedEvents table of observed events
+     * @return index of first differing event, or the number of events if
+     * the lists are identical
+     */
+    int getFirstObservedEventChange(ObservedEventsList observedEvents) {
+        if (isEmpty)
+            return 0;
+
+        int nCommon = Math.min(nObservedEvents, observedEvents.getEventCount());
+        for (int i=0; i<nCommon; i++) {
+            if (observedEvents.getEventTime(i) != observedEventTimes[i]
+                    || observedEvents.getEventType(i) != observedEventTypes[i]
+                    || observedEvents.getEventMultiplicity(i) != observedEventMultiplicities[i]
+                    || observedEvents.getEventLineages(i) != observedEventLineages[i])
+                return i;
+        }
+
+        return nCommon;
+    }
+
+    private static double getSequencingProb(EpidemicModel model) {
+        return model.sequencingProbInput.get() != null
+                ? model.sequencingProbInput.get().getArrayValue()
+                : -1.0;
+    }
+}
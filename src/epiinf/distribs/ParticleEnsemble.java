@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicState;
+
+/**
+ * Ensemble of particle states stored as parallel primitive arrays, one
+ * array per state component.  Keeping each component contiguous in memory
+ * means that loops over the ensemble touch only the data they need, and
+ * that copying particles during resampling reduces to a handful of tight
+ * array loops.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class ParticleEnsemble {
+
+    final int size;
+
+    final double[] S, I, R, cumulativeInfections, time, samplingPropensityIntegral;
+    final int[] modelIntervalIdx, observedEventIdx;
+    final EpidemicState.Algorithm[] algorithm;
+
+    /**
+     * Create a new ensemble.
+     *
+     * @param size number of particles in ensemble
+     */
+    ParticleEnsemble(int size) {
+        this.size = size;
+
+        S = new double[size];
+        I = new double[size];
+        R = new double[size];
+        cumulativeInfections = new double[size];
+        time = new double[size];
+        samplingPropensityIntegral = new double[size];
+        modelIntervalIdx = new int[size];
+        observedEventIdx = new int[size];
+        algorithm = new EpidemicState.Algorithm[size];
+    }
+
+    /**
+     * Copy state of particle p into the given state object.
+     *
+     * @param p particle index
+     * @param state state object to copy into
+     */
+    void get(int p, EpidemicState state) {
+        state.S = S[p];
+        state.I = I[p];
+        state.R = R[p];
+        state.cumulativeInfections = cumulativeInfections[p];
+        state.time = time[p];
+        state.samplingPropensityIntegral = samplingPropensityIntegral[p];
+        state.modelIntervalIdx = modelIntervalIdx[p];
+        state.observedEventIdx = observedEventIdx[p];
+        state.algorithm = algorithm[p];
+    }
+
+    /**
+     * Set state of particle p from the given state object.
+     *
+     * @param p particle index
+     * @param state state object to copy from
+     */
+    void set(int p, EpidemicState state) {
+        S[p] = state.S;
+        I[p] = state.I;
+        R[p] = state.R;
+        cumulativeInfections[p] = state.cumulativeInfections;
+        time[p] = state.time;
+        samplingPropensityIntegral[p] = state.samplingPropensityIntegral;
+        modelIntervalIdx[p] = state.modelIntervalIdx;
+        observedEventIdx[p] = state.observedEventIdx;
+        algorithm[p] = state.algorithm;
+    }
+
+    /**
+     * Set state of every particle from the given state object.
+     *
+     * @param state state object to copy from
+     */
+    void setAll(EpidemicState state) {
+        for (int p=0; p<size; p++)
+            set(p, state);
+    }
+
+    /**
+     * Replace the contents of this ensemble with the particles of another
+     * ensemble selected by the given ancestor indices, i.e. particle p of
+     * this ensemble becomes a copy of particle ancestors[p] of src.
+     *
+     * @param src source ensemble
+     * @param ancestors indices of source particles
+     */
+    void assignFrom(ParticleEnsemble src, int[] ancestors) {
+        for (int p=0; p<size; p++)
+            S[p] = src.S[ancestors[p]];
+        for (int p=0; p<size; p++)
+            I[p] = src.I[ancestors[p]];
+        for (int p=0; p<size; p++)
+            R[p] = src.R[ancestors[p]];
+        for (int p=0; p<size; p++)
+            cumulativeInfections[p] = src.cumulativeInfections[ancestors[p]];
+        for (int p=0; p<size; p++)
+            time[p] = src.time[ancestors[p]];
+        for (int p=0; p<size; p++)
+            samplingPropensityIntegral[p] = src.samplingPropensityIntegral[ancestors[p]];
+        for (int p=0; p<size; p++)
+            modelIntervalIdx[p] = src.modelIntervalIdx[ancestors[p]];
+        for (int p=0; p<size; p++)
+            observedEventIdx[p] = src.observedEventIdx[ancestors[p]];
+        for (int p=0; p<size; p++)
+            algorithm[p] = src.algorithm[ancestors[p]];
+    }
+
+    /**
+     * Replace the contents of this ensemble with a copy of another ensemble
+     * of the same size.
+     *
+     * @param src source ensemble
+     */
+    void copyFrom(ParticleEnsemble src) {
+        System.arraycopy(src.S, 0, S, 0, size);
+        System.arraycopy(src.I, 0, I, 0, size);
+        System.arraycopy(src.R, 0, R, 0, size);
+        System.arraycopy(src.cumulativeInfections, 0, cumulativeInfections, 0, size);
+        System.arraycopy(src.time, 0, time, 0, size);
+        System.arraycopy(src.samplingPropensityIntegral, 0, samplingPropensityIntegral, 0, size);
+        System.arraycopy(src.modelIntervalIdx, 0, modelIntervalIdx, 0, size);
+        System.arraycopy(src.observedEventIdx, 0, observedEventIdx, 0, size);
+        System.arraycopy(src.algorithm, 0, algorithm, 0, size);
+    }
+}
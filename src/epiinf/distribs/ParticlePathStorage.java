@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage for the trajectories of an ensemble of particles, represented as
+ * a forest of path segments joined by parent pointers.  Each particle owns
+ * the segment at the tip of its path, to which states are appended as the
+ * particle is propagated.  Resampling only creates new (empty) tip segments
+ * pointing at the segments of the selected ancestors, so particles share
+ * their common history rather than copying it.  Segments are reference
+ * counted and are returned to a pool once no surviving particle descends
+ * from them.
+ *
+ * See Jacob, Murray and Rubenthaler, "Path storage in the particle filter",
+ * Statistics and Computing 25:487-496 (2015).
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class ParticlePathStorage {
+
+    /**
+     * Segment of a particle path.  States are stored in primitive arrays
+     * which are retained when the segment is returned to the pool.
+     */
+    private static class Segment {
+        Segment parent;
+
+        // Number of child segments plus one if segment is a particle tip.
+        int refCount;
+
+        int size;
+        double[] S, I, R, cumulativeInfections, time;
+        int[] modelIntervalIdx, observedEventIdx;
+        EpidemicState.Algorithm[] algorithm;
+
+        Segment() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            S = new double[capacity];
+            I = new double[capacity];
+            R = new double[capacity];
+            cumulativeInfections = new double[capacity];
+            time = new double[capacity];
+            modelIntervalIdx = new int[capacity];
+            observedEventIdx = new int[capacity];
+            algorithm = new EpidemicState.Algorithm[capacity];
+        }
+
+        void add(EpidemicState state) {
+            if (size == S.length)
+                grow();
+
+            S[size] = state.S;
+            I[size] = state.I;
+            R[size] = state.R;
+            cumulativeInfections[size] = state.cumulativeInfections;
+            time[size] = state.time;
+            modelIntervalIdx[size] = state.modelIntervalIdx;
+            observedEventIdx[size] = state.observedEventIdx;
+            algorithm[size] = state.algorithm;
+            size += 1;
+        }
+
+        EpidemicState get(int i) {
+            EpidemicState state = new EpidemicState();
+            state.S = S[i];
+            state.I = I[i];
+            state.R = R[i];
+            state.cumulativeInfections = cumulativeInfections[i];
+            state.time = time[i];
+            state.modelIntervalIdx = modelIntervalIdx[i];
+            state.observedEventIdx = observedEventIdx[i];
+            state.algorithm = algorithm[i];
+            return state;
+        }
+
+        private void grow() {
+            double[] oldS = S, oldI = I, oldR = R,
+                    oldCumulativeInfections = cumulativeInfections, oldTime = time;
+            int[] oldModelIntervalIdx = modelIntervalIdx, oldObservedEventIdx = observedEventIdx;
+            EpidemicState.Algorithm[] oldAlgorithm = algorithm;
+
+            allocate(2*size);
+
+            System.arraycopy(oldS, 0, S, 0, size);
+            System.arraycopy(oldI, 0, I, 0, size);
+            System.arraycopy(oldR, 0, R, 0, size);
+            System.arraycopy(oldCumulativeInfections, 0, cumulativeInfections, 0, size);
+            System.arraycopy(oldTime, 0, time, 0, size);
+            System.arraycopy(oldModelIntervalIdx, 0, modelIntervalIdx, 0, size);
+            System.arraycopy(oldObservedEventIdx, 0, observedEventIdx, 0, size);
+            System.arraycopy(oldAlgorithm, 0, algorithm, 0, size);
+        }
+    }
+
+    private final int nParticles;
+
+    private Segment[] tips, tipsNew;
+    private final int[] offspringCounts;
+
+    private final List<Segment> segmentPool = new ArrayList<>();
+    private final List<Segment> pathSegments = new ArrayList<>();
+    private int nSegments;
+
+    /**
+     * Create storage for the paths of an ensemble of particles.
+     *
+     * @param nParticles number of particles in ensemble
+     */
+    ParticlePathStorage(int nParticles) {
+        this.nParticles = nParticles;
+
+        tips = new Segment[nParticles];
+        tipsNew = new Segment[nParticles];
+        offspringCounts = new int[nParticles];
+    }
+
+    /**
+     * Discard all stored paths and start each particle at the given state.
+     *
+     * @param initialState initial state shared by all particles
+     */
+    void reset(EpidemicState initialState) {
+        for (int p=0; p<nParticles; p++) {
+            if (tips[p] != null) {
+                release(tips[p]);
+                tips[p] = null;
+            }
+        }
+
+        Segment root = newSegment(null);
+        root.add(initialState);
+        for (int p=0; p<nParticles; p++)
+            tips[p] = newSegment(root);
+
+        // Drop the reference held while the tips were being created.
+        release(root);
+    }
+
+    /**
+     * Append state to the path of particle p.  Particles own their tip
+     * segments, so distinct particles may be appended to concurrently.
+     *
+     * @param p particle index
+     * @param state state to append
+     */
+    void add(int p, EpidemicState state) {
+        tips[p].add(state);
+    }
+
+    /**
+     * Replace the paths of the ensemble with the paths of the selected
+     * ancestors, i.e. particle p inherits the path of particle ancestors[p].
+     *
+     * @param ancestors indices of ancestral particles
+     */
+    void resample(int[] ancestors) {
+        for (int p=0; p<nParticles; p++)
+            offspringCounts[p] = 0;
+
+        for (int p=0; p<nParticles; p++)
+            offspringCounts[ancestors[p]] += 1;
+
+        for (int p=0; p<nParticles; p++) {
+            int a = ancestors[p];
+
+            if (offspringCounts[a] == 1) {
+                // Sole offspring simply takes over the ancestor's tip
+                tipsNew[p] = tips[a];
+            } else
+                tipsNew[p] = newSegment(tips[a]);
+        }
+
+        // Drop the references held by the old tips, pruning paths with
+        // no surviving descendants
+        for (int p=0; p<nParticles; p++) {
+            if (offspringCounts[p] != 1)
+                release(tips[p]);
+        }
+
+        Segment[] tmp = tips;
+        tips = tipsNew;
+        tipsNew = tmp;
+    }
+
+    /**
+     * Retrieve the complete path of particle p.
+     *
+     * @param p particle index
+     * @param path list to which the states of the path are appended
+     */
+    void getPath(int p, List<EpidemicState> path) {
+        pathSegments.clear();
+        for (Segment segment = tips[p]; segment != null; segment = segment.parent)
+            pathSegments.add(segment);
+
+        for (int i=pathSegments.size()-1; i>=0; i--) {
+            Segment segment = pathSegments.get(i);
+            for (int j=0; j<segment.size; j++)
+                path.add(segment.get(j));
+        }
+    }
+
+    /**
+     * @return number of segments allocated, whether in use or pooled
+     */
+    int getSegmentCount() {
+        return nSegments;
+    }
+
+    /**
+     * @return number of segments available for reuse
+     */
+    int getPooledSegmentCount() {
+        return segmentPool.size();
+    }
+
+    private Segment newSegment(Segment parent) {
+        Segment segment;
+        if (segmentPool.isEmpty()) {
+            segment = new Segment();
+            nSegments += 1;
+        } else
+            segment = segmentPool.remove(segmentPool.size()-1);
+
+        segment.parent = parent;
+        segment.refCount = 1;
+        segment.size = 0;
+
+        if (parent != null)
+            parent.refCount += 1;
+
+        return segment;
+    }
+
+    private void release(Segment segment) {
+        while (segment != null && --segment.refCount == 0) {
+            Segment parent = segment.parent;
+            segment.parent = null;
+            segmentPool.add(segment);
+            segment = parent;
+        }
+    }
+}
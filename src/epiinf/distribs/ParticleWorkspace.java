@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicEvent;
+import epiinf.EpidemicState;
+import epiinf.util.AuxiliaryRandomStream;
+import epiinf.util.LeapSampler;
+import epiinf.util.ParticleRandomStream;
+import epiinf.util.RandomStream;
+
+/**
+ * Scratch storage used while propagating a block of particles.  Each block
+ * owns its own workspace so that blocks can be propagated concurrently
+ * without sharing any mutable state.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class ParticleWorkspace {
+
+    /**
+     * Reaction propensities of the particle currently being updated.
+     */
+    final double[] propensities = new double[EpidemicEvent.nTypes];
+
+    /**
+     * Removal probability of the particle currently being updated.
+     */
+    double removalProb;
+
+    /**
+     * State of the particle currently being updated.
+     */
+    final EpidemicState state = new EpidemicState();
+
+    /**
+     * Source of random numbers used to propagate particles.
+     */
+    RandomStream random;
+
+    /**
+     * Auxiliary variable stream, if any.  Must be pointed at the particle
+     * being updated before drawing from random.
+     */
+    AuxiliaryRandomStream auxiliaryStream;
+
+    /**
+     * Per-particle stream, used in place of auxiliary variables.  Must
+     * likewise be pointed at the particle being updated.
+     */
+    ParticleRandomStream particleStream;
+
+    /**
+     * Sampler used to draw reaction counts during tau leaps.
+     */
+    LeapSampler leapSampler;
+
+    /**
+     * Numbers of SSA steps, tau leaps and Langevin leaps taken by
+     * particles propagated using this workspace, and number of NaN
+     * observed event probabilities encountered.
+     */
+    long ssaSteps, tauLeaps, langevinLeaps, nanWeights;
+}
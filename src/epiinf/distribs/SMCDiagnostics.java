@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import java.util.Arrays;
+
+/**
+ * Counters describing the most recent evaluation of an SMC tree density.
+ * All counters are primitives updated in place, and the arrays used to
+ * track particle genealogies are allocated only when the particle count
+ * changes, so collection adds no allocation to the filter.
+ *
+ * Note that the counters describe the most recent call to calculateLogP(),
+ * which need not correspond to the current MCMC state if the proposal
+ * that triggered it was rejected.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SMCDiagnostics {
+
+    long ssaSteps, tauLeaps, langevinLeaps, deadParticles, nanWeights;
+    int resampleCount, essCount, uniqueAncestors;
+    double minESS, essSum;
+    long startTime, wallTime;
+
+    // Index of the particle at the start of the filter run from which
+    // each current particle descends.
+    private int[] founders = new int[0], foundersNew = new int[0];
+    private int[] founderMarks = new int[0];
+    private int markStamp;
+
+    /**
+     * Reset all counters at the start of an evaluation.
+     */
+    void reset() {
+        ssaSteps = 0;
+        tauLeaps = 0;
+        langevinLeaps = 0;
+        deadParticles = 0;
+        nanWeights = 0;
+        resampleCount = 0;
+        essCount = 0;
+        uniqueAncestors = 0;
+        minESS = Double.POSITIVE_INFINITY;
+        essSum = 0.0;
+        startTime = System.nanoTime();
+        wallTime = 0;
+    }
+
+    /**
+     * Record the end of an evaluation.
+     */
+    void finish() {
+        wallTime = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Record the effective sample size of the ensemble at an observed event.
+     *
+     * @param ess effective sample size
+     */
+    void recordESS(double ess) {
+        minESS = Math.min(minESS, ess);
+        essSum += ess;
+        essCount += 1;
+    }
+
+    /**
+     * Each particle becomes its own founder.  Called at the start of
+     * each filter run.
+     *
+     * @param nParticles number of particles
+     */
+    void resetFounders(int nParticles) {
+        if (founders.length != nParticles) {
+            founders = new int[nParticles];
+            foundersNew = new int[nParticles];
+            founderMarks = new int[nParticles];
+            markStamp = 0;
+        }
+
+        for (int p=0; p<nParticles; p++)
+            founders[p] = p;
+    }
+
+    /**
+     * Propagate founders through a resampling step.
+     *
+     * @param ancestors indices of ancestral particles
+     */
+    void resample(int[] ancestors) {
+        resampleCount += 1;
+
+        for (int p=0; p<founders.length; p++)
+            foundersNew[p] = founders[ancestors[p]];
+
+        int[] tmp = founders;
+        founders = foundersNew;
+        foundersNew = tmp;
+    }
+
+    /**
+     * Record the number of distinct founders with surviving descendants.
+     * Called at the end of a successful filter run.
+     */
+    void countUniqueAncestors() {
+        markStamp += 1;
+        if (markStamp == Integer.MAX_VALUE) {
+            Arrays.fill(founderMarks, 0);
+            markStamp = 1;
+        }
+
+        uniqueAncestors = 0;
+        for (int founder : founders) {
+            if (founderMarks[founder] != markStamp) {
+                founderMarks[founder] = markStamp;
+                uniqueAncestors += 1;
+            }
+        }
+    }
+
+    /**
+     * @return number of SSA steps taken by all particles
+     */
+    public long getSSASteps() {
+        return ssaSteps;
+    }
+
+    /**
+     * @return number of tau leaps taken by all particles
+     */
+    public long getTauLeaps() {
+        return tauLeaps;
+    }
+
+    /**
+     * @return number of chemical Langevin leaps taken by all particles
+     */
+    public long getLangevinLeaps() {
+        return langevinLeaps;
+    }
+
+    /**
+     * @return number of particles whose weight dropped to zero
+     */
+    public long getDeadParticles() {
+        return deadParticles;
+    }
+
+    /**
+     * @return number of observed event probabilities which evaluated to
+     * NaN.  This should always be zero: a nonzero count indicates a
+     * numerical problem in the model or filter.
+     */
+    public long getNaNWeights() {
+        return nanWeights;
+    }
+
+    /**
+     * @return number of resampling steps
+     */
+    public int getResampleCount() {
+        return resampleCount;
+    }
+
+    /**
+     * @return minimum effective sample size over observed events, or NaN
+     * if no observed event was reached
+     */
+    public double getMinESS() {
+        return essCount > 0 ? minESS : Double.NaN;
+    }
+
+    /**
+     * @return mean effective sample size over observed events, or NaN
+     * if no observed event was reached
+     */
+    public double getMeanESS() {
+        return essCount > 0 ? essSum/essCount : Double.NaN;
+    }
+
+    /**
+     * @return number of distinct particles present at the start of the
+     * filter run (the origin, or the checkpoint from which the filter was
+     * restarted) which are ancestral to the final ensemble, or zero if the
+     * filter run was abandoned
+     */
+    public int getUniqueAncestors() {
+        return uniqueAncestors;
+    }
+
+    /**
+     * @return wall time taken by the evaluation in milliseconds
+     */
+    public double getWallTime() {
+        return wallTime*1e-6;
+    }
+}
@@ -22,17 +22,30 @@ import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.core.ProgramStatus;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.util.Binomial;
 import beast.base.util.GammaFunction;
 import beast.base.util.Randomizer;
 import epiinf.*;
+import epiinf.models.BirthDeathModel;
 import epiinf.models.EpidemicModel;
-import epiinf.util.ReplacementSampler;
+import epiinf.models.ModelSnapshot;
+import epiinf.util.AuxiliaryRandomStream;
+import epiinf.util.DiscreteVariates;
+import epiinf.util.LeapSampler;
+import epiinf.util.ParticleResampler;
+import epiinf.util.ParticleRandomStream;
+import epiinf.util.RandomStream;
+import epiinf.util.SplittableRandomStream;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleSupplier;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -68,17 +81,44 @@ public class SMCTreeDensity extends TreeDistribution {
             "minLeapCount", "This is the minimum number of identically-sized " +
             "tau leaps that will be performed across the tree.", 100);
 
+    public Input<LeapSampler.Type> leapingAlgorithmInput = new Input<>(
+            "leapingAlgorithm",
+            "Algorithm used to draw reaction counts during tau leaps: POISSON " +
+                    "(default), BINOMIAL or R_LEAPING.  The latter two never " +
+                    "produce more infections or recoveries than the particle " +
+                    "state allows.",
+            LeapSampler.Type.POISSON, LeapSampler.Type.values());
+
     public Input<Double> relStdThreshInput = new Input<>(
             "relStdThresh", "Threshold on relative size of standard deviation of" +
             "reaction firings below which deterministic approximation will be used. " +
             "Set to zero to turn off.", 0.0);
 
+    public Input<Double> cleThreshInput = new Input<>(
+            "cleThresh",
+            "Expected number of firings of each allowed reaction per step " +
+                    "above which a particle is propagated by integrating the " +
+                    "chemical Langevin equation rather than by the SSA or " +
+                    "tau leaping.  Set to zero to turn off.",
+            20.0);
+
     public Input<Double> resampThreshInput = new Input<>(
             "resampThresh",
             "Resampling performed when the effective relative number of " +
                     "particles drops below this threshold.",
             0.3);
 
+    public Input<ParticleResampler.Type> resamplerInput = new Input<>(
+            "resampler",
+            "Scheme used to resample particles: MULTINOMIAL (default), " +
+                    "SYSTEMATIC, STRATIFIED, RESIDUAL or METROPOLIS.",
+            ParticleResampler.Type.MULTINOMIAL, ParticleResampler.Type.values());
+
+    public Input<Integer> metropolisStepsInput = new Input<>(
+            "metropolisSteps",
+            "Number of Metropolis steps per particle used by the METROPOLIS " +
+                    "resampling scheme.", 20);
+
     public Input<RealParameter> incidenceParamInput = new Input<>(
             "incidenceParameter",
             "Ages of unsequenced samples.");
@@ -87,24 +127,225 @@ public class SMCTreeDensity extends TreeDistribution {
             "incidenceData",
             "Incindence data (as a histogram).");
 
+    public Input<BinnedIncidenceData> binnedIncidenceInput = new Input<>(
+            "binnedIncidence",
+            "Incidence counts reported in time bins.  Used in place of " +
+                    "incidenceParameter or incidenceData: each bin is " +
+                    "evaluated once, rather than each case being an " +
+                    "observed event.  Requires psi sampling and a model " +
+                    "removalProb of zero, as samples are not removed.");
+
+    public Input<Integer> nThreadsInput = new Input<>(
+            "nThreads",
+            "Number of threads used to propagate particles between observed " +
+                    "events.  Defaults to the number of threads BEAST was " +
+                    "started with.");
+
+    public Input<Double> targetLogPVarianceInput = new Input<>(
+            "targetLogPVariance",
+            "If provided, the number of particles is periodically adapted " +
+                    "so that the variance of the log-likelihood estimate " +
+                    "approaches this value.  nParticles is then only the " +
+                    "initial particle count.");
+
+    public Input<Integer> minParticlesInput = new Input<>(
+            "minParticles",
+            "Minimum number of particles used when adapting particle count.",
+            100);
+
+    public Input<Integer> maxParticlesInput = new Input<>(
+            "maxParticles",
+            "Maximum number of particles used when adapting particle count.",
+            100000);
+
+    public Input<Integer> adaptationIntervalInput = new Input<>(
+            "adaptationInterval",
+            "Number of density evaluations between particle count adaptations.",
+            1000);
+
+    public Input<Integer> varianceReplicatesInput = new Input<>(
+            "varianceReplicates",
+            "Number of independent density estimates used to estimate " +
+                    "log-likelihood variance when adapting particle count.",
+            10);
+
+    public Input<RealParameter> auxiliaryRandomsInput = new Input<>(
+            "auxiliaryRandoms",
+            "Standard normal auxiliary variables used as the source of " +
+                    "randomness for the particle filter.  When operated on " +
+                    "by a CrankNicolsonOperator, successive likelihood " +
+                    "estimates become correlated (correlated pseudo-marginal " +
+                    "MCMC).  The parameter is resized and initialized " +
+                    "automatically if its dimension is incorrect.");
+
+    public Input<Integer> auxiliaryRandomsPerParticleInput = new Input<>(
+            "auxiliaryRandomsPerParticle",
+            "Number of auxiliary variables reserved for each particle. " +
+                    "The auxiliary parameter holds nParticles times this " +
+                    "many values, all of which are stored and proposed at " +
+                    "each step.  Particles requiring more draw from their " +
+                    "own independent stream instead, which reduces the " +
+                    "correlation between successive estimates.", 500);
+
+    public Input<Boolean> recordTrajectoriesInput = new Input<>(
+            "recordTrajectories",
+            "Whether to record particle trajectories.  By default, " +
+                    "trajectories are recorded only when a trajectory or " +
+                    "incidence logger is attached to this density.");
+
+    public Input<Boolean> useLookAheadInput = new Input<>(
+            "useLookAhead",
+            "Whether to use an auxiliary particle filter, which resamples " +
+                    "particles according to a cheap prediction of the " +
+                    "probability of the next observed event and corrects " +
+                    "the particle weights afterwards.  Helps to retain " +
+                    "particles through bursts of coalescence events.", false);
+
+    public Input<Integer> checkpointIntervalInput = new Input<>(
+            "checkpointInterval",
+            "If positive, the particle ensemble is saved after every " +
+                    "checkpointInterval observed events.  When a proposal " +
+                    "leaves the model and observed events unchanged up to " +
+                    "some time, the filter is restarted from the last " +
+                    "checkpoint before that time instead of from the " +
+                    "origin.  Not used when trajectories are recorded.", 0);
+
+    public Input<Boolean> useExactBirthDeathInput = new Input<>(
+            "useExactBirthDeath",
+            "If true, the tree density under a birth-death model without " +
+                    "incidence data is computed exactly rather than " +
+                    "estimated using the particle filter.  Not used when " +
+                    "trajectories are recorded.", true);
+
 
     protected EpidemicModel model;
     protected ObservedEventsList observedEventsList;
+    protected BinnedIncidenceData binnedIncidence; // null unless incidence is binned
+
+    // Model parameters compiled at the start of the current filter run
+    private ModelSnapshot modelSnapshot;
+
+    // Fraction of the psi sampling propensity which is conditioned against
+    // between observed events, and the fraction which contributes to the
+    // expected counts of binned incidence.  Samples which are not
+    // sequenced are accounted for by the incidence bins instead.
+    private double psiConditioningFactor, unsequencedFraction;
+
+    // Exact density used in place of the particle filter when possible
+    private BirthDeathSkylineDensity exactDensity; // null unless applicable
+
+    // Counters describing the most recent evaluation
+    private final SMCDiagnostics diagnostics = new SMCDiagnostics();
+    private int deadParticleCount;
 
     int nParticles;
     boolean useTauLeaping;
-    double epsilon, resampThresh, relStdThresh;
+    LeapSampler.Type leapingAlgorithm;
+    double epsilon, resampThresh, relStdThresh, cleThresh;
     int minLeapCount;
 
+    Double targetLogPVariance;
+    int minParticles, maxParticles, adaptationInterval, varianceReplicates;
+    long nEvaluations;
+
+    // Particles are propagated in blocks, each with its own scratch space.
+    // Using several blocks per thread allows the fork-join pool to balance
+    // the load when some particles take many more SSA steps than others.
+
+    static final int BLOCKS_PER_THREAD = 8;
+
+    int nThreads, blockSize;
+    ParticleWorkspace[] workspaces;
+    ForkJoinPool threadPool;
+
+    // The common pool is used when it has the requested parallelism.
+    // Otherwise the instance owns its pool, and shuts it down when
+    // re-initialisation no longer requires it.
+
+    boolean ownsThreadPool;
+
+    // Sources of randomness.  When auxiliary variables are used, each
+    // particle slot draws from its own block of auxiliary variables and
+    // resampling draws from a final block shared by all particles.  Particles
+    // are sorted before resampling so that nearby auxiliary values map to
+    // nearby particle states.  Otherwise each particle slot and the
+    // resampler draw from their own streams, split at the start of each
+    // filter run from a stream seeded by the global Randomizer.  These
+    // streams also supply particles which exhaust their auxiliary block.
+    // Either way, the estimate does not depend on the number of threads.
+
+    final SplittableRandomStream rootStream = new SplittableRandomStream(0);
+    final SplittableRandomStream resamplingRandomStream = new SplittableRandomStream(0);
+    SplittableRandomStream[] particleStreams;
+
+    RealParameter auxiliaryRandoms;
+    int auxiliaryRandomsPerParticle;
+    double[] auxiliaryValues;
+    int[] auxiliaryCursors, resamplingCursor;
+    AuxiliaryRandomStream resamplingStream;
+    long[] sortKeys;
+    int[] sortOrder, sortedAncestors;
+    double[] sortedWeights;
+
     // Keep these around so we don't have to create these arrays/lists
     // for every density evaluation.
 
     double[] logParticleWeights, particleWeights;
-    EpidemicState[] particleStates, particleStatesNew;
+    ParticleEnsemble particles, particlesNew;
+    int[] ancestors;
+    ParticleResampler resampler;
+
+    // Observed events currently being processed, copied from the table
+    // held by observedEventsList.
+
+    final ObservedEvent nextEventCopy = new ObservedEvent();
+    final ObservedEvent followingEventCopy = new ObservedEvent();
+
+    // Propensities of each particle, used when all particles in a block
+    // are advanced together by fixed-size tau leaps.
+
+    double[] infectionProps, recoveryProps, samplingProps;
+
+    // Auxiliary particle filter.  Resampling probabilities mix the
+    // predictive weights with the particle weights so that no particle
+    // with positive weight is excluded from resampling.
+
+    static final double LOOK_AHEAD_DEFENSIVE_WEIGHT = 0.1;
+
+    // Largest relative change in the particle state allowed within a
+    // single chemical Langevin step.
+    static final double LANGEVIN_EPSILON = 0.03;
+
+    boolean useLookAhead;
+    double[] lookAheadWeights;
 
     List<EpidemicState> recordedTrajectoryStates;
     EpidemicTrajectory storedTrajectory;
-    List<List<EpidemicState>> particleTrajectories, particleTrajectoriesNew;
+    ParticlePathStorage particlePaths; // null unless recording trajectories
+    boolean trajectoriesRequired;
+
+    // Ensemble checkpoints, double buffered so that the checkpoints of the
+    // current MCMC state survive the evaluation of a rejected proposal.
+    // Slot k holds the ensemble following observed event
+    // (k+1)*checkpointInterval - 1.
+
+    int checkpointInterval;
+    EnsembleCheckpoint[][] checkpoints; // null unless checkpointing
+    int[] activeCheckpoints, storedCheckpoints;
+    final FilterInputRecord[] inputRecords = {
+            new FilterInputRecord(), new FilterInputRecord()};
+    int activeInputRecord, storedInputRecord;
+
+    // Lower bound on the density estimate of interest to the caller, and
+    // upper bounds on the log density contributed by each suffix of the
+    // observed event list.  When the filter is abandoned, logPUpperBound
+    // holds the bound on the estimate which fell below the threshold.
+
+    DoubleSupplier logPThreshold;
+    double activeLogPThreshold = Double.NEGATIVE_INFINITY;
+    double[] maxRemainingLogP;
+    boolean abandoned;
+    double logPUpperBound;
 
 
     public SMCTreeDensity() {
@@ -116,70 +357,681 @@ public class SMCTreeDensity extends TreeDistribution {
     public void initAndValidate() {
         model = modelInput.get();
 
-        if (treeInput.get() == null && incidenceParamInput.get() == null)
+        binnedIncidence = binnedIncidenceInput.get();
+
+        if (treeInput.get() == null && incidenceParamInput.get() == null
+                && binnedIncidence == null)
             throw new IllegalArgumentException("Must specify at least one of tree or incidence.");
 
+        if (binnedIncidence != null
+                && (incidenceParamInput.get() != null || incidenceDataInput.get() != null))
+            throw new IllegalArgumentException("Binned incidence cannot be " +
+                    "combined with incidenceParameter or incidenceData.");
+
+        if (binnedIncidence != null)
+            validateBinnedIncidenceModel();
+
         observedEventsList = new ObservedEventsList(treeInput.get(),
                 incidenceParamInput.get(), incidenceDataInput.get(),
-                model, finalTreeSampleOffsetInput.get());
-
-        nParticles = nParticlesInput.get();
+                binnedIncidence, model, finalTreeSampleOffsetInput.get());
+
+        targetLogPVariance = targetLogPVarianceInput.get();
+        minParticles = minParticlesInput.get();
+        maxParticles = maxParticlesInput.get();
+        adaptationInterval = adaptationIntervalInput.get();
+        varianceReplicates = varianceReplicatesInput.get();
+        if (targetLogPVariance != null) {
+            if (!(targetLogPVariance > 0.0))
+                throw new IllegalArgumentException("targetLogPVariance must be positive.");
+            if (minParticles < 1 || maxParticles < minParticles)
+                throw new IllegalArgumentException("Must have 1 <= minParticles <= maxParticles.");
+            if (adaptationInterval < 1)
+                throw new IllegalArgumentException("adaptationInterval must be at least 1.");
+            if (varianceReplicates < 2)
+                throw new IllegalArgumentException("varianceReplicates must be at least 2.");
+        }
+        nEvaluations = 0;
 
         useTauLeaping = useTauLeapingInput.get();
         epsilon = epsilonInput.get();
+        leapingAlgorithm = leapingAlgorithmInput.get();
         minLeapCount = minLeapCountInput.get();
         resampThresh = resampThreshInput.get();
         relStdThresh = relStdThreshInput.get();
+        cleThresh = cleThreshInput.get();
+        if (cleThresh < 0.0)
+            throw new IllegalArgumentException("cleThresh must be non-negative.");
+
+        nThreads = nThreadsInput.get() != null
+                ? nThreadsInput.get()
+                : ProgramStatus.m_nThreads;
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be at least 1.");
+
+        initThreadPool();
+
+        recordedTrajectoryStates = new ArrayList<>();
+        if (recordTrajectoriesInput.get() != null && recordTrajectoriesInput.get())
+            trajectoriesRequired = true;
+
+        useLookAhead = useLookAheadInput.get();
+
+        checkpointInterval = checkpointIntervalInput.get();
+        if (checkpointInterval < 0)
+            throw new IllegalArgumentException("checkpointInterval must be non-negative.");
+
+        auxiliaryRandoms = auxiliaryRandomsInput.get();
+        if (auxiliaryRandoms != null)
+            initAuxiliaryRandoms(nParticlesInput.get());
+
+        allocateParticles(nParticlesInput.get());
+    }
+
+    /**
+     * Ensure that the model is one under which binned incidence can be
+     * evaluated.  Unsequenced samples are not simulated individually, so
+     * must not be removals.  When a tree is present, the sequencing
+     * probability determines which samples are accounted for by the bins
+     * and which by the tree.
+     */
+    private void validateBinnedIncidenceModel() {
+        if (model.psiSamplingVariableInput.get() == null)
+            throw new IllegalArgumentException("Binned incidence requires psi sampling.");
+
+        if (treeInput.get() != null && model.sequencingProbInput.get() == null)
+            throw new IllegalArgumentException("Binned incidence combined " +
+                    "with a tree requires a sequencing probability.");
+
+        Function removalProb = model.removalProbInput.get();
+        for (int i=0; i<removalProb.getDimension(); i++) {
+            if (removalProb.getArrayValue(i) > 0.0)
+                throw new IllegalArgumentException("Binned incidence requires " +
+                        "a removal probability of zero, as unsequenced " +
+                        "samples are not removed from the particle states.");
+        }
+    }
+
+    /**
+     * Select the pool used to propagate particles, replacing (and shutting
+     * down) any pool owned by this instance whose parallelism no longer
+     * matches nThreads.
+     */
+    private void initThreadPool() {
+        if (ownsThreadPool && nThreads == threadPool.getParallelism())
+            return;
+
+        if (ownsThreadPool)
+            threadPool.shutdown();
+
+        if (nThreads == 1) {
+            threadPool = null;
+            ownsThreadPool = false;
+        } else if (nThreads == ForkJoinPool.getCommonPoolParallelism()) {
+            threadPool = ForkJoinPool.commonPool();
+            ownsThreadPool = false;
+        } else {
+            threadPool = new ForkJoinPool(nThreads);
+            ownsThreadPool = true;
+        }
+    }
+
+    /**
+     * Set up auxiliary variable storage, resizing and initializing the
+     * auxiliary parameter if necessary.
+     *
+     * @param nParticles number of particles
+     */
+    private void initAuxiliaryRandoms(int nParticles) {
+        if (targetLogPVariance != null)
+            throw new IllegalArgumentException("Particle count adaptation " +
+                    "cannot be used together with auxiliary randoms.");
+
+        auxiliaryRandomsPerParticle = auxiliaryRandomsPerParticleInput.get();
+        if (auxiliaryRandomsPerParticle < 1)
+            throw new IllegalArgumentException("auxiliaryRandomsPerParticle must be at least 1.");
+
+        // At most one resampling step per observed event.
+        int nResamplingRandoms = observedEventsList.getEventCount();
+
+        int dim = nParticles*auxiliaryRandomsPerParticle + nResamplingRandoms;
+        if (auxiliaryRandoms.getDimension() != dim) {
+            auxiliaryRandoms.setDimension(dim);
+            for (int i=0; i<dim; i++)
+                auxiliaryRandoms.setValue(i, Randomizer.nextGaussian());
+        }
+
+        auxiliaryValues = new double[dim];
+        auxiliaryCursors = new int[nParticles];
+        resamplingCursor = new int[1];
+        resamplingStream = new AuxiliaryRandomStream(auxiliaryValues,
+                nParticles*auxiliaryRandomsPerParticle, nResamplingRandoms,
+                resamplingCursor, new SplittableRandomStream[] {resamplingRandomStream});
+
+        sortKeys = new long[nParticles];
+        sortOrder = new int[nParticles];
+        sortedAncestors = new int[nParticles];
+        sortedWeights = new double[nParticles];
+    }
+
+    /**
+     * Allocate storage for the given number of particles.
+     *
+     * @param nParticles number of particles
+     */
+    private void allocateParticles(int nParticles) {
+        this.nParticles = nParticles;
+
+        if (workspaces != null)
+            collectWorkspaceCounters();
+
+        int nBlocks = nThreads > 1
+                ? Math.min(nParticles, nThreads*BLOCKS_PER_THREAD)
+                : 1;
+        blockSize = (nParticles + nBlocks - 1)/nBlocks;
+        workspaces = new ParticleWorkspace[(nParticles + blockSize - 1)/blockSize];
+
+        particleStreams = new SplittableRandomStream[nParticles];
+        for (int p=0; p<nParticles; p++)
+            particleStreams[p] = new SplittableRandomStream(0);
+
+        for (int b=0; b<workspaces.length; b++) {
+            workspaces[b] = new ParticleWorkspace();
+            workspaces[b].leapSampler = new LeapSampler(leapingAlgorithm);
+            if (auxiliaryRandoms != null) {
+                workspaces[b].auxiliaryStream = new AuxiliaryRandomStream(auxiliaryValues,
+                        0, auxiliaryRandomsPerParticle, auxiliaryCursors,
+                        particleStreams);
+                workspaces[b].random = workspaces[b].auxiliaryStream;
+            } else {
+                workspaces[b].particleStream = new ParticleRandomStream(particleStreams);
+                workspaces[b].random = workspaces[b].particleStream;
+            }
+        }
 
         particleWeights = new double[nParticles];
         logParticleWeights = new double[nParticles];
-        particleStates = new EpidemicState[nParticles];
-        particleStatesNew = new EpidemicState[nParticles];
+        particles = new ParticleEnsemble(nParticles);
+        particlesNew = new ParticleEnsemble(nParticles);
+        ancestors = new int[nParticles];
+        resampler = new ParticleResampler(resamplerInput.get(), nParticles,
+                metropolisStepsInput.get());
+
+        if (useLockstepLeaping()) {
+            infectionProps = new double[nParticles];
+            recoveryProps = new double[nParticles];
+            samplingProps = new double[nParticles];
+        }
 
-        recordedTrajectoryStates = new ArrayList<>();
-        particleTrajectories = new ArrayList<>();
-        particleTrajectoriesNew = new ArrayList<>();
+        lookAheadWeights = useLookAhead ? new double[nParticles] : null;
 
-        for (int p=0; p<nParticles; p++) {
-            particleTrajectories.add(new ArrayList<>());
-            particleTrajectoriesNew.add(new ArrayList<>());
+        particlePaths = trajectoriesRequired
+                ? new ParticlePathStorage(nParticles)
+                : null;
 
-            particleStates[p] = new EpidemicState();
-            particleStatesNew[p] = new EpidemicState();
+        allocateCheckpoints();
+
+        exactDensity = canUseExactDensity()
+                ? new BirthDeathSkylineDensity()
+                : null;
+    }
+
+    /**
+     * @return true if the tree density can be computed exactly, which is
+     * the case for birth-death models conditioned only on a tree.
+     */
+    private boolean canUseExactDensity() {
+        return useExactBirthDeathInput.get()
+                && model instanceof BirthDeathModel
+                && treeInput.get() != null
+                && incidenceParamInput.get() == null
+                && incidenceDataInput.get() == null
+                && binnedIncidenceInput.get() == null
+                && model.psiSamplingVariableInput.get() != null
+                && model.sequencingProbInput.get() == null
+                && !trajectoriesRequired;
+    }
+
+    /**
+     * Allocate (empty) checkpoint slots, discarding any existing
+     * checkpoints.  Checkpoint buffers themselves are allocated when first
+     * written.
+     */
+    private void allocateCheckpoints() {
+        if (checkpointInterval == 0 || trajectoriesRequired) {
+            checkpoints = null;
+            return;
         }
+
+        // No checkpoint is needed after the final observed event.
+        int nSlots = (observedEventsList.getEventCount() - 1)/checkpointInterval;
+
+        checkpoints = new EnsembleCheckpoint[nSlots][2];
+        activeCheckpoints = new int[nSlots];
+        storedCheckpoints = new int[nSlots];
     }
 
     public double calculateLogP() {
+        diagnostics.reset();
+
+        abandoned = false;
+
+        if (exactDensity != null) {
+            logPThreshold = null;
+            logP = calculateExactLogP();
+            diagnostics.finish();
+
+            return logP;
+        }
+
+        if (targetLogPVariance != null) {
+            nEvaluations += 1;
+            if (nEvaluations % adaptationInterval == 0)
+                adaptParticleCount();
+        }
+
+        activeLogPThreshold = logPThreshold != null
+                ? logPThreshold.getAsDouble()
+                : Double.NEGATIVE_INFINITY;
+        logPThreshold = null;
+
+        double result = runFilter(findRestartCheckpoint());
+
+        activeLogPThreshold = Double.NEGATIVE_INFINITY;
+
+        collectWorkspaceCounters();
+        diagnostics.finish();
+
+        return result;
+    }
+
+    /**
+     * @return exact log tree density under a birth-death model
+     */
+    private double calculateExactLogP() {
+        // First tree event occurs before origin
+        if (observedEventsList.getEventTime(0) < 0)
+            return Double.NEGATIVE_INFINITY;
+
+        return exactDensity.calculateLogP(model, model.getSnapshot(), observedEventsList);
+    }
+
+    /**
+     * Add the propagation counters accumulated by the workspaces to the
+     * diagnostics and reset them.
+     */
+    private void collectWorkspaceCounters() {
+        for (ParticleWorkspace workspace : workspaces) {
+            diagnostics.ssaSteps += workspace.ssaSteps;
+            diagnostics.tauLeaps += workspace.tauLeaps;
+            diagnostics.langevinLeaps += workspace.langevinLeaps;
+            diagnostics.nanWeights += workspace.nanWeights;
+            workspace.ssaSteps = 0;
+            workspace.tauLeaps = 0;
+            workspace.langevinLeaps = 0;
+            workspace.nanWeights = 0;
+        }
+    }
+
+    /**
+     * @return counters describing the most recent call to calculateLogP(),
+     * including any replicate filter runs used to adapt the particle count
+     */
+    public SMCDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Provide a lower bound on the log density estimate below which the
+     * next estimate is of no interest, e.g. the acceptance threshold of a
+     * Metropolis-Hastings step.  The bound is requested once the next
+     * call to calculateLogP() starts, which then abandons the particle
+     * filter and returns negative infinity as soon as its estimate is
+     * guaranteed to fall below the bound.  The bound applies to that call
+     * only.  EarlyRejectionMCMC sets this before evaluating each proposed
+     * state.
+     *
+     * @param threshold supplier of lower bound on log density, or null
+     *                  for none
+     */
+    public void setLogPThreshold(DoubleSupplier threshold) {
+        logPThreshold = threshold;
+    }
+
+    /**
+     * @return true if the most recent call to calculateLogP() abandoned
+     * the particle filter because its estimate could not reach the
+     * threshold
+     */
+    public boolean wasAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * @return upper bound on the log density estimate which the most
+     * recent call to calculateLogP() abandoned (see wasAbandoned())
+     */
+    public double getLogPUpperBound() {
+        return logPUpperBound;
+    }
+
+    /**
+     * Compute upper bounds on the log density contributed by the observed
+     * events from each index onwards.  Propagation between observed events
+     * contributes only non-positive terms, so the bounds are built from
+     * the maximum rates and prevalence allowed by the model.
+     *
+     * @param observedEvents table of observed events
+     */
+    private void computeMaxRemainingLogP(ObservedEventsList observedEvents) {
+        int nEvents = observedEvents.getEventCount();
+        if (maxRemainingLogP == null || maxRemainingLogP.length != nEvents+1)
+            maxRemainingLogP = new double[nEvents+1];
+
+        double maxLogCoalescenceProb = Math.log(model.getMaxPairCoalescenceRate());
+        double maxLogSampleProb = model.psiSamplingVariableInput.get() != null
+                ? Math.log((model.getMaxIntervalRate(EpidemicEvent.PSI_SAMPLE_REMOVE)
+                        + model.getMaxIntervalRate(EpidemicEvent.PSI_SAMPLE_NOREMOVE))
+                        * Math.max(1.0, model.getMaxPrevalence()))
+                : 0.0;
+
+        maxRemainingLogP[nEvents] = 0.0;
+        for (int i=nEvents-1; i>=0; i--) {
+            int k = observedEvents.getEventMultiplicity(i);
+
+            double maxEventLogP;
+            switch (observedEvents.getEventType(i)) {
+                case OBSERVATION_END:
+                    maxEventLogP = 0.0;
+                    break;
+
+                case COALESCENCE:
+                    maxEventLogP = k*maxLogCoalescenceProb;
+                    break;
+
+                case INCIDENCE_BIN_START:
+                case INCIDENCE_BIN_END:
+                    // Count probabilities never exceed one
+                    maxEventLogP = 0.0;
+                    break;
+
+                default:
+                    // Psi sampling or (conservatively) rho sampling
+                    maxEventLogP = Math.max(k*maxLogSampleProb,
+                            GammaFunction.lnGamma(1 + k));
+            }
+
+            maxRemainingLogP[i] = maxRemainingLogP[i+1] + maxEventLogP;
+        }
+    }
+
+    /**
+     * Compute an upper bound on the final density estimate.  The
+     * contribution of the particle weights accumulated since the last
+     * resampling step is bounded by the log of their mean.
+     *
+     * @param eventIdx index of most recent observed event
+     * @return upper bound on log density estimate
+     */
+    private double getLogPUpperBound(int eventIdx) {
+        if (maxRemainingLogP[eventIdx+1] == Double.POSITIVE_INFINITY)
+            return Double.POSITIVE_INFINITY;
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(logParticleWeights[p], maxLogWeight);
+
+        double sumOfScaledWeights = 0.0;
+        for (int p=0; p<nParticles; p++)
+            sumOfScaledWeights += Math.exp(logParticleWeights[p] - maxLogWeight);
+
+        return logP + Math.log(sumOfScaledWeights/nParticles) + maxLogWeight
+                + maxRemainingLogP[eventIdx+1];
+    }
+
+    /**
+     * Find the latest checkpoint from which the filter can be restarted.
+     * The model and observed events must be unchanged up to and including
+     * the observed event at which the checkpoint was taken.
+     *
+     * @return index of checkpoint slot, or -1 if the filter must be run
+     * from the origin
+     */
+    private int findRestartCheckpoint() {
+        if (checkpoints == null)
+            return -1;
+
+        // Changes to the auxiliary variables affect the entire calculation.
+        if (auxiliaryRandoms != null && auxiliaryRandoms.somethingIsDirty())
+            return -1;
+
+        // As do changes to the reporting or noise parameters of binned
+        // incidence.
+        if (binnedIncidence != null && binnedIncidence.isDirtyCalculation())
+            return -1;
+
+        FilterInputRecord inputRecord = inputRecords[activeInputRecord];
+        int firstObservedEventChange = inputRecord.getFirstObservedEventChange(observedEventsList);
+        double modelChangeTime = inputRecord.getEarliestModelChangeTime(model);
+
+        for (int k=checkpoints.length-1; k>=0; k--) {
+            int eventIdx = getCheckpointEventIdx(k);
+            if (eventIdx >= firstObservedEventChange
+                    || !(observedEventsList.getEventTime(eventIdx) < modelChangeTime))
+                continue;
+
+            EnsembleCheckpoint checkpoint = checkpoints[k][activeCheckpoints[k]];
+            if (checkpoint != null && checkpoint.isValid)
+                return k;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param slot checkpoint slot index
+     * @return index of observed event following which checkpoint is taken
+     */
+    private int getCheckpointEventIdx(int slot) {
+        return (slot+1)*checkpointInterval - 1;
+    }
+
+    /**
+     * Record the inputs of the filter run about to begin and invalidate
+     * the checkpoints it will replace.  Checkpoints belonging to the
+     * stored MCMC state are never overwritten.
+     *
+     * @param restartSlot slot from which the run is restarted, or -1
+     */
+    private void prepareCheckpoints(int restartSlot) {
+        activeInputRecord = 1 - storedInputRecord;
+        inputRecords[activeInputRecord].record(model, observedEventsList);
+
+        for (int k=restartSlot+1; k<checkpoints.length; k++) {
+            activeCheckpoints[k] = 1 - storedCheckpoints[k];
+            if (checkpoints[k][activeCheckpoints[k]] != null)
+                checkpoints[k][activeCheckpoints[k]].isValid = false;
+        }
+    }
+
+    /**
+     * Save the filter state following the given observed event, if a
+     * checkpoint is due.
+     *
+     * @param eventIdx index of observed event
+     */
+    private void saveCheckpoint(int eventIdx) {
+        if ((eventIdx+1) % checkpointInterval != 0)
+            return;
+
+        int k = (eventIdx+1)/checkpointInterval - 1;
+        if (k >= checkpoints.length)
+            return;
+
+        int buffer = activeCheckpoints[k];
+        if (checkpoints[k][buffer] == null)
+            checkpoints[k][buffer] = new EnsembleCheckpoint(nParticles, auxiliaryRandoms != null);
+
+        checkpoints[k][buffer].save(particles, logParticleWeights, logP,
+                auxiliaryCursors, auxiliaryRandoms != null ? resamplingCursor[0] : 0);
+    }
+
+    /**
+     * Estimate the variance of the log-likelihood estimate at the current
+     * state using independent replicate filter runs, and resize the
+     * ensemble so that this variance approaches its target value.  Uses
+     * the fact that this variance is approximately inversely proportional
+     * to the number of particles.
+     */
+    private void adaptParticleCount() {
+        double sum = 0.0, sumOfSquares = 0.0;
+        int nFailures = 0;
+        for (int r=0; r<varianceReplicates; r++) {
+            double replicateLogP = runFilter(-1);
+            if (replicateLogP == Double.NEGATIVE_INFINITY) {
+                nFailures += 1;
+            } else {
+                sum += replicateLogP;
+                sumOfSquares += replicateLogP*replicateLogP;
+            }
+        }
+
+        // Nothing to learn if the state has zero likelihood.
+        if (nFailures == varianceReplicates)
+            return;
+
+        int newParticleCount;
+        if (nFailures > 0) {
+            // Some replicates failed: variance is effectively infinite.
+            newParticleCount = 2*nParticles;
+        } else {
+            double mean = sum/varianceReplicates;
+            double variance = (sumOfSquares - varianceReplicates*mean*mean)/(varianceReplicates-1);
+            newParticleCount = (int)Math.ceil(nParticles*Math.max(variance, 0.0)/targetLogPVariance);
+        }
+
+        newParticleCount = Math.max(minParticles, Math.min(maxParticles, newParticleCount));
+        if (newParticleCount != nParticles)
+            allocateParticles(newParticleCount);
+    }
+
+    /**
+     * @return number of particles currently in use
+     */
+    public int getParticleCount() {
+        return nParticles;
+    }
+
+    /**
+     * Run particle filter.
+     *
+     * @param restartSlot checkpoint slot from which to restart the filter,
+     *                    or -1 to run the filter from the origin
+     * @return estimate of log tree density
+     */
+    private double runFilter(int restartSlot) {
 
         logP = 0.0;
 
         recordedTrajectoryStates.clear();
 
+        // Propagation reads the compiled model snapshot rather than
+        // querying the model directly.
+        modelSnapshot = model.getSnapshot();
+
+        if (binnedIncidence != null) {
+            unsequencedFraction = model.sequencingProbInput.get() != null
+                    ? 1.0 - model.sequencingProbInput.get().getArrayValue()
+                    : 1.0;
+            psiConditioningFactor = 1.0 - unsequencedFraction;
+        } else {
+            unsequencedFraction = 0.0;
+            psiConditioningFactor = 1.0;
+        }
+
         // Early exit if first tree event occurs before origin.
-        if (observedEventsList.getEventList().get(0).time < 0) {
+        if (observedEventsList.getEventTime(0) < 0) {
             logP = Double.NEGATIVE_INFINITY;
             return logP;
         }
 
-        // Initialize particles and trajectory storage
-        for (int p = 0; p < nParticles; p++) {
-            particleStates[p].assignFrom(model.getInitialState());
-            logParticleWeights[p] = 0.0;
+        // Load auxiliary variables
+        if (auxiliaryRandoms != null) {
+            for (int i=0; i<auxiliaryValues.length; i++)
+                auxiliaryValues[i] = auxiliaryRandoms.getArrayValue(i);
+            Arrays.fill(auxiliaryCursors, 0);
+            resamplingCursor[0] = 0;
+        }
+
+        int firstEventIdx;
 
-            particleTrajectoriesNew.get(p).clear();
-            particleTrajectories.get(p).clear();
-            particleTrajectories.get(p).add(model.getInitialState());
+        if (restartSlot >= 0) {
+            // Restart from checkpoint
+            EnsembleCheckpoint checkpoint = checkpoints[restartSlot][activeCheckpoints[restartSlot]];
+            logP = checkpoint.load(particles, logParticleWeights, auxiliaryCursors);
+            if (auxiliaryRandoms != null)
+                resamplingCursor[0] = checkpoint.resamplingCursor;
+            firstEventIdx = getCheckpointEventIdx(restartSlot) + 1;
+        } else {
+            // Initialize particles and trajectory storage
+            particles.setAll(model.getInitialState());
+            if (particlePaths != null)
+                particlePaths.reset(model.getInitialState());
+            for (int p = 0; p < nParticles; p++)
+                logParticleWeights[p] = 0.0;
+            firstEventIdx = 0;
+        }
+
+        // Split off fresh streams for each particle and the resampler
+        rootStream.setSeed(Randomizer.nextLong());
+        for (int p=0; p<nParticles; p++)
+            particleStreams[p].splitFrom(rootStream);
+        resamplingRandomStream.splitFrom(rootStream);
+
+        diagnostics.resetFounders(nParticles);
+        deadParticleCount = 0;
+        for (int p = 0; p < nParticles; p++) {
+            if (logParticleWeights[p] == Double.NEGATIVE_INFINITY)
+                deadParticleCount += 1;
         }
 
-        for (ObservedEvent observedEvent : observedEventsList.getEventList()) {
-            if (!propagateEnsemble(observedEvent)) {
+        if (checkpoints != null)
+            prepareCheckpoints(restartSlot);
+
+        boolean useThreshold = activeLogPThreshold > Double.NEGATIVE_INFINITY;
+        if (useThreshold)
+            computeMaxRemainingLogP(observedEventsList);
+
+        int nObservedEvents = observedEventsList.getEventCount();
+        for (int i=firstEventIdx; i<nObservedEvents; i++) {
+            observedEventsList.getEvent(i, nextEventCopy);
+            if (i+1 < nObservedEvents)
+                observedEventsList.getEvent(i+1, followingEventCopy);
+
+            if (!propagateEnsemble(nextEventCopy,
+                    i+1 < nObservedEvents ? followingEventCopy : null)) {
                 logP = Double.NEGATIVE_INFINITY;
                 return logP;
             }
+
+            if (checkpoints != null)
+                saveCheckpoint(i);
+
+            if (useThreshold) {
+                double upperBound = getLogPUpperBound(i);
+                if (upperBound < activeLogPThreshold) {
+                    abandoned = true;
+                    logPUpperBound = upperBound;
+                    logP = Double.NEGATIVE_INFINITY;
+                    return logP;
+                }
+            }
         }
 
         // Choose arbitrary trajectory to log.
-        recordedTrajectoryStates.addAll(particleTrajectories.get(0));
+        if (particlePaths != null)
+            particlePaths.getPath(0, recordedTrajectoryStates);
+
+        diagnostics.countUniqueAncestors();
 
         return logP;
     }
@@ -188,78 +1040,568 @@ public class SMCTreeDensity extends TreeDistribution {
      * Propagate particle ensemble up to chosen observed event.
      *
      * @param nextObservedEvent Next observed event.
+     * @param followingObservedEvent Observed event following the next
+     *                               observed event (null if none).
      *
      * @return true if propagation succeeds, false if it fails due to ensemble extinction
      */
-    private boolean propagateEnsemble(ObservedEvent nextObservedEvent) {
+    private boolean propagateEnsemble(ObservedEvent nextObservedEvent,
+                                      ObservedEvent followingObservedEvent) {
+
+            // Update particles
+            if (threadPool != null)
+                threadPool.invoke(new PropagationTask(0, workspaces.length, nextObservedEvent));
+            else
+                propagateBlock(0, nextObservedEvent);
 
-            // Update particles and record max log weight
+            // Record max log weight and count particles with zero weight
             double maxLogWeight = Double.NEGATIVE_INFINITY;
+            int nDead = 0;
             for (int p = 0; p < nParticles; p++) {
-
-                if (logParticleWeights[p] > Double.NEGATIVE_INFINITY)
-                    logParticleWeights[p] += updateParticle(particleStates[p], particleTrajectories.get(p),
-                            nextObservedEvent);
-
                 maxLogWeight = Math.max(logParticleWeights[p], maxLogWeight);
+                if (logParticleWeights[p] == Double.NEGATIVE_INFINITY)
+                    nDead += 1;
             }
 
+            diagnostics.deadParticles += nDead - deadParticleCount;
+            deadParticleCount = nDead;
 
             // Compute mean of weights scaled relative to max log weight
-            double sumOfScaledWeights = 0, sumOfSquaredScaledWeights = 0;
+            double sumOfScaledWeights = 0;
             for (int p=0; p<nParticles; p++) {
                 particleWeights[p] = Math.exp(logParticleWeights[p] - maxLogWeight);
                 sumOfScaledWeights += particleWeights[p];
-                sumOfSquaredScaledWeights += particleWeights[p]*particleWeights[p];
             }
 
             if (!(sumOfScaledWeights > 0.0)) {
                 return false;
             }
 
-            double Neff = sumOfScaledWeights*sumOfScaledWeights/sumOfSquaredScaledWeights;
+            // Normalize weights
+            for (int i = 0; i < nParticles; i++)
+                particleWeights[i] = particleWeights[i] / sumOfScaledWeights;
+
+            // Weights used for resampling anticipate the following event
+            boolean lookAhead = useLookAhead && followingObservedEvent != null;
+            if (lookAhead)
+                applyLookAhead(followingObservedEvent);
+
+            double sumOfSquaredWeights = 0;
+            for (int p=0; p<nParticles; p++)
+                sumOfSquaredWeights += particleWeights[p]*particleWeights[p];
+
+            double Neff = 1.0/sumOfSquaredWeights;
+            diagnostics.recordESS(Neff);
 
             if (Neff < resampThresh*nParticles || nextObservedEvent.type == ObservedEvent.Type.OBSERVATION_END) {
                 // Update marginal likelihood estimate
                 logP += Math.log(sumOfScaledWeights / nParticles) + maxLogWeight;
 
-                // Normalize weights
-                for (int i = 0; i < nParticles; i++)
-                    particleWeights[i] = particleWeights[i] / sumOfScaledWeights;
-
-                resampleParticles();
+                resampleParticles(lookAhead);
             }
 
             return true;
     }
 
+    /**
+     * Propagate a single block of particles up to the chosen observed event.
+     *
+     * @param block index of block
+     * @param nextObservedEvent next observed event
+     */
+    private void propagateBlock(int block, ObservedEvent nextObservedEvent) {
+        ParticleWorkspace workspace = workspaces[block];
+
+        int start = block*blockSize;
+        int end = Math.min(nParticles, (block+1)*blockSize);
+
+        if (useLockstepLeaping()) {
+            propagateBlockLockstep(start, end, nextObservedEvent, workspace);
+            return;
+        }
+
+        EpidemicState particleState = workspace.state;
+        for (int p = start; p < end; p++) {
+            if (logParticleWeights[p] > Double.NEGATIVE_INFINITY) {
+                selectRandomStream(p, workspace);
+                particles.get(p, particleState);
+                logParticleWeights[p] += updateParticle(particleState, p,
+                        nextObservedEvent, workspace);
+                particles.set(p, particleState);
+            }
+        }
+    }
+
+    /**
+     * @return true if particles are advanced in lockstep by fixed-size tau
+     * leaps.  R-leaps may end early, so cannot be taken in lockstep.
+     */
+    private boolean useLockstepLeaping() {
+        return useTauLeaping && epsilon == 0.0
+                && leapingAlgorithm != LeapSampler.Type.R_LEAPING;
+    }
+
+    /**
+     * Propagate a block of particles up to the chosen observed event using
+     * fixed-size tau leaps.  Since every leap has the same size, all living
+     * particles in the block share the same time and model interval, so each
+     * leap is applied to the whole block at once: propensities are computed
+     * in a single pass over the ensemble arrays, and model events are applied
+     * to all particles together.  Particles whose propensities are too small
+     * to justify a leap are advanced to the end of the leap using the SSA.
+     *
+     * @param start index of first particle in block
+     * @param end index one past the last particle in block
+     * @param nextObservedEvent next observed event
+     * @param workspace scratch space owned by the calling thread
+     */
+    private void propagateBlockLockstep(int start, int end,
+                                        ObservedEvent nextObservedEvent,
+                                        ParticleWorkspace workspace) {
+
+        int first = start;
+        while (first < end && logParticleWeights[first] == Double.NEGATIVE_INFINITY)
+            first += 1;
+
+        if (first == end)
+            return;
+
+        EpidemicState particleState = workspace.state;
+        double t = particles.time[first];
+        int modelIntervalIdx = particles.modelIntervalIdx[first];
+
+        int lineages = nextObservedEvent.lineages;
+        double nextObservedEventTime = nextObservedEvent.time;
+        double maxLeapSize = model.getOrigin()/minLeapCount;
+
+        while (true) {
+            double nextModelEventTime = modelSnapshot.getNextEventTime(modelIntervalIdx);
+
+            boolean crossesModelEvent = nextModelEventTime < nextObservedEventTime
+                    && t + maxLeapSize > nextModelEventTime;
+            boolean reachesObservedEvent = !crossesModelEvent
+                    && t + maxLeapSize > nextObservedEventTime;
+
+            double leapEnd;
+            if (crossesModelEvent)
+                leapEnd = nextModelEventTime;
+            else if (reachesObservedEvent)
+                leapEnd = nextObservedEventTime;
+            else
+                leapEnd = t + maxLeapSize;
+
+            double trueDt = Math.min(maxLeapSize, Math.min(nextModelEventTime, nextObservedEventTime) - t);
+
+            double propThresh = Double.POSITIVE_INFINITY;
+            if (trueDt > 0.0 && relStdThresh > 0.0) {
+                if (relStdThresh < 1.0)
+                    propThresh = 1.0/trueDt/relStdThresh/relStdThresh;
+                else
+                    propThresh = 0.0;
+            }
+
+            model.calculatePropensities(modelSnapshot, particles.S, particles.I,
+                    modelIntervalIdx, start, end, infectionProps, recoveryProps, samplingProps);
+
+            for (int p = start; p < end; p++) {
+                if (logParticleWeights[p] == Double.NEGATIVE_INFINITY)
+                    continue;
+
+                double I = particles.I[p];
+                double infectionProp = infectionProps[p];
+                double unobservedInfectProp = I > 0
+                        ? infectionProp *(1.0 - lineages * (lineages - 1) / I / (I + 1))
+                        : 0.0;
+                double observedInfectProp = infectionProp - unobservedInfectProp;
+
+                double allowedRecovProp, forbiddenRecovProp;
+                if (I > lineages) {
+                    allowedRecovProp = recoveryProps[p];
+                    forbiddenRecovProp = 0.0;
+                } else {
+                    allowedRecovProp = 0.0;
+                    forbiddenRecovProp = recoveryProps[p];
+                }
+
+                double allowedEventProp = unobservedInfectProp + allowedRecovProp;
+
+                selectRandomStream(p, workspace);
+                particles.get(p, particleState);
+
+                if (getLangevinStepSize(particleState, unobservedInfectProp, allowedRecovProp) > 0.0) {
+                    logParticleWeights[p] += propagateParticleLangevin(particleState,
+                            p, lineages, leapEnd, workspace);
+
+                    // Propensities may become too small for the Langevin
+                    // approximation before the end of the leap.
+                    if (logParticleWeights[p] > Double.NEGATIVE_INFINITY
+                            && particleState.time < leapEnd)
+                        logParticleWeights[p] += propagateParticleSSA(particleState,
+                                p, lineages, leapEnd, workspace);
+
+                } else if (maxLeapSize < 10.0/allowedEventProp) {
+                    logParticleWeights[p] += propagateParticleSSA(particleState,
+                            p, lineages, leapEnd, workspace);
+
+                } else {
+                    particleState.algorithm = EpidemicState.Algorithm.TL;
+                    workspace.tauLeaps += 1;
+
+                    logParticleWeights[p] += -trueDt * (psiConditioningFactor*samplingProps[p]
+                            + observedInfectProp + forbiddenRecovProp);
+                    particleState.samplingPropensityIntegral += trueDt*samplingProps[p];
+
+                    int nInfections, nRecoveries;
+                    if (leapingAlgorithm == LeapSampler.Type.BINOMIAL) {
+                        workspace.leapSampler.leap(trueDt, unobservedInfectProp, allowedRecovProp,
+                                model.getMaxInfections(particleState), I - lineages,
+                                workspace.random);
+                        nInfections = workspace.leapSampler.getInfections();
+                        nRecoveries = workspace.leapSampler.getRemovals();
+                    } else {
+                        if (unobservedInfectProp<propThresh)
+                            nInfections = (int)workspace.random.nextPoisson(trueDt*unobservedInfectProp);
+                        else
+                            nInfections = (int)Math.round(trueDt*unobservedInfectProp);
+
+                        if (allowedEventProp < propThresh)
+                            nRecoveries = (int)workspace.random.nextPoisson(trueDt*allowedRecovProp);
+                        else
+                            nRecoveries = (int)Math.round(trueDt*allowedEventProp);
+                    }
+
+                    model.incrementState(particleState, EpidemicEvent.INFECTION, nInfections);
+                    model.incrementState(particleState, EpidemicEvent.RECOVERY, nRecoveries);
+
+                    if (!particleState.isValid() || particleState.I < lineages)
+                        logParticleWeights[p] = Double.NEGATIVE_INFINITY;
+
+                    particleState.time = leapEnd;
+                }
+
+                particles.set(p, particleState);
+            }
+
+            if (crossesModelEvent) {
+                boolean isRhoSampling = modelSnapshot.isRhoSamplingEvent(modelIntervalIdx);
+                double logNoRhoSampleProb = Math.log(1.0-modelSnapshot.getRho(modelIntervalIdx));
+
+                for (int p = start; p < end; p++) {
+                    if (logParticleWeights[p] == Double.NEGATIVE_INFINITY)
+                        continue;
+
+                    // Probability that rho sampling produced no samples
+                    if (isRhoSampling)
+                        logParticleWeights[p] += particles.I[p]*logNoRhoSampleProb;
+
+                    particles.modelIntervalIdx[p] += 1;
+                }
+
+                modelIntervalIdx += 1;
+                t = nextModelEventTime;
+                continue;
+            }
+
+            // Stop here if we're at an observed event
+            if (reachesObservedEvent)
+                break;
+
+            t = leapEnd;
+
+            if (particlePaths != null) {
+                for (int p = start; p < end; p++) {
+                    if (logParticleWeights[p] > Double.NEGATIVE_INFINITY) {
+                        particles.get(p, particleState);
+                        particlePaths.add(p, particleState);
+                    }
+                }
+            }
+        }
+
+        // Include probability of tree event and increment state if necessary
+        for (int p = start; p < end; p++) {
+            if (logParticleWeights[p] > Double.NEGATIVE_INFINITY) {
+                selectRandomStream(p, workspace);
+                particles.get(p, particleState);
+                logParticleWeights[p] += completeObservedEvent(particleState, p,
+                        nextObservedEvent, workspace);
+                particles.set(p, particleState);
+            }
+        }
+    }
+
+    /**
+     * Advance a particle to the given time using the SSA.  The particle
+     * must not encounter any model or observed events before this time.
+     *
+     * @param particleState State of particle
+     * @param p index of particle, used to record its trajectory if required
+     * @param lineages number of tree lineages present during interval
+     * @param endTime time at which to stop simulating
+     * @param workspace scratch space owned by the calling thread
+     *
+     * @return log conditional prob of tree interval under trajectory
+     */
+    private double propagateParticleSSA(EpidemicState particleState, int p,
+                                        int lineages, double endTime,
+                                        ParticleWorkspace workspace) {
+        double conditionalLogP = 0;
+        double[] propensities = workspace.propensities;
+
+        particleState.algorithm = EpidemicState.Algorithm.SSA;
+
+        while (true) {
+            workspace.ssaSteps += 1;
+            calculatePropensities(particleState, workspace);
+
+            double infectionProp = propensities[EpidemicEvent.INFECTION];
+            double unobservedInfectProp = particleState.I > 0
+                    ? infectionProp *(1.0 - lineages * (lineages - 1) / particleState.I / (particleState.I + 1))
+                    : 0.0;
+            double observedInfectProp = infectionProp - unobservedInfectProp;
+
+            double allowedRecovProp, forbiddenRecovProp;
+            if (particleState.I > lineages) {
+                allowedRecovProp = propensities[EpidemicEvent.RECOVERY];
+                forbiddenRecovProp = 0.0;
+            } else {
+                allowedRecovProp = 0.0;
+                forbiddenRecovProp = propensities[EpidemicEvent.RECOVERY];
+            }
+
+            double allowedEventProp = unobservedInfectProp + allowedRecovProp;
+
+            double dt;
+            if (allowedEventProp > 0.0)
+                dt = workspace.random.nextExponential(allowedEventProp);
+            else
+                dt = Double.POSITIVE_INFINITY;
+
+            double trueDt = Math.min(dt, endTime - particleState.time);
+            double psiSamplingProp = getPsiSamplingPropensity(propensities);
+            conditionalLogP += -trueDt * (psiConditioningFactor*psiSamplingProp
+                    + observedInfectProp + forbiddenRecovProp);
+            particleState.samplingPropensityIntegral += trueDt*psiSamplingProp;
+
+            particleState.time += dt;
+
+            if (particleState.time > endTime)
+                break;
+
+            int eventType;
+            if (allowedEventProp * workspace.random.nextDouble() < unobservedInfectProp)
+                eventType = EpidemicEvent.INFECTION;
+            else
+                eventType = EpidemicEvent.RECOVERY;
+
+            model.incrementState(particleState, eventType, 1);
+
+            if (conditionalLogP == Double.NEGATIVE_INFINITY)
+                return Double.NEGATIVE_INFINITY;
+
+            if (particlePaths != null)
+                particlePaths.add(p, particleState);
+        }
+
+        particleState.time = endTime;
+
+        return conditionalLogP;
+    }
+
+    /**
+     * Fork-join task which propagates a range of particle blocks, splitting
+     * the range until it contains a single block.  Idle threads steal the
+     * remaining halves, which keeps all threads busy even when a few
+     * particles take many more simulation steps than the rest.
+     */
+    private class PropagationTask extends RecursiveAction {
+        private final int fromBlock, toBlock;
+        private final ObservedEvent nextObservedEvent;
+
+        PropagationTask(int fromBlock, int toBlock, ObservedEvent nextObservedEvent) {
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+            this.nextObservedEvent = nextObservedEvent;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock == 1) {
+                propagateBlock(fromBlock, nextObservedEvent);
+            } else {
+                int midBlock = (fromBlock + toBlock) >>> 1;
+                invokeAll(new PropagationTask(fromBlock, midBlock, nextObservedEvent),
+                        new PropagationTask(midBlock, toBlock, nextObservedEvent));
+            }
+        }
+    }
+
     /**
      * Resample particle states from weighted particle distribution.
+     *
+     * @param lookAhead whether the weights include look-ahead weights
      */
-    private void resampleParticles() {
+    private void resampleParticles(boolean lookAhead) {
+
+        // Select ancestors of new particles
+        if (auxiliaryRandoms != null)
+            resampleSorted();
+        else
+            resampler.resample(particleWeights, ancestors, resamplingRandomStream);
+
+        // Offspring of particles favoured by the look-ahead weights are
+        // down-weighted accordingly.
+        if (lookAhead) {
+            for (int p = 0; p < nParticles; p++)
+                logParticleWeights[p] = -Math.log(lookAheadWeights[ancestors[p]]);
+        } else {
+            for (int p = 0; p < nParticles; p++)
+                logParticleWeights[p] = 0;
+        }
+
+        // Copy selected particles and switch particles and particlesNew
+        particlesNew.assignFrom(particles, ancestors);
+        ParticleEnsemble tmpParticles = particles;
+        particles = particlesNew;
+        particlesNew = tmpParticles;
+
+        // Share ancestral paths with offspring
+        if (particlePaths != null)
+            particlePaths.resample(ancestors);
+
+        diagnostics.resample(ancestors);
+        deadParticleCount = 0;
+    }
+
+    /**
+     * Replace the normalized particle weights with resampling probabilities
+     * proportional to the product of each weight and a predictive estimate
+     * of the probability of the following observed event.  The ratio of
+     * each resampling probability to the corresponding weight is stored in
+     * lookAheadWeights.
+     *
+     * @param followingObservedEvent observed event following the current one
+     */
+    private void applyLookAhead(ObservedEvent followingObservedEvent) {
+        ParticleWorkspace workspace = workspaces[0];
+        EpidemicState particleState = workspace.state;
+
+        double maxLogLookAhead = Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < nParticles; p++) {
+            if (particleWeights[p] == 0.0) {
+                lookAheadWeights[p] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+
+            particles.get(p, particleState);
+            lookAheadWeights[p] = getLookAheadLogProb(particleState,
+                    followingObservedEvent, workspace);
+            maxLogLookAhead = Math.max(lookAheadWeights[p], maxLogLookAhead);
+        }
+
+        // Uninformative prediction: leave weights unchanged
+        if (maxLogLookAhead == Double.NEGATIVE_INFINITY) {
+            Arrays.fill(lookAheadWeights, 1.0);
+            return;
+        }
+
+        double sumOfPredictedWeights = 0.0;
+        for (int p = 0; p < nParticles; p++) {
+            lookAheadWeights[p] = Math.exp(lookAheadWeights[p] - maxLogLookAhead);
+            sumOfPredictedWeights += particleWeights[p]*lookAheadWeights[p];
+        }
 
-        // Sample particle with replacement
-        double[] tmpWeights = new double[nParticles];
-        System.arraycopy(particleWeights, 0, tmpWeights, 0, nParticles);
-        ReplacementSampler replacementSampler = new ReplacementSampler(tmpWeights);
         for (int p = 0; p < nParticles; p++) {
-            int srcIdx = replacementSampler.next();
-            particleStatesNew[p].assignFrom(particleStates[srcIdx]);
-            logParticleWeights[p] = 0;
+            lookAheadWeights[p] = (1.0 - LOOK_AHEAD_DEFENSIVE_WEIGHT)
+                    *lookAheadWeights[p]/sumOfPredictedWeights
+                    + LOOK_AHEAD_DEFENSIVE_WEIGHT;
+            particleWeights[p] *= lookAheadWeights[p];
+        }
+    }
+
+    /**
+     * Cheap approximation to the log probability of an observed event,
+     * obtained by holding the propensities of the current particle state
+     * fixed until the time of the event.
+     *
+     * @param particleState current particle state
+     * @param observedEvent observed event
+     * @param workspace scratch space
+     * @return approximate log probability
+     */
+    private double getLookAheadLogProb(EpidemicState particleState,
+                                       ObservedEvent observedEvent,
+                                       ParticleWorkspace workspace) {
+        calculatePropensities(particleState, workspace);
+        double[] propensities = workspace.propensities;
+
+        boolean psiSampling = model.psiSamplingVariableInput.get() != null;
+        double psiSamplingProp = propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
+                + propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+
+        double logProb = 0.0;
+        if (psiSampling)
+            logProb -= (observedEvent.time - particleState.time)*psiConditioningFactor*psiSamplingProp;
+
+        switch (observedEvent.type) {
+            case COALESCENCE:
+                logProb += observedEvent.multiplicity*Math.log(2.0*propensities[EpidemicEvent.INFECTION]
+                        / (particleState.I*(particleState.I + 1)));
+                break;
+
+            case LEAF:
+            case UNSEQUENCED_SAMPLE:
+                if (psiSampling)
+                    logProb += observedEvent.multiplicity*Math.log(psiSamplingProp);
+                break;
+
+            case SAMPLED_ANCESTOR:
+                if (psiSampling)
+                    logProb += observedEvent.multiplicity*Math.log(
+                            propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]/particleState.I);
+                break;
+
+            default:
+                break;
+        }
 
-            particleTrajectoriesNew.get(p).clear();
-            particleTrajectoriesNew.get(p).addAll(particleTrajectories.get(srcIdx));
+        return Double.isNaN(logProb) ? Double.NEGATIVE_INFINITY : logProb;
+    }
+
+    /**
+     * Select ancestors using auxiliary variables, after first sorting the
+     * particles by prevalence.  Sorting ensures that a small change in the
+     * auxiliary variables produces a small change in the selected states.
+     */
+    private void resampleSorted() {
+        for (int p = 0; p < nParticles; p++)
+            sortKeys[p] = ((long)particles.I[p] << 32) | p;
+        Arrays.sort(sortKeys);
+
+        for (int k = 0; k < nParticles; k++) {
+            sortOrder[k] = (int)sortKeys[k];
+            sortedWeights[k] = particleWeights[sortOrder[k]];
         }
 
-        // Switch particleStates and particleStatesNew
-        EpidemicState[] tempStates = particleStates;
-        particleStates = particleStatesNew;
-        particleStatesNew = tempStates;
+        resamplingStream.select(0);
+        resampler.resample(sortedWeights, sortedAncestors, resamplingStream);
 
-        // Switch particleTrajectories and particleTrajectoriesNew
-        List<List<EpidemicState>> tmpTrajs = particleTrajectories;
-        particleTrajectories = particleTrajectoriesNew;
-        particleTrajectoriesNew = tmpTrajs;
+        for (int p = 0; p < nParticles; p++)
+            ancestors[p] = sortOrder[sortedAncestors[p]];
+    }
+
+    /**
+     * Direct random draws made by the given workspace to the auxiliary
+     * variables or random stream of particle p.
+     *
+     * @param p particle index
+     * @param workspace workspace
+     */
+    private void selectRandomStream(int p, ParticleWorkspace workspace) {
+        if (workspace.auxiliaryStream != null)
+            workspace.auxiliaryStream.select(p);
+        else
+            workspace.particleStream.select(p);
     }
 
     /**
@@ -267,30 +1609,30 @@ public class SMCTreeDensity extends TreeDistribution {
      * event (if there is one) or the last incidence report (if there isn't).
      *
      * @param particleState State of particle
-     * @param particleTrajectory if non-null, add particle states to this trajectory
+     * @param p index of particle, used to record its trajectory if required
      * @param nextObservedEvent next observed event - termination of particle sim
+     * @param workspace scratch space owned by the calling thread
      *
      * @return log conditional prob of tree interval under trajectory
      */
-    private double updateParticle(EpidemicState particleState,
-                                  List<EpidemicState> particleTrajectory,
-                                  ObservedEvent nextObservedEvent) {
+    private double updateParticle(EpidemicState particleState, int p,
+                                  ObservedEvent nextObservedEvent,
+                                  ParticleWorkspace workspace) {
         double conditionalLogP = 0;
-        ModelEvent nextModelEvent;
-        double nextModelEventTime;
         double nextObservedEventTime = nextObservedEvent.time;
 
         double maxLeapSize = model.getOrigin()/minLeapCount;
+        int lineages = nextObservedEvent.lineages;
 
-        while (true) {
-            nextModelEvent = model.getNextModelEvent(particleState);
-            nextModelEventTime = model.getNextModelEventTime(particleState);
-
-            model.calculatePropensities(particleState);
+        // Model events are looked up only when the particle enters a new
+        // model interval.
+        double nextModelEventTime = modelSnapshot.getNextEventTime(particleState.modelIntervalIdx);
 
-            int lineages = nextObservedEvent.lineages;
+        while (true) {
+            calculatePropensities(particleState, workspace);
+            double[] propensities = workspace.propensities;
 
-            double infectionProp = model.propensities[EpidemicEvent.INFECTION];
+            double infectionProp = propensities[EpidemicEvent.INFECTION];
             double unobservedInfectProp = particleState.I > 0
                     ? infectionProp *(1.0 - lineages * (lineages - 1) / particleState.I / (particleState.I + 1))
                     : 0.0;
@@ -298,15 +1640,41 @@ public class SMCTreeDensity extends TreeDistribution {
 
             double allowedRecovProp, forbiddenRecovProp;
             if (particleState.I > lineages) {
-                allowedRecovProp = model.propensities[EpidemicEvent.RECOVERY];
+                allowedRecovProp = propensities[EpidemicEvent.RECOVERY];
                 forbiddenRecovProp = 0.0;
             } else {
                 allowedRecovProp = 0.0;
-                forbiddenRecovProp = model.propensities[EpidemicEvent.RECOVERY];
+                forbiddenRecovProp = propensities[EpidemicEvent.RECOVERY];
             }
 
             double allowedEventProp = unobservedInfectProp + allowedRecovProp;
 
+            // Integrate the chemical Langevin equation while propensities
+            // are large enough
+            if (getLangevinStepSize(particleState, unobservedInfectProp, allowedRecovProp) > 0.0) {
+                double eventTime = Math.min(nextModelEventTime, nextObservedEventTime);
+                conditionalLogP += propagateParticleLangevin(particleState, p,
+                        lineages, eventTime, workspace);
+
+                if (conditionalLogP == Double.NEGATIVE_INFINITY)
+                    return Double.NEGATIVE_INFINITY;
+
+                if (particleState.time < eventTime)
+                    continue;
+
+                if (nextModelEventTime < nextObservedEventTime) {
+                    if (modelSnapshot.isRhoSamplingEvent(particleState.modelIntervalIdx)) {
+                        // Probability that rho sampling produced no samples
+                        conditionalLogP += particleState.I*Math.log(1.0-modelSnapshot.getRho(particleState.modelIntervalIdx));
+                    }
+                    particleState.modelIntervalIdx += 1;
+                    nextModelEventTime = modelSnapshot.getNextEventTime(particleState.modelIntervalIdx);
+                    continue;
+                }
+
+                break;
+            }
+
             // Do we leap?
 
             boolean isLeap = useTauLeaping;
@@ -327,19 +1695,21 @@ public class SMCTreeDensity extends TreeDistribution {
 
             if (!isLeap) {
                 particleState.algorithm = EpidemicState.Algorithm.SSA;
+                workspace.ssaSteps += 1;
 
                 // Determine size of time increment
                 double dt;
                 if (allowedEventProp > 0.0)
-                    dt = Randomizer.nextExponential(allowedEventProp);
+                    dt = workspace.random.nextExponential(allowedEventProp);
                 else
                     dt = Double.POSITIVE_INFINITY;
 
                 // Condition against psi-sampling and illegal recovery within interval
                 double trueDt = Math.min(dt, Math.min(nextModelEventTime, nextObservedEventTime) - particleState.time);
-                conditionalLogP += -trueDt * (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
-                        + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]
+                double psiSamplingProp = getPsiSamplingPropensity(propensities);
+                conditionalLogP += -trueDt * (psiConditioningFactor*psiSamplingProp
                         + observedInfectProp + forbiddenRecovProp);
+                particleState.samplingPropensityIntegral += trueDt*psiSamplingProp;
 
                 // Increment time
                 particleState.time += dt;
@@ -347,12 +1717,13 @@ public class SMCTreeDensity extends TreeDistribution {
                 // Deal with model events (rho sampling and rate shifts)
                 if (nextModelEventTime < nextObservedEventTime && particleState.time > nextModelEventTime) {
 
-                    if (nextModelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+                    if (modelSnapshot.isRhoSamplingEvent(particleState.modelIntervalIdx)) {
                         // Probability that rho sampling produced no samples
-                        conditionalLogP += particleState.I*Math.log(1.0-nextModelEvent.rho);
+                        conditionalLogP += particleState.I*Math.log(1.0-modelSnapshot.getRho(particleState.modelIntervalIdx));
                     }
-                    particleState.time = nextModelEvent.time;
+                    particleState.time = nextModelEventTime;
                     particleState.modelIntervalIdx += 1;
+                    nextModelEventTime = modelSnapshot.getNextEventTime(particleState.modelIntervalIdx);
                     continue;
                 }
 
@@ -360,14 +1731,13 @@ public class SMCTreeDensity extends TreeDistribution {
                 if (particleState.time > nextObservedEventTime)
                         break;
 
-                EpidemicEvent event = new EpidemicEvent();
-                event.time = particleState.time;
-                if (allowedEventProp * Randomizer.nextDouble() < unobservedInfectProp)
-                    event.type = EpidemicEvent.INFECTION;
+                int eventType;
+                if (allowedEventProp * workspace.random.nextDouble() < unobservedInfectProp)
+                    eventType = EpidemicEvent.INFECTION;
                 else
-                    event.type = EpidemicEvent.RECOVERY;
+                    eventType = EpidemicEvent.RECOVERY;
 
-                model.incrementState(particleState, event);
+                model.incrementState(particleState, eventType, 1);
 
                 if (conditionalLogP == Double.NEGATIVE_INFINITY) {
                     // Should never get here, as we explicitly condition against
@@ -377,49 +1747,70 @@ public class SMCTreeDensity extends TreeDistribution {
                 }
 
             } else {
+                double trueDt = Math.min(tau, Math.min(nextModelEventTime, nextObservedEventTime) - particleState.time);
+                double psiSamplingProp = getPsiSamplingPropensity(propensities);
+                double conditioningProp = psiConditioningFactor*psiSamplingProp
+                        + observedInfectProp + forbiddenRecovProp;
+
                 particleState.algorithm = EpidemicState.Algorithm.TL;
+                workspace.tauLeaps += 1;
+
+                if (leapingAlgorithm == LeapSampler.Type.POISSON) {
+                    conditionalLogP += -trueDt * conditioningProp;
+                    particleState.samplingPropensityIntegral += trueDt*psiSamplingProp;
+
+                    double propThresh = Double.POSITIVE_INFINITY;
+                    if (trueDt > 0.0 && relStdThresh > 0.0) {
+                        if (relStdThresh < 1.0)
+                            propThresh = 1.0/trueDt/relStdThresh/relStdThresh;
+                        else
+                            propThresh = 0.0;
+                    }
 
-                double trueDt = Math.min(tau, Math.min(nextModelEventTime, nextObservedEventTime) - particleState.time);
-                conditionalLogP += -trueDt * (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
-                        + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]
-                        + observedInfectProp + forbiddenRecovProp);
+                    int nInfections;
+                    if (unobservedInfectProp<propThresh)
+                        nInfections = (int)workspace.random.nextPoisson(trueDt*unobservedInfectProp);
+                    else
+                        nInfections = (int)Math.round(trueDt*unobservedInfectProp);
 
-                double propThresh = Double.POSITIVE_INFINITY;
-                if (trueDt > 0.0 && relStdThresh > 0.0) {
-                    if (relStdThresh < 1.0)
-                        propThresh = 1.0/trueDt/relStdThresh/relStdThresh;
+                    int nRecoveries;
+                    if (allowedEventProp < propThresh)
+                        nRecoveries = (int)workspace.random.nextPoisson(trueDt*allowedRecovProp);
                     else
-                        propThresh = 0.0;
-                }
+                        nRecoveries = (int)Math.round(trueDt*allowedEventProp);
 
-                EpidemicEvent infectEvent = new EpidemicEvent();
-                infectEvent.type = EpidemicEvent.INFECTION;
-                if (unobservedInfectProp<propThresh)
-                    infectEvent.multiplicity = (int)Randomizer.nextPoisson(trueDt*unobservedInfectProp);
-                else
-                    infectEvent.multiplicity = (int)Math.round(trueDt*unobservedInfectProp);
+                    model.incrementState(particleState, EpidemicEvent.INFECTION, nInfections);
+                    model.incrementState(particleState, EpidemicEvent.RECOVERY, nRecoveries);
+                } else {
+                    LeapSampler leapSampler = workspace.leapSampler;
+                    leapSampler.leap(trueDt, unobservedInfectProp, allowedRecovProp,
+                            model.getMaxInfections(particleState),
+                            particleState.I - lineages, workspace.random);
 
-                EpidemicEvent recovEvent = new EpidemicEvent();
-                recovEvent.type = EpidemicEvent.RECOVERY;
-                if (allowedEventProp < propThresh)
-                    recovEvent.multiplicity = (int)Randomizer.nextPoisson(trueDt*allowedRecovProp);
-                else
-                    recovEvent.multiplicity = (int)Math.round(trueDt*allowedEventProp);
+                    conditionalLogP += -leapSampler.getDuration() * conditioningProp;
+                    particleState.samplingPropensityIntegral += leapSampler.getDuration()*psiSamplingProp;
+
+                    model.incrementState(particleState, EpidemicEvent.INFECTION, leapSampler.getInfections());
+                    model.incrementState(particleState, EpidemicEvent.RECOVERY, leapSampler.getRemovals());
 
-                model.incrementState(particleState, infectEvent);
-                model.incrementState(particleState, recovEvent);
+                    // R-leaps ending early leave the particle short of
+                    // any model or observed event.
+                    if (leapSampler.getDuration() < trueDt)
+                        tau = leapSampler.getDuration();
+                }
 
                 if (conditionalLogP == Double.NEGATIVE_INFINITY
                         || !particleState.isValid() || particleState.I < lineages)
                     return Double.NEGATIVE_INFINITY;
 
                 if (nextModelEventTime < nextObservedEvent.time && particleState.time + tau > nextModelEventTime) {
-                    if (nextModelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+                    if (modelSnapshot.isRhoSamplingEvent(particleState.modelIntervalIdx)) {
                         // Probability that rho sampling produces no samples
-                        conditionalLogP += particleState.I*Math.log(1.0-nextModelEvent.rho);
+                        conditionalLogP += particleState.I*Math.log(1.0-modelSnapshot.getRho(particleState.modelIntervalIdx));
                     }
                     particleState.time = nextModelEventTime;
                     particleState.modelIntervalIdx += 1;
+                    nextModelEventTime = modelSnapshot.getNextEventTime(particleState.modelIntervalIdx);
                     continue;
                 }
 
@@ -430,21 +1821,42 @@ public class SMCTreeDensity extends TreeDistribution {
                 particleState.time += tau;
             }
 
-            if (particleTrajectory != null)
-                particleTrajectory.add(particleState.copy());
+            if (particlePaths != null)
+                particlePaths.add(p, particleState);
         }
 
+        return conditionalLogP + completeObservedEvent(particleState, p,
+                nextObservedEvent, workspace);
+    }
+
+    /**
+     * Move a particle which has been propagated up to the next observed
+     * event across that event, incorporating the probability of the event
+     * and incrementing the particle state if necessary.
+     *
+     * @param particleState State of particle
+     * @param p index of particle, used to record its trajectory if required
+     * @param nextObservedEvent observed event at which particle has arrived
+     * @param workspace scratch space owned by the calling thread
+     *
+     * @return log probability of observed event
+     */
+    private double completeObservedEvent(EpidemicState particleState, int p,
+                                         ObservedEvent nextObservedEvent,
+                                         ParticleWorkspace workspace) {
+        double conditionalLogP = 0.0;
+        double nextObservedEventTime = nextObservedEvent.time;
+
         // Include probability of tree event and increment state if necessary
         if (nextObservedEvent.type != ObservedEvent.Type.OBSERVATION_END) {
             particleState.time = nextObservedEvent.time;
             conditionalLogP += getObservedEventProbability(particleState,
-                    nextObservedEvent, nextObservedEventTime,
-                    nextModelEvent, nextModelEventTime);
+                    nextObservedEvent, nextObservedEventTime, workspace);
         } else
             particleState.time = model.getOrigin();
 
-        if (particleTrajectory != null)
-            particleTrajectory.add(particleState.copy());
+        if (particlePaths != null)
+            particlePaths.add(p, particleState);
 
         if (!particleState.isValid())
             return Double.NEGATIVE_INFINITY; // Can occur due to susceptible pool depletion
@@ -456,150 +1868,348 @@ public class SMCTreeDensity extends TreeDistribution {
 
     private double getObservedEventProbability(EpidemicState particleState,
                                                ObservedEvent nextObservedEvent, double nextObservedEventTime,
-                                               ModelEvent nextModelEvent, double nextModelEventTime) {
+                                               ParticleWorkspace workspace) {
 
         double conditionalLogP = 0.0;
+        double[] propensities = workspace.propensities;
+
+         if (nextObservedEvent.type == ObservedEvent.Type.INCIDENCE_BIN_END
+                 || nextObservedEvent.type == ObservedEvent.Type.INCIDENCE_BIN_START) {
+
+             // Reported count depends on the unsequenced samples expected
+             // since the start of the bin.
+             if (nextObservedEvent.type == ObservedEvent.Type.INCIDENCE_BIN_END) {
+                 conditionalLogP += binnedIncidence.getLogCountProbability(
+                         nextObservedEvent.multiplicity,
+                         unsequencedFraction*particleState.samplingPropensityIntegral);
+             }
 
-         if (nextObservedEvent.type == ObservedEvent.Type.COALESCENCE) {
+             particleState.samplingPropensityIntegral = 0.0;
+
+         } else if (nextObservedEvent.type == ObservedEvent.Type.COALESCENCE) {
 
              for (int i=0; i<nextObservedEvent.multiplicity; i++) {
-                 model.calculatePropensities(particleState);
+                 calculatePropensities(particleState, workspace);
 
-                 if (model.propensities[EpidemicEvent.INFECTION] == 0.0)
+                 if (propensities[EpidemicEvent.INFECTION] == 0.0)
                      return Double.NEGATIVE_INFINITY;
 
-                 model.incrementState(particleState, EpidemicEvent.Infection);
+                 model.incrementState(particleState, EpidemicEvent.INFECTION, 1);
                  conditionalLogP += Math.log(2.0 / particleState.I / (particleState.I - 1)
-                         * model.propensities[EpidemicEvent.INFECTION]);
+                         * propensities[EpidemicEvent.INFECTION]);
              }
 
         } else {
 
-            if (model.timesEqual(nextObservedEventTime, nextModelEventTime)
-                    && nextModelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+            int modelIntervalIdx = particleState.modelIntervalIdx;
+            if (model.timesEqual(nextObservedEventTime, modelSnapshot.getNextEventTime(modelIntervalIdx))
+                    && modelSnapshot.isRhoSamplingEvent(modelIntervalIdx)) {
 
+                double rho = modelSnapshot.getRho(modelIntervalIdx);
                 int I = (int) Math.round(particleState.I);
                 int k = nextObservedEvent.multiplicity;
                 conditionalLogP += Binomial.logChoose(I, k)
-                        + k*Math.log(nextModelEvent.rho)
-                        + (I-k)*Math.log(1.0 - nextModelEvent.rho);
+                        + k*Math.log(rho)
+                        + (I-k)*Math.log(1.0 - rho);
 
                 conditionalLogP += GammaFunction.lnGamma(1 + k);
 
                 model.incrementState(particleState,
-                        EpidemicEvent.MultipleRhoSamples(nextObservedEvent.multiplicity));
+                        EpidemicEvent.RHO_SAMPLE, nextObservedEvent.multiplicity);
+
+                // Rho sampling event has now been accounted for
+                particleState.modelIntervalIdx += 1;
 
             } else {
-                if (model.psiSamplingVariableInput.get() != null) {
+                int multiplicity = nextObservedEvent.multiplicity;
+                int I = (int) Math.round(particleState.I);
+                int removals = 0;
 
-                    // This awkward conditioning is to avoid unnecessary recalculation of
-                    // reaction propensities.
-                    if (nextObservedEvent.type == ObservedEvent.Type.UNSEQUENCED_SAMPLE)
-                        model.calculatePropensities(particleState);
+                // The number of removals among the samples is drawn at
+                // once rather than deciding for each sample in turn.
+                if (nextObservedEvent.type != ObservedEvent.Type.SAMPLED_ANCESTOR) {
+                    removals = DiscreteVariates.nextBinomial(multiplicity,
+                            modelSnapshot.getRemovalProb(modelIntervalIdx), workspace.random);
+                }
 
-                    if (nextObservedEvent.type == ObservedEvent.Type.UNSEQUENCED_SAMPLE
-                            && model.currentRemovalProb == 0.0) {
+                conditionalLogP += getSamplingLogProb(model, modelSnapshot, modelIntervalIdx,
+                        nextObservedEvent.type, multiplicity, removals,
+                        nextObservedEvent.lineages, I);
 
-                        // Only works when removal disabled!!
+                if (removals > 0)
+                    model.incrementState(particleState, EpidemicEvent.PSI_SAMPLE_REMOVE, removals);
 
-                        if (particleState.I == 0) {
-                            conditionalLogP = Double.NEGATIVE_INFINITY;
-                        } else {
-                            model.calculatePropensities(particleState);
-                            conditionalLogP += nextObservedEvent.multiplicity * Math.log(model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]);
-                        }
+                // Must explicitly check for validity of post-sampled state
+                // because there is no sampling rate/probability to prevent
+                // sampling when there are no lineages to sample.
+                if (!particleState.isValid())
+                    return Double.NEGATIVE_INFINITY;
+            }
 
-                    } else {
-                        for (int i = 0; i < nextObservedEvent.multiplicity; i++) {
-                            model.calculatePropensities(particleState);
-
-                            if (particleState.I == 0) {
-                                conditionalLogP = Double.NEGATIVE_INFINITY;
-                                break;
-                            }
-
-                            if (nextObservedEvent.type == ObservedEvent.Type.SAMPLED_ANCESTOR) {
-                                conditionalLogP += Math.log(model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE] / particleState.I);
-                            } else {
-                                double psiSamplingProp = (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
-                                        + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]);
-
-                                conditionalLogP += Math.log(psiSamplingProp);
-
-                                boolean isRemoval;
-                                if (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE] == psiSamplingProp) {
-                                    isRemoval = true;
-                                } else {
-                                    if (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE] == 0.0) {
-                                        isRemoval = false;
-                                    } else {
-                                        isRemoval = Randomizer.nextDouble() * psiSamplingProp
-                                                < model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
-                                    }
-                                }
-
-                                if (isRemoval) {
-                                    model.incrementState(particleState, EpidemicEvent.PsiSampleRemove);
-                                } else {
-                                    if (nextObservedEvent.type == ObservedEvent.Type.LEAF)
-                                        conditionalLogP += Math.log(1.0 - (nextObservedEvent.lineages - 1) / particleState.I);
-                                }
-                            }
-
-                            // Account for probability of sequencing (if non-null)
-                            if (model.sequencingProbInput.get() != null) {
-                                double seqProb = model.sequencingProbInput.get().getArrayValue();
-                                if (nextObservedEvent.type == ObservedEvent.Type.UNSEQUENCED_SAMPLE)
-                                    conditionalLogP += Math.log(1.0 - seqProb);
-                                else
-                                    conditionalLogP += Math.log(seqProb);
-                            }
-                        }
-                    }
+        }
 
-                } else {
-                    // No explicit sampling process
-
-                    // Note that we always need to condition on whether a sampling event was
-                    // a removal or not.  Since this information is not provided in
-                    // the data, we need to model at least this part of the sampling
-                    // process.
-
-                    for (int i=0; i<nextObservedEvent.multiplicity; i++) {
-                        model.calculatePropensities(particleState);
-
-                        if (nextObservedEvent.type == ObservedEvent.Type.SAMPLED_ANCESTOR) {
-                            conditionalLogP += Math.log((1.0 - model.currentRemovalProb) / particleState.I);
-                        } else {
-                            boolean isRemoval = Randomizer.nextDouble() < model.currentRemovalProb;
-
-                            if (isRemoval) {
-                                model.incrementState(particleState, EpidemicEvent.OtherSampleRemove);
-                            } else {
-                                if (nextObservedEvent.type == ObservedEvent.Type.LEAF)
-                                    conditionalLogP += Math.log(1.0 - (nextObservedEvent.lineages - 1)/particleState.I);
-                            }
-                        }
-
-                        // Must explicitly check for validity of post-sampled state
-                        // because there is no sampling rate/probability to prevent
-                        // sampling when there are no lineages to sample.
-                        if (!particleState.isValid())
-                            return Double.NEGATIVE_INFINITY;
-                    }
-                }
+
+        if (Double.isNaN(conditionalLogP))
+            workspace.nanWeights += 1;
+
+        return conditionalLogP;
+    }
+
+    /**
+     * Compute the log probability of a psi sampling event in closed form,
+     * given the number of samples which were removals.  The probability
+     * of this number is excluded, as it is drawn from its binomial
+     * distribution or summed over by the caller.  Samples which are not
+     * removals are taken to precede the removals occurring at the same
+     * time.  This agrees with drawing the removal status of each sample
+     * in turn whenever the removal probability is zero or one, and
+     * otherwise fixes the order in which simultaneous samples occur.
+     *
+     * @param model epidemic model
+     * @param snapshot compiled model parameters
+     * @param modelIntervalIdx model interval containing the event
+     * @param type type of observed event
+     * @param multiplicity number of samples
+     * @param removals number of samples which are removals
+     * @param lineages number of observed lineages prior to event
+     * @param I prevalence prior to event
+     * @return log probability of samples
+     */
+    static double getSamplingLogProb(EpidemicModel model, ModelSnapshot snapshot,
+                                     int modelIntervalIdx, ObservedEvent.Type type,
+                                     int multiplicity, int removals,
+                                     int lineages, int I) {
+
+        if (I == 0 || removals > I)
+            return Double.NEGATIVE_INFINITY;
+
+        int nonRemovals = multiplicity - removals;
+        double logP = 0.0;
+
+        if (model.psiSamplingVariableInput.get() != null) {
+            double psiNoRemoveRate = snapshot.getRate(modelIntervalIdx, EpidemicEvent.PSI_SAMPLE_NOREMOVE);
+
+            if (type == ObservedEvent.Type.SAMPLED_ANCESTOR) {
+                logP += multiplicity*Math.log(psiNoRemoveRate);
+            } else if (type == ObservedEvent.Type.UNSEQUENCED_SAMPLE
+                    && snapshot.getRemovalProb(modelIntervalIdx) == 0.0) {
+                // Sequencing is not accounted for in this case
+                return multiplicity*Math.log(psiNoRemoveRate*I);
+            } else {
+                // Samples occur at rate psi*I, where I falls by one
+                // following each removal.
+                logP += multiplicity*Math.log(snapshot.getPsiSamplingRate(modelIntervalIdx))
+                        + nonRemovals*Math.log(I)
+                        + GammaFunction.lnGamma(I + 1) - GammaFunction.lnGamma(I - removals + 1);
+            }
+
+            // Account for probability of sequencing (if non-null)
+            if (model.sequencingProbInput.get() != null) {
+                double seqProb = model.sequencingProbInput.get().getArrayValue();
+                if (type == ObservedEvent.Type.UNSEQUENCED_SAMPLE)
+                    logP += multiplicity*Math.log(1.0 - seqProb);
+                else
+                    logP += multiplicity*Math.log(seqProb);
             }
 
+        } else if (type == ObservedEvent.Type.SAMPLED_ANCESTOR) {
+            logP += multiplicity*Math.log((1.0 - snapshot.getRemovalProb(modelIntervalIdx))/I);
         }
 
+        // Samples which are not removals must not belong to other
+        // observed lineages.
+        if (type == ObservedEvent.Type.LEAF && nonRemovals > 0) {
+            if (lineages > I)
+                return Double.NEGATIVE_INFINITY;
 
-        if (Double.isNaN(conditionalLogP)) {
-            System.out.println("Particle weight is NaN - should not happen!");
+            logP += nonRemovals*Math.log(1.0 - (lineages - 1.0)/I);
         }
 
+        return logP;
+    }
+
+    /**
+     * Choose the size of a chemical Langevin step from the given state,
+     * such that the state changes by no more than a fraction
+     * LANGEVIN_EPSILON over the step.  The approximation is only used
+     * when allowed reactions are expected to fire at least cleThresh
+     * times in total within such a step; otherwise zero is returned.
+     *
+     * @param state particle state
+     * @param unobservedInfectProp propensity of unobserved infections
+     * @param allowedRecovProp propensity of allowed recoveries
+     * @return step size, or zero if Langevin approximation is not valid
+     */
+    private double getLangevinStepSize(EpidemicState state,
+                                       double unobservedInfectProp,
+                                       double allowedRecovProp) {
+        if (cleThresh == 0.0 || !(unobservedInfectProp + allowedRecovProp > 0.0))
+            return 0.0;
+
+        double h = model.getTau(LANGEVIN_EPSILON, state,
+                unobservedInfectProp, allowedRecovProp);
+
+        if ((unobservedInfectProp + allowedRecovProp)*h < cleThresh)
+            return 0.0;
+
+        return h;
+    }
+
+    /**
+     * Advance a particle towards the given time by Euler-Maruyama
+     * integration of the chemical Langevin equation.  Over each step the
+     * unobserved infections and allowed recoveries are drawn from normal
+     * distributions whose means and variances are the products of the
+     * step size and the propensities at the start of the step.  (Slow
+     * reactions, expected to fire fewer than cleThresh times, are instead
+     * drawn from the corresponding Poisson distributions.)  The
+     * propensities of reactions forbidden by the tree are integrated
+     * against in the same way as by the SSA.  Integration stops early once
+     * the particle's propensities are too small for the approximation,
+     * and the reaction counts are then rounded so that the particle is
+     * left in an integer-valued state.  The particle must not encounter
+     * any model or observed events before the given time.
+     *
+     * @param particleState State of particle
+     * @param p index of particle, used to record its trajectory if required
+     * @param lineages number of tree lineages present during interval
+     * @param endTime time at which to stop integrating
+     * @param workspace scratch space owned by the calling thread
+     *
+     * @return log conditional prob of tree interval under trajectory
+     */
+    private double propagateParticleLangevin(EpidemicState particleState, int p,
+                                             int lineages, double endTime,
+                                             ParticleWorkspace workspace) {
+        double conditionalLogP = 0;
+        double[] propensities = workspace.propensities;
+        double infections = 0.0, recoveries = 0.0;
+
+        particleState.algorithm = EpidemicState.Algorithm.CLE;
+
+        while (particleState.time < endTime) {
+            calculatePropensities(particleState, workspace);
+
+            double infectionProp = propensities[EpidemicEvent.INFECTION];
+            double unobservedInfectProp = particleState.I > 0
+                    ? infectionProp *(1.0 - lineages * (lineages - 1) / particleState.I / (particleState.I + 1))
+                    : 0.0;
+            double observedInfectProp = infectionProp - unobservedInfectProp;
+
+            double allowedRecovProp, forbiddenRecovProp;
+            if (particleState.I > lineages) {
+                allowedRecovProp = propensities[EpidemicEvent.RECOVERY];
+                forbiddenRecovProp = 0.0;
+            } else {
+                allowedRecovProp = 0.0;
+                forbiddenRecovProp = propensities[EpidemicEvent.RECOVERY];
+            }
+
+            double h = getLangevinStepSize(particleState, unobservedInfectProp, allowedRecovProp);
+            if (h == 0.0)
+                break;
+
+            workspace.langevinLeaps += 1;
+
+            boolean reachesEnd = particleState.time + h >= endTime;
+            if (reachesEnd)
+                h = endTime - particleState.time;
+
+            double psiSamplingProp = getPsiSamplingPropensity(propensities);
+            conditionalLogP += -h * (psiConditioningFactor*psiSamplingProp
+                    + observedInfectProp + forbiddenRecovProp);
+            particleState.samplingPropensityIntegral += h*psiSamplingProp;
+
+            double dInfections = drawLangevinIncrement(h*unobservedInfectProp, workspace.random);
+            double dRecoveries = drawLangevinIncrement(h*allowedRecovProp, workspace.random);
+
+            model.incrementState(particleState, EpidemicEvent.INFECTION, dInfections);
+            model.incrementState(particleState, EpidemicEvent.RECOVERY, dRecoveries);
+            infections += dInfections;
+            recoveries += dRecoveries;
+
+            particleState.time = reachesEnd ? endTime : particleState.time + h;
+
+            if (!particleState.isValid() || particleState.I < lineages)
+                return Double.NEGATIVE_INFINITY;
+
+            if (particlePaths != null && !reachesEnd)
+                particlePaths.add(p, particleState);
+        }
+
+        // Round reaction counts, removing any accumulated rounding error
+        model.incrementState(particleState, EpidemicEvent.INFECTION,
+                Math.rint(infections) - infections);
+        model.incrementState(particleState, EpidemicEvent.RECOVERY,
+                Math.rint(recoveries) - recoveries);
+        particleState.S = Math.rint(particleState.S);
+        particleState.I = Math.rint(particleState.I);
+        particleState.R = Math.rint(particleState.R);
+        particleState.cumulativeInfections = Math.rint(particleState.cumulativeInfections);
+
+        if (!particleState.isValid() || particleState.I < lineages)
+            return Double.NEGATIVE_INFINITY;
+
         return conditionalLogP;
     }
 
+    /**
+     * Draw the number of firings of a reaction over a chemical Langevin
+     * step: a normal variate if the reaction is expected to fire at least
+     * cleThresh times, or a Poisson variate otherwise.
+     *
+     * @param mean expected number of firings
+     * @param random source of random numbers
+     * @return (possibly non-integer) number of firings
+     */
+    private double drawLangevinIncrement(double mean, RandomStream random) {
+        if (mean >= cleThresh)
+            return mean + Math.sqrt(mean)*random.nextGaussian();
+        else
+            return random.nextPoisson(mean);
+    }
+
+    /**
+     * @param propensities reaction propensities
+     * @return total propensity of psi sampling
+     */
+    private static double getPsiSamplingPropensity(double[] propensities) {
+        return propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
+                + propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+    }
+
+    /**
+     * Calculate reaction propensities and removal probability of the given
+     * state, storing the results in the given workspace.
+     *
+     * @param state particle state
+     * @param workspace workspace in which to store results
+     */
+    private void calculatePropensities(EpidemicState state, ParticleWorkspace workspace) {
+        model.calculatePropensities(modelSnapshot, state, workspace.propensities);
+        workspace.removalProb = modelSnapshot.getRemovalProb(state.modelIntervalIdx);
+    }
+
+    /**
+     * Ensure that particle trajectories are recorded.  Called by loggers
+     * which require conditioned trajectories, as trajectory recording is
+     * otherwise skipped.
+     */
+    public void requireTrajectories() {
+        if (recordTrajectoriesInput.get() != null && !recordTrajectoriesInput.get())
+            throw new IllegalArgumentException("Trajectories required by logger " +
+                    "but recordTrajectories is false for SMCTreeDensity "
+                    + getID() + ".");
+
+        trajectoriesRequired = true;
+        exactDensity = null;
+        if (particlePaths == null)
+            particlePaths = new ParticlePathStorage(nParticles);
+
+        // Restarted filter runs do not have complete particle paths.
+        checkpoints = null;
+    }
+
     /**
      * @return Trajectory conditioned on tree, for logging during PMMH analysis.
      */
@@ -611,6 +2221,7 @@ public class SMCTreeDensity extends TreeDistribution {
      * @return Most recent trajectory, for logging during trajectory mapping.
      */
     public EpidemicTrajectory getMostRecentTrajectory() {
+        requireTrajectories();
         model.makeDirty();
         observedEventsList.makeDirty();
         calculateLogP();
@@ -634,12 +2245,38 @@ public class SMCTreeDensity extends TreeDistribution {
     @Override
     protected boolean requiresRecalculation() {
         observedEventsList.makeDirty();
-        return true;
+
+        if (model.isDirtyCalculation()
+                || (auxiliaryRandoms != null && auxiliaryRandoms.somethingIsDirty())
+                || (binnedIncidence != null && binnedIncidence.isDirtyCalculation()))
+            return true;
+
+        // Changes to the tree, incidence ages or final sample offset only
+        // matter if they alter the observed events.  Topology changes which
+        // leave node heights unchanged do not.  Keeping the previous
+        // estimate in this case is also required for pseudo-marginal MCMC.
+        return observedEventsList.updateEventList();
+    }
+
+    @Override
+    public void store() {
+        if (checkpoints != null) {
+            System.arraycopy(activeCheckpoints, 0, storedCheckpoints, 0, checkpoints.length);
+            storedInputRecord = activeInputRecord;
+        }
+        super.store();
     }
 
     @Override
     public void restore() {
+        // Bring the event table back in line with the restored state now,
+        // so that the reversal is not mistaken for a change next time.
         observedEventsList.makeDirty();
+        observedEventsList.updateEventList();
+        if (checkpoints != null) {
+            System.arraycopy(storedCheckpoints, 0, activeCheckpoints, 0, checkpoints.length);
+            activeInputRecord = storedInputRecord;
+        }
         super.restore();
     }
 
@@ -647,6 +2284,9 @@ public class SMCTreeDensity extends TreeDistribution {
     protected void accept() {
         super.accept();
 
+        if (particlePaths == null)
+            return;
+
         List<EpidemicState> stateListCopy = new ArrayList<>(recordedTrajectoryStates);
         storedTrajectory = new EpidemicTrajectory(null, stateListCopy, observedEventsList.getOrigin());
     }
@@ -34,27 +34,45 @@ public class BirthDeathModel extends EpidemicModel {
     }
 
     @Override
-    protected double calculateInfectionPropensity(EpidemicState state) {
-        return rateCache.get(state.modelIntervalIdx)[EpidemicEvent.INFECTION]*state.I;
+    protected double calculateInfectionPropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.INFECTION)*state.I;
     }
 
     @Override
-    protected double calculateRecoveryPropensity(EpidemicState state) {
-        return rateCache.get(state.modelIntervalIdx)[EpidemicEvent.RECOVERY]*state.I;
+    protected double calculateRecoveryPropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.RECOVERY)*state.I;
     }
 
     @Override
-    public void incrementState(EpidemicState state, EpidemicEvent event) {
-        switch(event.type) {
+    protected void calculateInfectionPropensities(ModelSnapshot snapshot,
+                                                  double[] S, double[] I, int modelIntervalIdx,
+                                                  int from, int to, double[] result) {
+        double rate = snapshot.getRate(modelIntervalIdx, EpidemicEvent.INFECTION);
+        for (int i=from; i<to; i++)
+            result[i] = rate*I[i];
+    }
+
+    @Override
+    protected void calculateRecoveryPropensities(ModelSnapshot snapshot,
+                                                 double[] S, double[] I, int modelIntervalIdx,
+                                                 int from, int to, double[] result) {
+        double rate = snapshot.getRate(modelIntervalIdx, EpidemicEvent.RECOVERY);
+        for (int i=from; i<to; i++)
+            result[i] = rate*I[i];
+    }
+
+    @Override
+    public void incrementState(EpidemicState state, int type, double multiplicity) {
+        switch(type) {
             case EpidemicEvent.INFECTION:
-                state.I += event.multiplicity;
-                state.cumulativeInfections += event.multiplicity;
+                state.I += multiplicity;
+                state.cumulativeInfections += multiplicity;
                 break;
             case EpidemicEvent.RECOVERY:
             case EpidemicEvent.RHO_SAMPLE:
             case EpidemicEvent.PSI_SAMPLE_REMOVE:
             case EpidemicEvent.OTHER_SAMPLE:
-                state.I -= event.multiplicity;
+                state.I -= multiplicity;
                 break;
             default:
                 break;
@@ -77,4 +95,9 @@ public class BirthDeathModel extends EpidemicModel {
 
         return tau;
     }
+
+    @Override
+    public double getMaxPairCoalescenceRate() {
+        return 2.0*getMaxIntervalRate(EpidemicEvent.INFECTION);
+    }
 }
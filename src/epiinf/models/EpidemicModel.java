@@ -137,10 +137,15 @@ public abstract class EpidemicModel extends CalculationNode {
     protected List<EpidemicEvent> eventList = new ArrayList<>();
     protected List<EpidemicState> stateList = new ArrayList<>();
     protected List<ModelEvent> modelEventList = new ArrayList<>();
-    protected List<Double[]> rateCache = new ArrayList<>();
-    protected double[] removalProbCache = null;
+    protected ModelSnapshot snapshot;
     protected int initialModelEventIndex;
 
+    // Tables compiled by update() before being compared with the current
+    // snapshot.  A new snapshot takes ownership of these.
+    private double[][] compiledRates;
+    private double[] compiledRemovalProbs, compiledEventTimes, compiledRhos;
+    private boolean[] compiledIsRhoSampling;
+
     protected boolean ratesDirty;
     protected double tolerance;
 
@@ -190,13 +195,122 @@ public abstract class EpidemicModel extends CalculationNode {
 
     public final void calculatePropensities(EpidemicState state) {
         update();
-        propensities[EpidemicEvent.RECOVERY] = calculateRecoveryPropensity(state);
-        propensities[EpidemicEvent.INFECTION] = calculateInfectionPropensity(state);
-        propensities[EpidemicEvent.PSI_SAMPLE_REMOVE] = calculatePsiSamplingRemovePropensity(state);
-        propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE] = calculatePsiSamplingNoRemovePropensity(state);
+        calculatePropensities(snapshot, state, propensities);
         currentRemovalProb = calculateCurrentRemovalProb(state);
     }
 
+    /**
+     * Calculate reaction propensities for the given state under the rates
+     * of the given snapshot, storing them in the provided array instead of
+     * in the propensities field.  This method is intended for use in tight
+     * simulation loops: it does not call update() and reads nothing from
+     * the model but the snapshot, so it may be called from several threads
+     * at once and is unaffected by later changes to the model.
+     *
+     * @param snapshot model snapshot providing reaction rates
+     * @param state epidemic state
+     * @param propensities array of length EpidemicEvent.nTypes to fill
+     */
+    public final void calculatePropensities(ModelSnapshot snapshot,
+                                            EpidemicState state, double[] propensities) {
+        propensities[EpidemicEvent.RECOVERY] = calculateRecoveryPropensity(snapshot, state);
+        propensities[EpidemicEvent.INFECTION] = calculateInfectionPropensity(snapshot, state);
+        propensities[EpidemicEvent.PSI_SAMPLE_REMOVE] = calculatePsiSamplingRemovePropensity(snapshot, state);
+        propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE] = calculatePsiSamplingNoRemovePropensity(snapshot, state);
+    }
+
+    /**
+     * Calculate infection, recovery and total psi-sampling propensities for
+     * a block of states stored in primitive arrays.  All states in the block
+     * must lie within the same model interval.  Like the array-based
+     * calculatePropensities(), this method reads rates only from the given
+     * snapshot and does not modify the model.
+     *
+     * @param snapshot model snapshot providing reaction rates
+     * @param S susceptible counts
+     * @param I infected counts
+     * @param modelIntervalIdx model interval shared by all states in block
+     * @param from index of first state in block
+     * @param to index one past the last state in block
+     * @param infectionProps array in which to store infection propensities
+     * @param recoveryProps array in which to store recovery propensities
+     * @param samplingProps array in which to store psi-sampling propensities
+     */
+    public final void calculatePropensities(ModelSnapshot snapshot,
+                                            double[] S, double[] I, int modelIntervalIdx,
+                                            int from, int to,
+                                            double[] infectionProps,
+                                            double[] recoveryProps,
+                                            double[] samplingProps) {
+        calculateInfectionPropensities(snapshot, S, I, modelIntervalIdx, from, to, infectionProps);
+        calculateRecoveryPropensities(snapshot, S, I, modelIntervalIdx, from, to, recoveryProps);
+
+        double samplingRate = snapshot.getPsiSamplingRate(modelIntervalIdx);
+        for (int i=from; i<to; i++)
+            samplingProps[i] = samplingRate*I[i];
+    }
+
+    /**
+     * Calculate infection propensities for a block of states.  The default
+     * implementation defers to calculateInfectionPropensity(); models should
+     * override this with a loop that avoids the per-state call.
+     *
+     * @param snapshot model snapshot providing reaction rates
+     * @param S susceptible counts
+     * @param I infected counts
+     * @param modelIntervalIdx model interval shared by all states in block
+     * @param from index of first state in block
+     * @param to index one past the last state in block
+     * @param result array in which to store propensities
+     */
+    protected void calculateInfectionPropensities(ModelSnapshot snapshot,
+                                                  double[] S, double[] I, int modelIntervalIdx,
+                                                  int from, int to, double[] result) {
+        EpidemicState state = new EpidemicState();
+        state.modelIntervalIdx = modelIntervalIdx;
+        for (int i=from; i<to; i++) {
+            state.S = S[i];
+            state.I = I[i];
+            result[i] = calculateInfectionPropensity(snapshot, state);
+        }
+    }
+
+    /**
+     * Calculate recovery propensities for a block of states.  The default
+     * implementation defers to calculateRecoveryPropensity(); models should
+     * override this with a loop that avoids the per-state call.
+     *
+     * @param snapshot model snapshot providing reaction rates
+     * @param S susceptible counts
+     * @param I infected counts
+     * @param modelIntervalIdx model interval shared by all states in block
+     * @param from index of first state in block
+     * @param to index one past the last state in block
+     * @param result array in which to store propensities
+     */
+    protected void calculateRecoveryPropensities(ModelSnapshot snapshot,
+                                                 double[] S, double[] I, int modelIntervalIdx,
+                                                 int from, int to, double[] result) {
+        EpidemicState state = new EpidemicState();
+        state.modelIntervalIdx = modelIntervalIdx;
+        for (int i=from; i<to; i++) {
+            state.S = S[i];
+            state.I = I[i];
+            result[i] = calculateRecoveryPropensity(snapshot, state);
+        }
+    }
+
+    /**
+     * Like the array-based calculatePropensities(), this method does not
+     * call update().
+     *
+     * @param state epidemic state
+     * @return probability that a sampled individual is removed in this state
+     */
+    public double getCurrentRemovalProb(EpidemicState state) {
+        return calculateCurrentRemovalProb(state);
+    }
+
     /**
      * @return age of epidemic start relative to last tree event
      */
@@ -306,17 +420,17 @@ public abstract class EpidemicModel extends CalculationNode {
             return imin;
     }
 
-    protected double calculatePsiSamplingRemovePropensity(EpidemicState state) {
-        return state.I * rateCache.get(state.modelIntervalIdx)[EpidemicEvent.PSI_SAMPLE_REMOVE];
+    protected double calculatePsiSamplingRemovePropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return state.I * snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.PSI_SAMPLE_REMOVE);
     }
-    protected double calculatePsiSamplingNoRemovePropensity(EpidemicState state) {
-        return state.I * rateCache.get(state.modelIntervalIdx)[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+    protected double calculatePsiSamplingNoRemovePropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return state.I * snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.PSI_SAMPLE_NOREMOVE);
     }
-    protected abstract double calculateRecoveryPropensity(EpidemicState state);
-    protected abstract double calculateInfectionPropensity(EpidemicState state);
+    protected abstract double calculateRecoveryPropensity(ModelSnapshot snapshot, EpidemicState state);
+    protected abstract double calculateInfectionPropensity(ModelSnapshot snapshot, EpidemicState state);
 
     protected double calculateCurrentRemovalProb(EpidemicState state) {
-        return removalProbCache[state.modelIntervalIdx];
+        return snapshot.getRemovalProb(state.modelIntervalIdx);
     }
 
     /**
@@ -325,8 +439,22 @@ public abstract class EpidemicModel extends CalculationNode {
      * @param state state to update
      * @param event epidemic event
      */
+    public final void incrementState(EpidemicState state,
+            EpidemicEvent event) {
+        incrementState(state, event.type, event.multiplicity);
+    }
+
+    /**
+     * Increment state according to reactions of chosen type.
+     *
+     * @param state state to update
+     * @param type type of reaction (one of the EpidemicEvent type constants)
+     * @param multiplicity number of reactions.  May be non-integer (or
+     *                     negative) when the state follows a diffusion
+     *                     approximation to the reaction counts.
+     */
     public abstract void incrementState(EpidemicState state,
-            EpidemicEvent event);
+            int type, double multiplicity);
 
     /**
      * Uses algorithm outlined in Cao et al. (JCP, 2006) to select the next
@@ -341,24 +469,38 @@ public abstract class EpidemicModel extends CalculationNode {
     public abstract double getTau(double epsilon, EpidemicState state,
                                   double infectProp, double recovProp);
 
+    /**
+     * Used by leaping algorithms which must not overshoot the population
+     * size.  Models without a finite susceptible population return
+     * infinity.
+     *
+     * @param state epidemic state
+     * @return largest number of infections possible in the given state
+     */
+    public double getMaxInfections(EpidemicState state) {
+        return Double.POSITIVE_INFINITY;
+    }
+
     /**
      * Transform various inference parameterizations into a uniform
      * simulation parameterization.
      *
      * @param transformedRates Array where simulation parameters are recorded.
-     * @param currentRates Map where inference parameters are recorded.
+     * @param currentRates Array of inference parameters, indexed by
+     *                     RateVariableType ordinal.
      */
-    protected void transformRates(Double[] transformedRates, Map<ModelEvent.RateVariableType, Double> currentRates) {
+    protected void transformRates(double[] transformedRates, double[] currentRates) {
+
+        double recoveryRate = currentRates[ModelEvent.RateVariableType.RECOVERY_RATE.ordinal()];
 
-        transformedRates[EpidemicEvent.INFECTION] = currentRates.get(ModelEvent.RateVariableType.INFECTION_RATE);
-        transformedRates[EpidemicEvent.RECOVERY] = currentRates.get(ModelEvent.RateVariableType.RECOVERY_RATE);
+        transformedRates[EpidemicEvent.INFECTION] = currentRates[ModelEvent.RateVariableType.INFECTION_RATE.ordinal()];
+        transformedRates[EpidemicEvent.RECOVERY] = recoveryRate;
 
         double psiSamplingVariable, psiSamplingRate, removalProb;
-        psiSamplingVariable = currentRates.get(ModelEvent.RateVariableType.PSI_SAMPLING_VARIABLE);
+        psiSamplingVariable = currentRates[ModelEvent.RateVariableType.PSI_SAMPLING_VARIABLE.ordinal()];
         if (usePsiSamplingProportionInput.get()) {
             if (psiSamplingVariable > 0.0) {
-                psiSamplingRate = currentRates.get(ModelEvent.RateVariableType.RECOVERY_RATE)
-                        / (1.0 / psiSamplingVariable - 1.0);
+                psiSamplingRate = recoveryRate / (1.0 / psiSamplingVariable - 1.0);
             } else {
                 psiSamplingRate = 0.0;
             }
@@ -366,14 +508,15 @@ public abstract class EpidemicModel extends CalculationNode {
             psiSamplingRate = psiSamplingVariable;
         }
 
-        removalProb = currentRates.get(ModelEvent.RateVariableType.REMOVAL_PROB);
+        removalProb = currentRates[ModelEvent.RateVariableType.REMOVAL_PROB.ordinal()];
 
         transformedRates[EpidemicEvent.PSI_SAMPLE_REMOVE] = psiSamplingRate*removalProb;
         transformedRates[EpidemicEvent.PSI_SAMPLE_NOREMOVE] = psiSamplingRate*(1.0-removalProb);
     }
 
     /**
-     * Update model event list and reaction rate caches.
+     * Update model event list and compile a new model snapshot.  The
+     * current snapshot is kept if the compiled parameters are unchanged.
      */
     public void update() {
         if (!ratesDirty)
@@ -381,66 +524,104 @@ public abstract class EpidemicModel extends CalculationNode {
 
         updateModelEventList();
 
-        // Map to store untransformed rates as we iterate over model events
+        // Untransformed rates as we iterate over model events, indexed
+        // by RateVariableType ordinal
 
-        Map<ModelEvent.RateVariableType,Double> currentRates = new EnumMap<>(ModelEvent.RateVariableType.class);
+        double[] currentRates = new double[ModelEvent.RateVariableType.values().length];
 
         // Fill currentRates with rates at start of epidemic process
         // (Note that the epidemic process may start _after_ a model event!)
 
-        currentRates.put(ModelEvent.RateVariableType.INFECTION_RATE,
+        currentRates[ModelEvent.RateVariableType.INFECTION_RATE.ordinal()] =
                 getRateAtTime(infectionRateInput.get(),
                               infectionRateShiftTimesInput.get(),
-                              infectionRateShiftTimesBackwardInput.get(), 0.0));
-        currentRates.put(ModelEvent.RateVariableType.RECOVERY_RATE,
+                              infectionRateShiftTimesBackwardInput.get(), 0.0);
+        currentRates[ModelEvent.RateVariableType.RECOVERY_RATE.ordinal()] =
                 getRateAtTime(recoveryRateInput.get(),
                               recoveryRateShiftTimesInput.get(),
-                              recoveryRateShiftTimesBackwardInput.get(), 0.0));
-        currentRates.put(ModelEvent.RateVariableType.PSI_SAMPLING_VARIABLE,
+                              recoveryRateShiftTimesBackwardInput.get(), 0.0);
+        currentRates[ModelEvent.RateVariableType.PSI_SAMPLING_VARIABLE.ordinal()] =
                 psiSamplingVariableInput.get() != null
                         ? getRateAtTime(psiSamplingVariableInput.get(),
                                         psiSamplingVariableShiftTimesInput.get(),
                                         psiSamplingVariableShiftTimesBackwardInput.get(), 0.0)
-                        : 0.0);
-        currentRates.put(ModelEvent.RateVariableType.REMOVAL_PROB,
+                        : 0.0;
+        currentRates[ModelEvent.RateVariableType.REMOVAL_PROB.ordinal()] =
                 getRateAtTime(removalProbInput.get(),
                               removalProbShiftTimesInput.get(),
-                              removalProbShiftTimesBackwardInput.get(), 0.0));
-
-        // Initialize transformed rate caches
-
-        if (rateCache.isEmpty()) {
-            for (int i=0; i < modelEventList.size()+1; i++)
-                rateCache.add(new Double[EpidemicEvent.nTypes]);
+                              removalProbShiftTimesBackwardInput.get(), 0.0);
+
+        // Compile tables.  Tables owned by a snapshot are never reused, so
+        // snapshots handed out previously remain unchanged.
+
+        int nModelEvents = modelEventList.size();
+        if (compiledRates == null || compiledRates.length != nModelEvents+1) {
+            compiledRates = new double[nModelEvents+1][EpidemicEvent.nTypes];
+            compiledRemovalProbs = new double[nModelEvents+1];
+            compiledEventTimes = new double[nModelEvents];
+            compiledRhos = new double[nModelEvents];
+            compiledIsRhoSampling = new boolean[nModelEvents];
         }
-
-        if (removalProbCache == null) {
-            removalProbCache = new double[modelEventList.size()+1];
+        double[][] rates = compiledRates;
+        double[] removalProbs = compiledRemovalProbs;
+        double[] eventTimes = compiledEventTimes;
+        double[] rhos = compiledRhos;
+        boolean[] isRhoSampling = compiledIsRhoSampling;
+
+        for (double[] intervalRates : rates)
+            Arrays.fill(intervalRates, 0.0);
+        Arrays.fill(removalProbs, 0.0);
+        Arrays.fill(rhos, 0.0);
+        Arrays.fill(isRhoSampling, false);
+
+        for (int i=0; i<nModelEvents; i++) {
+            ModelEvent modelEvent = modelEventList.get(i);
+            eventTimes[i] = modelEvent.time;
+            if (modelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+                isRhoSampling[i] = true;
+                rhos[i] = modelEvent.rho;
+            }
         }
 
         // Store initial transformed rates
 
-        transformRates(rateCache.get(initialModelEventIndex), currentRates);
-        removalProbCache[initialModelEventIndex] = currentRates.get(ModelEvent.RateVariableType.REMOVAL_PROB);
+        transformRates(rates[initialModelEventIndex], currentRates);
+        removalProbs[initialModelEventIndex] = currentRates[ModelEvent.RateVariableType.REMOVAL_PROB.ordinal()];
 
-        // Iterate over model events, caching transformed rates along the way
+        // Iterate over model events, recording transformed rates along the way
 
-        for (int i=initialModelEventIndex; i<modelEventList.size(); i++) {
+        for (int i=initialModelEventIndex; i<nModelEvents; i++) {
             ModelEvent modelEvent = modelEventList.get(i);
 
             if (modelEvent.time < 0.0)
                 continue; // Skip events prior to origin
 
             if (modelEvent.type == ModelEvent.Type.RATE_CHANGE)
-                currentRates.put(modelEvent.rateVariableType, modelEvent.newRateVariableValue);
+                currentRates[modelEvent.rateVariableType.ordinal()] = modelEvent.newRateVariableValue;
 
-            transformRates(rateCache.get(i+1), currentRates);
-            removalProbCache[i+1] = currentRates.get(ModelEvent.RateVariableType.REMOVAL_PROB);
+            transformRates(rates[i+1], currentRates);
+            removalProbs[i+1] = currentRates[ModelEvent.RateVariableType.REMOVAL_PROB.ordinal()];
+        }
+
+        if (snapshot == null || !snapshot.matches(rates, removalProbs,
+                eventTimes, rhos, isRhoSampling, initialModelEventIndex)) {
+            snapshot = new ModelSnapshot(rates, removalProbs,
+                    eventTimes, rhos, isRhoSampling, initialModelEventIndex);
+            compiledRates = null;
         }
 
         ratesDirty = false;
     }
 
+    /**
+     * @return immutable snapshot of the current model parameters
+     */
+    public ModelSnapshot getSnapshot() {
+        update();
+
+        return snapshot;
+    }
+
 
     /**
      * Assemble list of model events.
@@ -512,10 +693,7 @@ public abstract class EpidemicModel extends CalculationNode {
     public double getNextModelEventTime(EpidemicState state) {
         update();
 
-        if (state.modelIntervalIdx <modelEventList.size())
-            return modelEventList.get(state.modelIntervalIdx).time;
-        else
-            return Double.POSITIVE_INFINITY;
+        return snapshot.getNextEventTime(state.modelIntervalIdx);
     }
 
     public ModelEvent getNextModelEvent(EpidemicState state) {
@@ -536,6 +714,60 @@ public abstract class EpidemicModel extends CalculationNode {
         return modelEventList;
     }
 
+    /**
+     * @param modelIntervalIdx index of model interval
+     * @param eventType type of epidemic event
+     * @return rate of event type within model interval
+     */
+    public double getIntervalRate(int modelIntervalIdx, int eventType) {
+        update();
+
+        return snapshot.getRate(modelIntervalIdx, eventType);
+    }
+
+    /**
+     * @param modelIntervalIdx index of model interval
+     * @return removal probability within model interval
+     */
+    public double getIntervalRemovalProb(int modelIntervalIdx) {
+        update();
+
+        return snapshot.getRemovalProb(modelIntervalIdx);
+    }
+
+    /**
+     * @param eventType type of epidemic event
+     * @return maximum rate of event type over all model intervals
+     */
+    public double getMaxIntervalRate(int eventType) {
+        update();
+
+        double maxRate = 0.0;
+        for (int i=initialModelEventIndex; i<snapshot.getIntervalCount(); i++)
+            maxRate = Math.max(maxRate, snapshot.getRate(i, eventType));
+
+        return maxRate;
+    }
+
+    /**
+     * @return upper bound on the number of infected individuals, or
+     * positive infinity if the prevalence is unbounded
+     */
+    public double getMaxPrevalence() {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Upper bound on the rate at which a given pair of infected
+     * individuals coalesces, i.e. on 2*a/(I*(I+1)) where a is the infection
+     * propensity of a state with I infecteds.
+     *
+     * @return upper bound, or positive infinity if none is available
+     */
+    public double getMaxPairCoalescenceRate() {
+        return Double.POSITIVE_INFINITY;
+    }
+
     
     /**
      * @return last simulated event list
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.models;
+
+import epiinf.EpidemicEvent;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, compiled form of the piecewise-constant parameters of an
+ * epidemic model.  Model interval i is the interval ending at model
+ * event i, so a model with n model events has n+1 intervals.  Reaction
+ * rates are stored in a flat primitive table indexed by interval and
+ * EpidemicEvent type.
+ *
+ * A new snapshot is compiled by EpidemicModel.update() whenever the model
+ * parameters change; update() keeps the existing snapshot if recompiling
+ * yields identical parameters.  Snapshots are never modified once built, so they
+ * may be shared between threads and retained across model updates.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public final class ModelSnapshot {
+
+    private final double[][] rates;
+    private final double[] removalProbs;
+    private final double[] eventTimes, rhos;
+    private final boolean[] isRhoSampling;
+    private final int initialIntervalIdx;
+
+    /**
+     * @param rates transformed reaction rates, indexed by interval and event type
+     * @param removalProbs removal probabilities, indexed by interval
+     * @param eventTimes model event times
+     * @param rhos rho sampling probabilities (zero for rate changes)
+     * @param isRhoSampling true for model events which are rho sampling events
+     * @param initialIntervalIdx index of interval containing the origin
+     */
+    ModelSnapshot(double[][] rates, double[] removalProbs,
+                  double[] eventTimes, double[] rhos, boolean[] isRhoSampling,
+                  int initialIntervalIdx) {
+        this.rates = rates;
+        this.removalProbs = removalProbs;
+        this.eventTimes = eventTimes;
+        this.rhos = rhos;
+        this.isRhoSampling = isRhoSampling;
+        this.initialIntervalIdx = initialIntervalIdx;
+    }
+
+    /**
+     * Test whether this snapshot holds the given compiled parameters.
+     *
+     * @param rates transformed reaction rates, indexed by interval and event type
+     * @param removalProbs removal probabilities, indexed by interval
+     * @param eventTimes model event times
+     * @param rhos rho sampling probabilities (zero for rate changes)
+     * @param isRhoSampling true for model events which are rho sampling events
+     * @param initialIntervalIdx index of interval containing the origin
+     * @return true if all parameters are equal to those of this snapshot
+     */
+    boolean matches(double[][] rates, double[] removalProbs,
+                    double[] eventTimes, double[] rhos, boolean[] isRhoSampling,
+                    int initialIntervalIdx) {
+        return initialIntervalIdx == this.initialIntervalIdx
+                && Arrays.deepEquals(rates, this.rates)
+                && Arrays.equals(removalProbs, this.removalProbs)
+                && Arrays.equals(eventTimes, this.eventTimes)
+                && Arrays.equals(rhos, this.rhos)
+                && Arrays.equals(isRhoSampling, this.isRhoSampling);
+    }
+
+    /**
+     * @return number of model intervals
+     */
+    public int getIntervalCount() {
+        return rates.length;
+    }
+
+    /**
+     * @return number of model events
+     */
+    public int getEventCount() {
+        return eventTimes.length;
+    }
+
+    /**
+     * @return index of model interval containing the origin
+     */
+    public int getInitialIntervalIdx() {
+        return initialIntervalIdx;
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @param eventType type of epidemic event
+     * @return rate of event type within model interval
+     */
+    public double getRate(int intervalIdx, int eventType) {
+        return rates[intervalIdx][eventType];
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @return total psi-sampling rate within model interval
+     */
+    public double getPsiSamplingRate(int intervalIdx) {
+        double[] intervalRates = rates[intervalIdx];
+        return intervalRates[EpidemicEvent.PSI_SAMPLE_REMOVE]
+                + intervalRates[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @return removal probability within model interval
+     */
+    public double getRemovalProb(int intervalIdx) {
+        return removalProbs[intervalIdx];
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @return time of model event ending the interval, or positive
+     * infinity for the final interval
+     */
+    public double getNextEventTime(int intervalIdx) {
+        return intervalIdx < eventTimes.length
+                ? eventTimes[intervalIdx]
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @return true if the model event ending the interval is a rho
+     * sampling event
+     */
+    public boolean isRhoSamplingEvent(int intervalIdx) {
+        return intervalIdx < isRhoSampling.length && isRhoSampling[intervalIdx];
+    }
+
+    /**
+     * @param intervalIdx index of model interval
+     * @return rho sampling probability of the model event ending the
+     * interval, or zero if this is not a rho sampling event
+     */
+    public double getRho(int intervalIdx) {
+        return intervalIdx < rhos.length ? rhos[intervalIdx] : 0.0;
+    }
+}
@@ -40,35 +40,58 @@ public class SIRModel extends EpidemicModel {
     }
 
     @Override
-    protected double calculateInfectionPropensity(EpidemicState state) {
-        return rateCache.get(state.modelIntervalIdx)[EpidemicEvent.INFECTION]*state.S*state.I;
+    protected double calculateInfectionPropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.INFECTION)*state.S*state.I;
     }
 
     @Override
-    protected double calculateRecoveryPropensity(EpidemicState state) {
-        return rateCache.get(state.modelIntervalIdx)[EpidemicEvent.RECOVERY]*state.I;
+    protected double calculateRecoveryPropensity(ModelSnapshot snapshot, EpidemicState state) {
+        return snapshot.getRate(state.modelIntervalIdx, EpidemicEvent.RECOVERY)*state.I;
     }
 
     @Override
-    public void incrementState(EpidemicState state, EpidemicEvent event) {
-        switch(event.type) {
+    protected void calculateInfectionPropensities(ModelSnapshot snapshot,
+                                                  double[] S, double[] I, int modelIntervalIdx,
+                                                  int from, int to, double[] result) {
+        double rate = snapshot.getRate(modelIntervalIdx, EpidemicEvent.INFECTION);
+        for (int i=from; i<to; i++)
+            result[i] = rate*S[i]*I[i];
+    }
+
+    @Override
+    protected void calculateRecoveryPropensities(ModelSnapshot snapshot,
+                                                 double[] S, double[] I, int modelIntervalIdx,
+                                                 int from, int to, double[] result) {
+        double rate = snapshot.getRate(modelIntervalIdx, EpidemicEvent.RECOVERY);
+        for (int i=from; i<to; i++)
+            result[i] = rate*I[i];
+    }
+
+    @Override
+    public void incrementState(EpidemicState state, int type, double multiplicity) {
+        switch(type) {
             case EpidemicEvent.INFECTION:
-                state.S -= event.multiplicity;
-                state.I += event.multiplicity;
-                state.cumulativeInfections += event.multiplicity;
+                state.S -= multiplicity;
+                state.I += multiplicity;
+                state.cumulativeInfections += multiplicity;
                 break;
             case EpidemicEvent.RECOVERY:
             case EpidemicEvent.RHO_SAMPLE:
             case EpidemicEvent.PSI_SAMPLE_REMOVE:
             case EpidemicEvent.OTHER_SAMPLE:
-                state.I -= event.multiplicity;
-                state.R += event.multiplicity;
+                state.I -= multiplicity;
+                state.R += multiplicity;
                 break;
             default:
                 break;
         }
     }
 
+    @Override
+    public double getMaxInfections(EpidemicState state) {
+        return state.S;
+    }
+
     @Override
     public double getTau(double epsilon, EpidemicState state, double infectionProp, double recoveryProp) {
         double muS = -infectionProp;
@@ -94,4 +117,14 @@ public class SIRModel extends EpidemicModel {
 
         return tau;
     }
+
+    @Override
+    public double getMaxPrevalence() {
+        return Math.round(S0Input.get().getValue()) + 1;
+    }
+
+    @Override
+    public double getMaxPairCoalescenceRate() {
+        return 2.0*getMaxIntervalRate(EpidemicEvent.INFECTION)*Math.round(S0Input.get().getValue());
+    }
 }
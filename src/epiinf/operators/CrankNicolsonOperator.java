@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Crank-Nicolson proposal for the standard normal auxiliary " +
+        "variables of a particle filter, optionally combined with a " +
+        "proposal for the model parameters.  Used for correlated " +
+        "pseudo-marginal MCMC.")
+public class CrankNicolsonOperator extends Operator {
+
+    public Input<RealParameter> auxiliaryRandomsInput = new Input<>(
+            "auxiliaryRandoms", "Standard normal auxiliary variables.",
+            Input.Validate.REQUIRED);
+
+    public Input<Operator> operatorInput = new Input<>(
+            "operator", "Operator proposing new model parameters " +
+            "alongside the auxiliary variables.");
+
+    public Input<Double> correlationInput = new Input<>(
+            "correlation", "Correlation between current and proposed " +
+            "auxiliary variables.", 0.99);
+
+    RealParameter auxiliaryRandoms;
+    Operator operator;
+    double correlation;
+
+    @Override
+    public void initAndValidate() {
+        auxiliaryRandoms = auxiliaryRandomsInput.get();
+        operator = operatorInput.get();
+        correlation = correlationInput.get();
+
+        if (correlation < 0.0 || correlation >= 1.0)
+            throw new IllegalArgumentException("Correlation must lie in [0,1).");
+    }
+
+    @Override
+    public double proposal() {
+
+        double logHR = 0.0;
+        if (operator != null) {
+            logHR = operator.proposal();
+            if (logHR == Double.NEGATIVE_INFINITY)
+                return Double.NEGATIVE_INFINITY;
+        }
+
+        // The Crank-Nicolson move is reversible with respect to the
+        // standard normal distribution of the auxiliary variables, so it
+        // contributes nothing to the Hastings ratio provided that this
+        // distribution is not also included in the posterior.
+        double scale = Math.sqrt(1.0 - correlation*correlation);
+        for (int i=0; i<auxiliaryRandoms.getDimension(); i++) {
+            auxiliaryRandoms.setValue(i, correlation*auxiliaryRandoms.getValue(i)
+                    + scale*Randomizer.nextGaussian());
+        }
+
+        return logHR;
+    }
+}
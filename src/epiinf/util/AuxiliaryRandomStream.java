@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.GammaFunction;
+
+/**
+ * Random stream driven by a fixed array of standard normal auxiliary
+ * variables, as used by correlated pseudo-marginal MCMC.  The array is
+ * divided into equal-length blocks, one per particle, each consumed in
+ * order starting from a per-block cursor.  Uniform variates are obtained
+ * by transforming normals with the standard normal CDF, and other variates
+ * by inversion, so that each variate is a monotone function of a single
+ * auxiliary normal.  Once a block is exhausted, the stream falls back to
+ * a splittable stream belonging to that block, so that the variates drawn
+ * do not depend on the thread drawing them.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class AuxiliaryRandomStream implements RandomStream {
+
+    // Below this mean Poisson variates are generated by sequential search.
+    private static final double POISSON_SEARCH_THRESH = 30.0;
+
+    private final double[] normals;
+    private final int offset, blockLength;
+    private final int[] cursors;
+    private final SplittableRandomStream[] fallbackStreams;
+
+    private int block;
+
+    /**
+     * Create a new stream.
+     *
+     * @param normals array of standard normal auxiliary variables
+     * @param offset index of first element of first block
+     * @param blockLength length of each block
+     * @param cursors array holding the position within each block, shared
+     *                by all streams over the same blocks
+     * @param fallbackStreams array holding one stream per block, used once
+     *                        the block is exhausted
+     */
+    public AuxiliaryRandomStream(double[] normals, int offset, int blockLength,
+                                 int[] cursors, SplittableRandomStream[] fallbackStreams) {
+        this.normals = normals;
+        this.offset = offset;
+        this.blockLength = blockLength;
+        this.cursors = cursors;
+        this.fallbackStreams = fallbackStreams;
+    }
+
+    /**
+     * Select block from which subsequent variates are drawn.
+     *
+     * @param block block index
+     */
+    public void select(int block) {
+        this.block = block;
+    }
+
+    /**
+     * @return next standard normal variate from current block
+     */
+    @Override
+    public double nextGaussian() {
+        if (cursors[block] < blockLength)
+            return normals[offset + block*blockLength + cursors[block]++];
+        else
+            return fallbackStreams[block].nextGaussian();
+    }
+
+    @Override
+    public double nextDouble() {
+        return toUniform(nextGaussian());
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return Math.min(n-1, (int)(nextDouble()*n));
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return -Math.log(1.0 - nextDouble())/rate;
+    }
+
+    @Override
+    public double nextPoisson(double mean) {
+        return poissonQuantile(mean, nextGaussian());
+    }
+
+    /**
+     * Obtain a Poisson variate by inversion, as a monotone function of a
+     * single standard normal variate.
+     *
+     * @param mean mean of Poisson distribution
+     * @param z standard normal variate
+     * @return Poisson distributed random number
+     */
+    static double poissonQuantile(double mean, double z) {
+        if (!(mean > 0.0))
+            return 0;
+
+        double u = toUniform(z);
+        double pmf, cdf;
+        int k;
+
+        if (mean < POISSON_SEARCH_THRESH) {
+            k = 0;
+            pmf = Math.exp(-mean);
+            cdf = pmf;
+            while (cdf < u && pmf > 0.0) {
+                k += 1;
+                pmf *= mean/k;
+                cdf += pmf;
+            }
+
+            return k;
+        }
+
+        // Start search from normal approximation to the quantile.
+        k = (int)Math.max(0, Math.round(mean + Math.sqrt(mean)*z));
+        pmf = Math.exp(k*Math.log(mean) - mean - GammaFunction.lnGamma(k + 1));
+        cdf = GammaFunction.incompleteGammaQ(k + 1, mean);
+
+        if (cdf < u) {
+            while (cdf < u && pmf > 0.0) {
+                k += 1;
+                pmf *= mean/k;
+                cdf += pmf;
+            }
+        } else {
+            while (k > 0 && cdf - pmf >= u) {
+                cdf -= pmf;
+                pmf *= k/mean;
+                k -= 1;
+            }
+        }
+
+        return k;
+    }
+
+    /**
+     * Transform a standard normal variate to a uniform variate on (0,1)
+     * using the standard normal CDF.  Uses Marsaglia's series (J. Stat.
+     * Softw. 11(4), 2004), accurate to double precision.
+     *
+     * @param z standard normal variate
+     * @return uniform variate
+     */
+    public static double toUniform(double z) {
+        if (z < -8.0)
+            return Double.MIN_VALUE;
+        if (z > 8.0)
+            return 1.0 - 0x1.0p-53;
+
+        double s = z, t = 0.0, b = z, q = z*z, i = 1.0;
+        while (s != t) {
+            t = s;
+            i += 2.0;
+            b *= q/i;
+            s = t + b;
+        }
+
+        double u = 0.5 + s*Math.exp(-0.5*q - 0.91893853320467274178);
+        return Math.min(Math.max(u, Double.MIN_VALUE), 1.0 - 0x1.0p-53);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.GammaFunction;
+
+/**
+ * Exact Poisson and binomial samplers whose expected cost does not grow
+ * with the mean.  Poisson variates with large means are drawn using the
+ * PTRS transformed rejection method of Hormann (Insurance Math. Econom.
+ * 12:39-45, 1993) and binomial variates with large means using the BTPE
+ * algorithm of Kachitvichyanukul and Schmeiser (Commun. ACM 31:216-222,
+ * 1988).  Small means are handled by simple sequential methods.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public final class DiscreteVariates {
+
+    // Means below which the sequential methods are used.
+    private static final double POISSON_PTRS_THRESH = 10.0;
+    private static final double BINOMIAL_BTPE_THRESH = 30.0;
+
+    private DiscreteVariates() { }
+
+    /**
+     * @param mean mean of Poisson distribution
+     * @param random source of random numbers
+     * @return Poisson distributed random number
+     */
+    public static double nextPoisson(double mean, RandomStream random) {
+        if (!(mean > 0.0))
+            return 0;
+
+        if (mean < POISSON_PTRS_THRESH) {
+            // Multiply uniforms until product falls below exp(-mean)
+            double expMinusMean = Math.exp(-mean);
+            double prod = random.nextDouble();
+            long k = 0;
+            while (prod > expMinusMean) {
+                k += 1;
+                prod *= random.nextDouble();
+            }
+
+            return k;
+        }
+
+        double logMean = Math.log(mean);
+        double b = 0.931 + 2.53*Math.sqrt(mean);
+        double a = -0.059 + 0.02483*b;
+        double logInvAlpha = Math.log(1.1239 + 1.1328/(b - 3.4));
+        double vr = 0.9277 - 3.6224/(b - 2.0);
+
+        while (true) {
+            double U = random.nextDouble() - 0.5;
+            double V = random.nextDouble();
+            double us = 0.5 - Math.abs(U);
+            double k = Math.floor((2.0*a/us + b)*U + mean + 0.43);
+
+            // Immediate acceptance within the central region
+            if (us >= 0.07 && V <= vr)
+                return k;
+
+            if (k < 0 || (us < 0.013 && V > us))
+                continue;
+
+            if (Math.log(V) + logInvAlpha - Math.log(a/(us*us) + b)
+                    <= -mean + k*logMean - GammaFunction.lnGamma(k + 1))
+                return k;
+        }
+    }
+
+    /**
+     * @param n number of trials
+     * @param p success probability
+     * @param random source of random numbers
+     * @return number of successes
+     */
+    public static int nextBinomial(int n, double p, RandomStream random) {
+        if (n <= 0 || !(p > 0.0))
+            return 0;
+
+        if (p >= 1.0)
+            return n;
+
+        // Sample number of successes or failures, whichever is less likely
+        double r = Math.min(p, 1.0 - p);
+
+        int y = n*r < BINOMIAL_BTPE_THRESH
+                ? nextBinomialInversion(n, r, random)
+                : nextBinomialBTPE(n, r, random);
+
+        return p > 0.5 ? n - y : y;
+    }
+
+    /**
+     * Binomial sampler based on sequential search of the CDF, restarted
+     * if the search wanders too far into the tail.
+     *
+     * @param n number of trials
+     * @param p success probability, at most 0.5
+     * @param random source of random numbers
+     * @return number of successes
+     */
+    private static int nextBinomialInversion(int n, double p, RandomStream random) {
+        double q = 1.0 - p;
+        double qn = Math.exp(n*Math.log(q));
+        double np = n*p;
+        double bound = Math.min(n, np + 10.0*Math.sqrt(np*q + 1));
+
+        int x = 0;
+        double px = qn;
+        double u = random.nextDouble();
+        while (u > px) {
+            x += 1;
+            if (x > bound) {
+                x = 0;
+                px = qn;
+                u = random.nextDouble();
+            } else {
+                u -= px;
+                px = ((n - x + 1)*p*px)/(x*q);
+            }
+        }
+
+        return x;
+    }
+
+    /**
+     * BTPE binomial sampler.
+     *
+     * @param n number of trials
+     * @param p success probability, at most 0.5
+     * @param random source of random numbers
+     * @return number of successes
+     */
+    private static int nextBinomialBTPE(int n, double p, RandomStream random) {
+        double q = 1.0 - p;
+        double nrq = n*p*q;
+        double fm = n*p + p;
+        int m = (int)Math.floor(fm);
+
+        // Set up triangle, parallelograms and exponential tails of the
+        // hat function
+        double p1 = Math.floor(2.195*Math.sqrt(nrq) - 4.6*q) + 0.5;
+        double xm = m + 0.5;
+        double xl = xm - p1;
+        double xr = xm + p1;
+        double c = 0.134 + 20.5/(15.3 + m);
+        double a = (fm - xl)/(fm - xl*p);
+        double lambdaL = a*(1.0 + a/2.0);
+        a = (xr - fm)/(xr*q);
+        double lambdaR = a*(1.0 + a/2.0);
+        double p2 = p1*(1.0 + 2.0*c);
+        double p3 = p2 + c/lambdaL;
+        double p4 = p3 + c/lambdaR;
+
+        while (true) {
+            double u = random.nextDouble()*p4;
+            double v = random.nextDouble();
+            int y;
+
+            if (u <= p1) {
+                // Triangular region: immediate acceptance
+                return (int)Math.floor(xm - p1*v + u);
+            } else if (u <= p2) {
+                // Parallelograms
+                double x = xl + (u - p1)/c;
+                v = v*c + 1.0 - Math.abs(m - x + 0.5)/p1;
+                if (v > 1.0)
+                    continue;
+                y = (int)Math.floor(x);
+            } else if (u <= p3) {
+                // Left exponential tail
+                y = (int)Math.floor(xl + Math.log(v)/lambdaL);
+                if (y < 0 || v == 0.0)
+                    continue;
+                v = v*(u - p2)*lambdaL;
+            } else {
+                // Right exponential tail
+                y = (int)Math.floor(xr - Math.log(v)/lambdaR);
+                if (y > n || v == 0.0)
+                    continue;
+                v = v*(u - p3)*lambdaR;
+            }
+
+            int k = Math.abs(y - m);
+            if (k <= 20 || k >= nrq/2.0 - 1) {
+                // Evaluate f(y)/f(m) explicitly
+                double s = p/q;
+                double as = s*(n + 1);
+                double F = 1.0;
+                if (m < y) {
+                    for (int i = m + 1; i <= y; i++)
+                        F *= as/i - s;
+                } else if (m > y) {
+                    for (int i = y + 1; i <= m; i++)
+                        F /= as/i - s;
+                }
+
+                if (v <= F)
+                    return y;
+
+                continue;
+            }
+
+            // Squeeze using bounds on log(f(y)/f(m))
+            double rho = (k/nrq)*((k*(k/3.0 + 0.625) + 0.16666666666666666)/nrq + 0.5);
+            double t = -(double)k*k/(2.0*nrq);
+            double logV = Math.log(v);
+            if (logV < t - rho)
+                return y;
+            if (logV > t + rho)
+                continue;
+
+            // Final comparison using Stirling's formula
+            double x1 = y + 1, f1 = m + 1, z = n + 1 - m, w = n - y + 1;
+            double bound = xm*Math.log(f1/x1)
+                    + (n - m + 0.5)*Math.log(z/w)
+                    + (y - m)*Math.log(w*p/(x1*q))
+                    + stirlingCorrection(f1) + stirlingCorrection(z)
+                    - stirlingCorrection(x1) - stirlingCorrection(w);
+
+            if (logV <= bound)
+                return y;
+        }
+    }
+
+    /**
+     * @param x argument, k+1 for the correction to log(k!)
+     * @return series correction to Stirling's approximation used by BTPE,
+     * log(k!) - (k+1/2)log(k+1) + (k+1) - log(2*pi)/2
+     */
+    static double stirlingCorrection(double x) {
+        double x2 = x*x;
+        return (13860.0 - (462.0 - (132.0 - (99.0 - 140.0/x2)/x2)/x2)/x2)/x/166320.0;
+    }
+}
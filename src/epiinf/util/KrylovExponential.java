@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.util.Arrays;
+
+/**
+ * Computes the action exp(tA)v of the exponential of a large sparse
+ * matrix on a vector, using the adaptive Krylov subspace method of
+ * Sidje (ACM Trans. Math. Softw. 24:130-156, 1998) on which the Expokit
+ * routine expv is based.  The matrix is only accessed through products
+ * with vectors.  Errors are controlled relative to the norm of v.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class KrylovExponential {
+
+    /**
+     * Sparse matrix, accessed through its product with a vector.
+     */
+    public interface Operator {
+        /**
+         * Compute y = Ax.
+         *
+         * @param x vector to multiply
+         * @param y vector in which to store result
+         */
+        void apply(double[] x, double[] y);
+    }
+
+    private static final int MAX_REJECTIONS = 20;
+    private static final double GAMMA = 0.9, DELTA = 1.2;
+    private static final double BREAKDOWN_TOL = 1e-7;
+
+    private final int m;
+    private final double tol;
+
+    private int n;
+    private double[][] V = new double[0][];
+    private double[] scratch = new double[0];
+    private final double[][] H, F;
+
+    // Scratch space for dense matrix exponential
+    private final double[][] padeX, padeXk, padeN, padeD;
+
+    /**
+     * @param m maximum dimension of Krylov subspace
+     * @param tol relative error tolerance per unit time
+     */
+    public KrylovExponential(int m, double tol) {
+        if (m < 2)
+            throw new IllegalArgumentException("Krylov subspace dimension must be at least 2.");
+
+        this.m = m;
+        this.tol = tol;
+
+        H = new double[m+2][m+2];
+        F = new double[m+2][m+2];
+        padeX = new double[m+2][m+2];
+        padeXk = new double[m+2][m+2];
+        padeN = new double[m+2][m+2];
+        padeD = new double[m+2][m+2];
+    }
+
+    /**
+     * Replace v with exp(tA)v.
+     *
+     * @param A matrix
+     * @param anorm estimate of the 1-norm of A
+     * @param t non-negative time
+     * @param v vector to which the exponential is applied
+     */
+    public void apply(Operator A, double anorm, double t, double[] v) {
+        ensureCapacity(v.length);
+
+        double beta = norm(v);
+        if (!(t > 0.0) || beta == 0.0 || !(anorm > 0.0))
+            return;
+
+        // Initial step size, as in expv but for a unit vector
+        int m = Math.min(this.m, n);
+        double xm = 1.0/m;
+        double fact = Math.pow((m + 1)/Math.E, m + 1)*Math.sqrt(2.0*Math.PI*(m + 1));
+        double tNew = roundStep((1.0/anorm)*Math.pow(fact*tol/(4.0*anorm), xm));
+
+        double tNow = 0.0;
+        while (tNow < t) {
+            double tStep = Math.min(t - tNow, tNew);
+
+            // Arnoldi process
+            for (int i=0; i<n; i++)
+                V[0][i] = v[i]/beta;
+            for (int i=0; i<m+2; i++)
+                Arrays.fill(H[i], 0.0);
+
+            int mb = m;
+            int k1 = 2;
+            for (int j=0; j<m; j++) {
+                double[] p = V[j+1];
+                A.apply(V[j], p);
+                for (int i=0; i<=j; i++) {
+                    double h = dot(V[i], p);
+                    H[i][j] = h;
+                    for (int l=0; l<n; l++)
+                        p[l] -= h*V[i][l];
+                }
+
+                double s = norm(p);
+                if (s < BREAKDOWN_TOL) {
+                    // Happy breakdown: subspace is invariant
+                    k1 = 0;
+                    mb = j+1;
+                    tStep = t - tNow;
+                    break;
+                }
+
+                H[j+1][j] = s;
+                for (int l=0; l<n; l++)
+                    p[l] /= s;
+            }
+
+            double avnorm = 0.0;
+            if (k1 != 0) {
+                H[m+1][m] = 1.0;
+                A.apply(V[m], scratch);
+                avnorm = norm(scratch);
+            }
+
+            // Find a step size which satisfies the error tolerance
+            double errLoc = BREAKDOWN_TOL;
+            int nRejections = 0;
+            while (true) {
+                int mx = mb + k1;
+                expm(H, mx, tStep, F);
+
+                if (k1 == 0)
+                    break;
+
+                double phi1 = Math.abs(F[m][0]);
+                double phi2 = Math.abs(F[m+1][0]*avnorm);
+                if (phi1 > 10.0*phi2) {
+                    errLoc = phi2;
+                    xm = 1.0/m;
+                } else if (phi1 > phi2) {
+                    errLoc = phi1*phi2/(phi1 - phi2);
+                    xm = 1.0/m;
+                } else {
+                    errLoc = phi1;
+                    xm = 1.0/(m - 1);
+                }
+
+                if (errLoc <= DELTA*tStep*tol || nRejections >= MAX_REJECTIONS)
+                    break;
+
+                tStep = roundStep(GAMMA*tStep*Math.pow(tStep*tol/errLoc, xm));
+                nRejections += 1;
+            }
+
+            // Assemble new vector
+            int mx = mb + Math.max(0, k1 - 1);
+            Arrays.fill(v, 0.0);
+            for (int i=0; i<mx; i++) {
+                double c = beta*F[i][0];
+                double[] Vi = V[i];
+                for (int l=0; l<n; l++)
+                    v[l] += c*Vi[l];
+            }
+
+            beta = norm(v);
+            tNow += tStep;
+
+            if (beta == 0.0)
+                return;
+
+            // Unlike expv, errors are not floored at the round-off level,
+            // as this causes steps to shrink indefinitely when the
+            // tolerance is close to machine precision.
+            errLoc = Math.max(errLoc, Double.MIN_NORMAL);
+            tNew = roundStep(GAMMA*tStep*Math.pow(tStep*tol/errLoc, xm));
+        }
+    }
+
+    /**
+     * Allocate Krylov basis for vectors of given length.
+     */
+    private void ensureCapacity(int length) {
+        if (length == n)
+            return;
+
+        n = length;
+        int nBasis = Math.min(m, n) + 1;
+        V = new double[nBasis][n];
+        scratch = new double[n];
+    }
+
+    /**
+     * Round step size up to two significant digits, as in expv.
+     */
+    private static double roundStep(double step) {
+        if (!(step > 0.0) || Double.isInfinite(step))
+            return step;
+
+        double s = Math.pow(10.0, Math.floor(Math.log10(step)) - 1);
+        return Math.ceil(step/s)*s;
+    }
+
+    private double norm(double[] x) {
+        return Math.sqrt(dot(x, x));
+    }
+
+    private double dot(double[] x, double[] y) {
+        double res = 0.0;
+        for (int i=0; i<n; i++)
+            res += x[i]*y[i];
+        return res;
+    }
+
+    /**
+     * Compute the exponential of the leading k x k block of tH using
+     * the degree 6 diagonal Pade approximant with scaling and squaring.
+     *
+     * @param H matrix
+     * @param k dimension of block
+     * @param t scale factor
+     * @param result matrix in which to store leading block of result
+     */
+    private void expm(double[][] H, int k, double t, double[][] result) {
+        final int p = 6;
+
+        double hnorm = 0.0;
+        for (int i=0; i<k; i++) {
+            double rowSum = 0.0;
+            for (int j=0; j<k; j++)
+                rowSum += Math.abs(H[i][j]);
+            hnorm = Math.max(hnorm, rowSum);
+        }
+        hnorm *= Math.abs(t);
+
+        int s = hnorm > 0.0 ? Math.max(0, (int)Math.floor(Math.log(hnorm)/Math.log(2.0)) + 2) : 0;
+        double scale = t/Math.pow(2.0, s);
+
+        for (int i=0; i<k; i++) {
+            for (int j=0; j<k; j++) {
+                padeX[i][j] = scale*H[i][j];
+                padeXk[i][j] = padeX[i][j];
+                double id = i == j ? 1.0 : 0.0;
+                padeN[i][j] = id;
+                padeD[i][j] = id;
+            }
+        }
+
+        // Accumulate numerator and denominator polynomials
+        double c = 1.0;
+        for (int q=1; q<=p; q++) {
+            c *= (double)(p - q + 1)/(q*(2*p - q + 1));
+            double sign = q % 2 == 0 ? 1.0 : -1.0;
+            for (int i=0; i<k; i++) {
+                for (int j=0; j<k; j++) {
+                    padeN[i][j] += c*padeXk[i][j];
+                    padeD[i][j] += sign*c*padeXk[i][j];
+                }
+            }
+
+            if (q < p) {
+                multiply(padeXk, padeX, k, result);
+                copy(result, padeXk, k);
+            }
+        }
+
+        solve(padeD, padeN, k);
+
+        for (int r=0; r<s; r++) {
+            multiply(padeN, padeN, k, result);
+            copy(result, padeN, k);
+        }
+
+        copy(padeN, result, k);
+    }
+
+    private static void multiply(double[][] A, double[][] B, int k, double[][] C) {
+        for (int i=0; i<k; i++) {
+            for (int j=0; j<k; j++) {
+                double res = 0.0;
+                for (int l=0; l<k; l++)
+                    res += A[i][l]*B[l][j];
+                C[i][j] = res;
+            }
+        }
+    }
+
+    private static void copy(double[][] A, double[][] B, int k) {
+        for (int i=0; i<k; i++)
+            System.arraycopy(A[i], 0, B[i], 0, k);
+    }
+
+    /**
+     * Replace B with the solution X of AX = B using Gaussian
+     * elimination with partial pivoting.  A is overwritten.
+     */
+    private static void solve(double[][] A, double[][] B, int k) {
+        for (int col=0; col<k; col++) {
+            int pivot = col;
+            for (int i=col+1; i<k; i++) {
+                if (Math.abs(A[i][col]) > Math.abs(A[pivot][col]))
+                    pivot = i;
+            }
+
+            double[] tmp = A[col]; A[col] = A[pivot]; A[pivot] = tmp;
+            tmp = B[col]; B[col] = B[pivot]; B[pivot] = tmp;
+
+            for (int i=col+1; i<k; i++) {
+                double f = A[i][col]/A[col][col];
+                if (f == 0.0)
+                    continue;
+                for (int j=col; j<k; j++)
+                    A[i][j] -= f*A[col][j];
+                for (int j=0; j<k; j++)
+                    B[i][j] -= f*B[col][j];
+            }
+        }
+
+        for (int i=k-1; i>=0; i--) {
+            for (int j=0; j<k; j++) {
+                double res = B[i][j];
+                for (int l=i+1; l<k; l++)
+                    res -= A[i][l]*B[l][j];
+                B[i][j] = res/A[i][i];
+            }
+        }
+    }
+}
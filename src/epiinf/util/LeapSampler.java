@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Draws the numbers of infections and removals occurring during a single
+ * leap.  Poisson leaping draws unbounded reaction counts and may therefore
+ * overshoot the population.  Binomial leaping (Tian and Burrage, J. Chem.
+ * Phys. 121:10356, 2004) draws each count from a binomial distribution
+ * whose number of trials is the largest count which keeps the state
+ * valid.  R-leaping (Auger, Chatelain and Koumoutsakos, J. Chem. Phys.
+ * 125:084103, 2006) fixes the total number of reactions in advance and
+ * draws the time they take, ending the leap early if they take less than
+ * the requested time.  Neither of the latter two can overshoot.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LeapSampler {
+
+    public enum Type {
+        POISSON, BINOMIAL, R_LEAPING
+    }
+
+    private final Type type;
+
+    // Outcome of the most recent leap
+    private int infections, removals;
+    private double duration;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param type leaping algorithm
+     */
+    public LeapSampler(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * @return leaping algorithm
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Draw the reactions making up a leap of (at most) the given length.
+     * The outcome is available from getInfections(), getRemovals() and
+     * getDuration().
+     *
+     * @param dt requested leap length
+     * @param infectionProp infection propensity
+     * @param removalProp removal propensity
+     * @param maxInfections largest allowed number of infections
+     * @param maxRemovals largest allowed number of removals
+     * @param random source of random numbers
+     */
+    public void leap(double dt, double infectionProp, double removalProp,
+                     double maxInfections, double maxRemovals,
+                     RandomStream random) {
+
+        switch (type) {
+            case POISSON:
+                infections = (int)random.nextPoisson(dt*infectionProp);
+                removals = (int)random.nextPoisson(dt*removalProp);
+                duration = dt;
+                break;
+
+            case BINOMIAL:
+                infections = nextBoundedCount(dt*infectionProp, maxInfections, random);
+                removals = nextBoundedCount(dt*removalProp, maxRemovals, random);
+                duration = dt;
+                break;
+
+            case R_LEAPING:
+                rLeap(dt, infectionProp, removalProp, maxInfections, maxRemovals, random);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported leaping algorithm.");
+        }
+    }
+
+    /**
+     * @return number of infections during last leap
+     */
+    public int getInfections() {
+        return infections;
+    }
+
+    /**
+     * @return number of removals during last leap
+     */
+    public int getRemovals() {
+        return removals;
+    }
+
+    /**
+     * @return length of last leap, which for R-leaping may be shorter
+     * than the requested length
+     */
+    public double getDuration() {
+        return duration;
+    }
+
+    /**
+     * Draw a reaction count with the given mean which does not exceed
+     * the given bound.
+     *
+     * @param mean expected number of reactions
+     * @param max largest allowed number of reactions
+     * @param random source of random numbers
+     * @return number of reactions
+     */
+    private int nextBoundedCount(double mean, double max, RandomStream random) {
+        if (!(mean > 0.0))
+            return 0;
+
+        if (max == Double.POSITIVE_INFINITY)
+            return (int)random.nextPoisson(mean);
+
+        int n = getBound(max);
+        return DiscreteVariates.nextBinomial(n, Math.min(1.0, mean/n), random);
+    }
+
+    /**
+     * Draw an R-leap.  The number of reactions L is chosen so that the
+     * expected leap length matches dt without allowing any single
+     * reaction to fire more often than its bound permits.
+     */
+    private void rLeap(double dt, double infectionProp, double removalProp,
+                       double maxInfections, double maxRemovals,
+                       RandomStream random) {
+
+        // Reactions which may not fire at all are excluded
+        if (getBound(maxInfections) < 1)
+            infectionProp = 0.0;
+        if (getBound(maxRemovals) < 1)
+            removalProp = 0.0;
+
+        double totalProp = infectionProp + removalProp;
+        if (!(totalProp > 0.0)) {
+            infections = 0;
+            removals = 0;
+            duration = dt;
+            return;
+        }
+
+        double maxReactions = Double.POSITIVE_INFINITY;
+        if (infectionProp > 0.0)
+            maxReactions = Math.min(maxReactions, getBound(maxInfections));
+        if (removalProp > 0.0)
+            maxReactions = Math.min(maxReactions, getBound(maxRemovals));
+
+        int L = (int)Math.max(1.0, Math.min(Math.round(totalProp*dt), maxReactions));
+
+        // Time at which the L-th reaction fires
+        double tauL = nextGamma(L, totalProp, random);
+
+        int K;
+        if (tauL <= dt) {
+            K = L;
+            duration = tauL;
+        } else {
+            // The first L-1 reactions are uniformly distributed on [0, tauL]
+            K = DiscreteVariates.nextBinomial(L - 1, dt/tauL, random);
+            duration = dt;
+        }
+
+        infections = DiscreteVariates.nextBinomial(K, infectionProp/totalProp, random);
+        removals = K - infections;
+    }
+
+    /**
+     * @return reaction count bound as an integer
+     */
+    private static int getBound(double max) {
+        return (int)Math.floor(Math.min(max, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Gamma sampler for positive integer shapes using the method of
+     * Marsaglia and Tsang (ACM Trans. Math. Softw. 26:363-372, 2000).
+     *
+     * @param shape shape parameter
+     * @param rate rate parameter
+     * @param random source of random numbers
+     * @return gamma distributed random number
+     */
+    private static double nextGamma(int shape, double rate, RandomStream random) {
+        if (shape == 1)
+            return random.nextExponential(rate);
+
+        double d = shape - 1.0/3.0;
+        double c = 1.0/Math.sqrt(9.0*d);
+
+        while (true) {
+            double x = random.nextGaussian();
+            double v = 1.0 + c*x;
+            if (v <= 0.0)
+                continue;
+
+            v = v*v*v;
+            double u = random.nextDouble();
+            double x2 = x*x;
+
+            if (u < 1.0 - 0.0331*x2*x2
+                    || Math.log(u) < 0.5*x2 + d*(1.0 - v + Math.log(v)))
+                return d*v/rate;
+        }
+    }
+}
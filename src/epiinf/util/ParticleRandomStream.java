@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Random stream which draws from the stream belonging to the currently
+ * selected particle.  The particle streams are shared by all instances
+ * over the same ensemble, so that particles may be propagated by any
+ * thread without affecting the numbers drawn.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ParticleRandomStream implements RandomStream {
+
+    private final SplittableRandomStream[] streams;
+    private SplittableRandomStream current;
+
+    /**
+     * Create a new stream.
+     *
+     * @param streams array holding one stream per particle
+     */
+    public ParticleRandomStream(SplittableRandomStream[] streams) {
+        this.streams = streams;
+        this.current = streams[0];
+    }
+
+    /**
+     * Select particle whose stream subsequent variates are drawn from.
+     *
+     * @param particle particle index
+     */
+    public void select(int particle) {
+        current = streams[particle];
+    }
+
+    @Override
+    public double nextDouble() {
+        return current.nextDouble();
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return current.nextInt(n);
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return current.nextExponential(rate);
+    }
+
+    @Override
+    public double nextGaussian() {
+        return current.nextGaussian();
+    }
+
+    @Override
+    public double nextPoisson(double mean) {
+        return current.nextPoisson(mean);
+    }
+}
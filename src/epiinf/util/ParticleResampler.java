@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Selects the ancestors of a new particle ensemble from the weights of the
+ * current one.  All buffers are allocated on construction, so resampling
+ * itself does not allocate.
+ *
+ * Systematic, stratified and residual resampling produce offspring counts
+ * with lower variance than multinomial resampling.  Metropolis resampling
+ * (Murray, Lee and Jacob, J. Comput. Graph. Stat. 25:789-805, 2016) avoids
+ * the need for normalized weights, at the cost of a small bias controlled
+ * by the number of Metropolis steps.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ParticleResampler {
+
+    public enum Type {
+        MULTINOMIAL, SYSTEMATIC, STRATIFIED, RESIDUAL, METROPOLIS
+    }
+
+    private final Type type;
+    private final int nParticles, metropolisSteps;
+
+    private final RandomStream randomizerStream = new RandomizerStream();
+
+    private ReplacementSampler replacementSampler;
+    private double[] residualWeights;
+
+    /**
+     * Create a new resampler.
+     *
+     * @param type resampling scheme
+     * @param nParticles number of particles in ensemble
+     * @param metropolisSteps number of Metropolis steps used per particle
+     *                        by the METROPOLIS scheme
+     */
+    public ParticleResampler(Type type, int nParticles, int metropolisSteps) {
+        this.type = type;
+        this.nParticles = nParticles;
+        this.metropolisSteps = metropolisSteps;
+
+        if (nParticles < 1)
+            throw new IllegalArgumentException("Resampler requires at least one particle.");
+
+        switch (type) {
+            case MULTINOMIAL:
+                replacementSampler = new ReplacementSampler(nParticles);
+                break;
+
+            case RESIDUAL:
+                replacementSampler = new ReplacementSampler(nParticles);
+                residualWeights = new double[nParticles];
+                break;
+
+            case METROPOLIS:
+                if (metropolisSteps < 1)
+                    throw new IllegalArgumentException("Metropolis resampling " +
+                            "requires at least one step.");
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return resampling scheme
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Select ancestors of new ensemble.
+     *
+     * @param weights normalized particle weights
+     * @param ancestors array in which to store ancestor indices
+     */
+    public void resample(double[] weights, int[] ancestors) {
+        resample(weights, ancestors, randomizerStream);
+    }
+
+    /**
+     * Select ancestors of new ensemble using the given source of randomness.
+     *
+     * @param weights normalized particle weights
+     * @param ancestors array in which to store ancestor indices
+     * @param random source of random numbers
+     */
+    public void resample(double[] weights, int[] ancestors, RandomStream random) {
+        switch (type) {
+            case MULTINOMIAL:
+                resampleMultinomial(weights, ancestors, random);
+                break;
+
+            case SYSTEMATIC:
+                resampleSystematic(weights, ancestors, random);
+                break;
+
+            case STRATIFIED:
+                resampleStratified(weights, ancestors, random);
+                break;
+
+            case RESIDUAL:
+                resampleResidual(weights, ancestors, random);
+                break;
+
+            case METROPOLIS:
+                resampleMetropolis(weights, ancestors, random);
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown resampling scheme.");
+        }
+    }
+
+    private void resampleMultinomial(double[] weights, int[] ancestors, RandomStream random) {
+        replacementSampler.setProbabilities(weights);
+        for (int p=0; p<nParticles; p++)
+            ancestors[p] = replacementSampler.next(random);
+    }
+
+    private void resampleSystematic(double[] weights, int[] ancestors, RandomStream random) {
+        double u = random.nextDouble();
+
+        int j = 0;
+        double cumulativeWeight = weights[0];
+        for (int p=0; p<nParticles; p++) {
+            double target = (p + u)/nParticles;
+            while (target > cumulativeWeight && j < nParticles-1)
+                cumulativeWeight += weights[++j];
+
+            ancestors[p] = j;
+        }
+    }
+
+    private void resampleStratified(double[] weights, int[] ancestors, RandomStream random) {
+        int j = 0;
+        double cumulativeWeight = weights[0];
+        for (int p=0; p<nParticles; p++) {
+            double target = (p + random.nextDouble())/nParticles;
+            while (target > cumulativeWeight && j < nParticles-1)
+                cumulativeWeight += weights[++j];
+
+            ancestors[p] = j;
+        }
+    }
+
+    private void resampleResidual(double[] weights, int[] ancestors, RandomStream random) {
+
+        // Deterministic copies
+        int p = 0;
+        for (int j=0; j<nParticles; j++) {
+            double expectedCount = nParticles*weights[j];
+            int count = (int)expectedCount;
+
+            residualWeights[j] = expectedCount - count;
+            for (int i=0; i<count && p<nParticles; i++)
+                ancestors[p++] = j;
+        }
+
+        if (p == nParticles)
+            return;
+
+        // Multinomial draws from residual weights
+        double residualSum = 0.0;
+        for (int j=0; j<nParticles; j++)
+            residualSum += residualWeights[j];
+
+        for (int j=0; j<nParticles; j++)
+            residualWeights[j] /= residualSum;
+
+        replacementSampler.setProbabilities(residualWeights);
+        while (p < nParticles)
+            ancestors[p++] = replacementSampler.next(random);
+    }
+
+    private void resampleMetropolis(double[] weights, int[] ancestors, RandomStream random) {
+        for (int p=0; p<nParticles; p++) {
+            int k = p;
+            for (int b=0; b<metropolisSteps; b++) {
+                int j = random.nextInt(nParticles);
+                if (random.nextDouble()*weights[k] <= weights[j])
+                    k = j;
+            }
+
+            ancestors[p] = k;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Source of the random numbers used by the particle filter.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public interface RandomStream {
+
+    /**
+     * @return uniform random number on [0,1)
+     */
+    double nextDouble();
+
+    /**
+     * @param n number of possible values
+     * @return uniform random integer on 0,...,n-1
+     */
+    int nextInt(int n);
+
+    /**
+     * @param rate rate of exponential distribution
+     * @return exponentially distributed random number
+     */
+    double nextExponential(double rate);
+
+    /**
+     * @return standard normal random number
+     */
+    double nextGaussian();
+
+    /**
+     * @param mean mean of Poisson distribution
+     * @return Poisson distributed random number
+     */
+    double nextPoisson(double mean);
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.Randomizer;
+
+/**
+ * Random stream which draws from BEAST's global Randomizer.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RandomizerStream implements RandomStream {
+
+    @Override
+    public double nextDouble() {
+        return Randomizer.nextDouble();
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return Randomizer.nextInt(n);
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return Randomizer.nextExponential(rate);
+    }
+
+    @Override
+    public double nextGaussian() {
+        return Randomizer.nextGaussian();
+    }
+
+    @Override
+    public double nextPoisson(double mean) {
+        return DiscreteVariates.nextPoisson(mean, this);
+    }
+}
@@ -14,19 +14,19 @@ package epiinf.util;
  *
  *                 http://www.keithschwarz.com/darts-dice-coins/
  */
-import beast.base.util.Randomizer;
-
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.List;
 
 public final class ReplacementSampler {
 
     // The probability and alias tables.
+    private static final RandomStream randomizerStream = new RandomizerStream();
+
     private final int[] alias;
     private final double[] probability;
 
+    // Work space used while building the tables.
+    private final double[] probsPrime;
+    private final int[] small, large;
+
     /**
      * Constructs a new AliasMethod to sample from a discrete distribution and
      * hand back outcomes based on the probability distribution.
@@ -39,30 +39,59 @@ public final class ReplacementSampler {
      * @param probabilities The list of probabilities.
      */
     public ReplacementSampler(double[] probabilities) {
+        this(checkLength(probabilities));
+        setProbabilities(probabilities);
+    }
+
+    /**
+     * Constructs a new AliasMethod with tables for a distribution over n
+     * outcomes.  The probabilities must be supplied using
+     * setProbabilities() before sampling.  The tables are reused by
+     * subsequent calls to setProbabilities(), so no further allocation
+     * takes place.
+     *
+     * @param n The number of outcomes.
+     */
+    public ReplacementSampler(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Probability vector must be nonempty.");
+
+        // Allocate space for the probability and alias tables.
+        probability = new double[n];
+        alias = new int[n];
 
+        probsPrime = new double[n];
+        small = new int[n];
+        large = new int[n];
+    }
+
+    private static int checkLength(double[] probabilities) {
         // Begin by doing basic structural checks on the inputs.
         if (probabilities == null)
             throw new NullPointerException();
 
-        if (probabilities.length == 0)
-            throw new IllegalArgumentException("Probability vector must be nonempty.");
-
-        // Allocate space for the probability and alias tables.
-        probability = new double[probabilities.length];
-        alias = new int[probabilities.length];
+        return probabilities.length;
+    }
 
+    /**
+     * Rebuilds the probability and alias tables for a new distribution
+     * over the same number of outcomes.
+     *
+     * @param probabilities The list of probabilities.
+     */
+    public void setProbabilities(double[] probabilities) {
+        if (probabilities.length != probability.length)
+            throw new IllegalArgumentException("Probability vector has wrong length.");
 
         // Compute the average probability and cache it for later use.
         final double average = 1.0 / probabilities.length;
 
         // Make a copy of the probabilities list, since we will be making
         // changes to it.
-        double [] probsPrime = new double[probabilities.length];
         System.arraycopy(probabilities, 0, probsPrime, 0, probabilities.length);
 
-        // Create two stacks to act as worklists as we populate the tables.
-        Deque<Integer> small = new ArrayDeque<>();
-        Deque<Integer> large = new ArrayDeque<>();
+        // Use two stacks to act as worklists as we populate the tables.
+        int nSmall = 0, nLarge = 0;
 
         // Populate the stacks with the input probabilities.
         for (int i = 0; i < probsPrime.length; ++i) {
@@ -70,9 +99,9 @@ public final class ReplacementSampler {
              * it to the small list; otherwise we add it to the large list.
              */
             if (probsPrime[i] >= average)
-                large.add(i);
+                large[nLarge++] = i;
             else
-                small.add(i);
+                small[nSmall++] = i;
         }
 
         /* As a note: in the mathematical specification of the algorithm, we
@@ -81,10 +110,10 @@ public final class ReplacementSampler {
          * Consequently, this inner loop (which tries to pair small and large
          * elements) will have to check that both lists aren't empty.
          */
-        while (!small.isEmpty() && !large.isEmpty()) {
+        while (nSmall > 0 && nLarge > 0) {
             // Get the index of the small and the large probabilities.
-            int less = small.removeLast();
-            int more = large.removeLast();
+            int less = small[--nSmall];
+            int more = large[--nLarge];
 
             // These probabilities have not yet been scaled up to be such that
             // 1/n is given weight 1.0.  We do this here instead.
@@ -98,9 +127,9 @@ public final class ReplacementSampler {
              * small list; otherwise add it to the large list.
              */
             if (probsPrime[more] >= 1.0 / probsPrime.length)
-                large.add(more);
+                large[nLarge++] = more;
             else
-                small.add(more);
+                small[nSmall++] = more;
         }
 
         /* At this point, everything is in one list, which means that the
@@ -108,10 +137,10 @@ public final class ReplacementSampler {
          * appropriately.  Due to numerical issues, we can't be sure which
          * stack will hold the entries, so we empty both.
          */
-        while (!small.isEmpty())
-            probability[small.removeLast()] = 1.0;
-        while (!large.isEmpty())
-            probability[large.removeLast()] = 1.0;
+        while (nSmall > 0)
+            probability[small[--nSmall]] = 1.0;
+        while (nLarge > 0)
+            probability[large[--nLarge]] = 1.0;
     }
 
     /**
@@ -120,11 +149,22 @@ public final class ReplacementSampler {
      * @return A random value sampled from the underlying distribution.
      */
     public int next() {
+        return next(randomizerStream);
+    }
+
+    /**
+     * Samples a value from the underlying distribution using the given
+     * source of randomness.
+     *
+     * @param random source of random numbers
+     * @return A random value sampled from the underlying distribution.
+     */
+    public int next(RandomStream random) {
         // Generate a fair die roll to determine which column to inspect.
-        int column = Randomizer.nextInt(probability.length);
+        int column = random.nextInt(probability.length);
 
         // Generate a biased coin toss to determine which option to pick.
-        boolean coinToss = Randomizer.nextDouble() < probability[column];
+        boolean coinToss = random.nextDouble() < probability[column];
 
         // Based on the outcome, return either the column or its alias.
         return coinToss? column : alias[column];
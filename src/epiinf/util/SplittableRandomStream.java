@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Splittable random stream based on the SplitMix64 generator of Steele,
+ * Lea and Flood (OOPSLA 2014), as used by java.util.SplittableRandom.
+ * Splitting a stream produces a new stream which is statistically
+ * independent of its parent, so that each particle or simulation can be
+ * given its own stream derived from a single seed.  The sequence drawn
+ * from each stream then depends only on that seed and the order in which
+ * streams were split, not on which thread draws from it.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SplittableRandomStream implements RandomStream {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed, gamma;
+
+    // Second normal variate produced by the polar method
+    private double nextGaussian;
+    private boolean haveNextGaussian;
+
+    /**
+     * Create a new stream.
+     *
+     * @param seed initial seed
+     */
+    public SplittableRandomStream(long seed) {
+        setSeed(seed);
+    }
+
+    private SplittableRandomStream(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Restart stream from the given seed.
+     *
+     * @param seed new seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.gamma = GOLDEN_GAMMA;
+        haveNextGaussian = false;
+    }
+
+    /**
+     * @return new stream, independent of this one
+     */
+    public SplittableRandomStream split() {
+        return new SplittableRandomStream(nextLong(), mixGamma(nextSeed()));
+    }
+
+    /**
+     * Restart this stream as a new stream split from the given parent.
+     * Equivalent to split(), but avoids allocating a new object.
+     *
+     * @param parent stream to split from
+     */
+    public void splitFrom(SplittableRandomStream parent) {
+        seed = parent.nextLong();
+        gamma = mixGamma(parent.nextSeed());
+        haveNextGaussian = false;
+    }
+
+    /**
+     * @return uniform random 64 bit integer
+     */
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public int nextInt(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Bound must be positive.");
+
+        int r = (int)(nextLong() >>> 33);
+        int m = n - 1;
+        if ((n & m) == 0)
+            return (int)((n * (long)r) >> 31);
+
+        for (int u = r; u - (r = u % n) + m < 0; u = (int)(nextLong() >>> 33));
+        return r;
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return -Math.log(1.0 - nextDouble())/rate;
+    }
+
+    @Override
+    public double nextGaussian() {
+        if (haveNextGaussian) {
+            haveNextGaussian = false;
+            return nextGaussian;
+        }
+
+        double v1, v2, s;
+        do {
+            v1 = 2.0*nextDouble() - 1.0;
+            v2 = 2.0*nextDouble() - 1.0;
+            s = v1*v1 + v2*v2;
+        } while (s >= 1.0 || s == 0.0);
+
+        double multiplier = Math.sqrt(-2.0*Math.log(s)/s);
+        nextGaussian = v2*multiplier;
+        haveNextGaussian = true;
+
+        return v1*multiplier;
+    }
+
+    @Override
+    public double nextPoisson(double mean) {
+        return DiscreteVariates.nextPoisson(mean, this);
+    }
+
+    private long nextSeed() {
+        return seed += gamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+
+        // Avoid gammas with too few bit transitions
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
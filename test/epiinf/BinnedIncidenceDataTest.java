@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.inference.parameter.RealParameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BinnedIncidenceDataTest {
+
+    /**
+     * Check that count probabilities sum to one and have the given mean
+     * and variance.
+     */
+    private static void checkMoments(BinnedIncidenceData binnedIncidence,
+                                     double expectedSamples,
+                                     double mean, double variance) {
+        double sum = 0.0, sumX = 0.0, sumX2 = 0.0;
+        for (int count=0; count<2000; count++) {
+            double p = Math.exp(binnedIncidence.getLogCountProbability(count, expectedSamples));
+            sum += p;
+            sumX += count*p;
+            sumX2 += count*count*p;
+        }
+
+        assertEquals(1.0, sum, 1e-10);
+        assertEquals(mean, sumX, 1e-8);
+        assertEquals(variance, sumX2 - sumX*sumX, 1e-6);
+    }
+
+    @org.junit.Test
+    public void testPoissonCounts() throws Exception {
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "1.0 3 0.0 5",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"),
+                "reportingProb", new RealParameter("0.4"));
+
+        checkMoments(binnedIncidence, 20.0, 8.0, 8.0);
+
+        assertEquals(3*Math.log(8.0) - 8.0 - Math.log(6.0),
+                binnedIncidence.getLogCountProbability(3, 20.0), 1e-12);
+
+        // No samples can be expected only if none are reported
+        assertEquals(0.0, binnedIncidence.getLogCountProbability(0, 0.0), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY,
+                binnedIncidence.getLogCountProbability(1, 0.0), 0.0);
+    }
+
+    @org.junit.Test
+    public void testNegativeBinomialCounts() throws Exception {
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "1.0 3 0.0 5",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"),
+                "reportingProb", new RealParameter("0.4"),
+                "noiseModel", BinnedIncidenceData.NoiseModel.NEGATIVE_BINOMIAL,
+                "dispersion", new RealParameter("2.5"));
+
+        checkMoments(binnedIncidence, 20.0, 8.0, 8.0 + 8.0*8.0/2.5);
+
+        // Probability of zero count is (k/(k+mu))^k
+        assertEquals(2.5*Math.log(2.5/10.5),
+                binnedIncidence.getLogCountProbability(0, 20.0), 1e-12);
+    }
+
+    @org.junit.Test
+    public void testBins() throws Exception {
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "2020.5 3 2020.0 7 2021.0 2",
+                "finalSampleOffset", new RealParameter("0.25"),
+                "binWidth", 0.5);
+
+        // Bins are ordered by time and end at ages relative to the
+        // final bin end.
+        assertEquals(3, binnedIncidence.getBinCount());
+        assertEquals(1.25, binnedIncidence.getBinEndAge(0), 1e-12);
+        assertEquals(1.75, binnedIncidence.getBinStartAge(0), 1e-12);
+        assertEquals(7, binnedIncidence.getReportedCount(0));
+        assertEquals(0.25, binnedIncidence.getBinEndAge(2), 1e-12);
+        assertEquals(2, binnedIncidence.getReportedCount(2));
+
+        assertFalse(binnedIncidence.startsAtPreviousBinEnd(0));
+        assertTrue(binnedIncidence.startsAtPreviousBinEnd(1));
+        assertTrue(binnedIncidence.startsAtPreviousBinEnd(2));
+
+        // Without a bin width, the first bin begins with the epidemic.
+        BinnedIncidenceData contiguous = new BinnedIncidenceData();
+        contiguous.initByName(
+                "value", "2.0 3 1.0 7",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"));
+
+        assertEquals(Double.POSITIVE_INFINITY, contiguous.getBinStartAge(0), 0.0);
+        assertEquals(2.0, contiguous.getBinStartAge(1), 0.0);
+        assertTrue(contiguous.startsAtPreviousBinEnd(0));
+
+        // Overlapping bins are rejected.
+        BinnedIncidenceData overlapping = new BinnedIncidenceData();
+        try {
+            overlapping.initByName(
+                    "value", "2.0 3 1.5 7",
+                    "valuesAreAges", true,
+                    "finalSampleOffset", new RealParameter("0.0"),
+                    "binWidth", 1.0);
+            fail("Expected overlapping bins to be rejected.");
+        } catch (RuntimeException expected) {
+            // BEAST may wrap the IllegalArgumentException
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SIRModel;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ObservedEventsListTest {
+
+    @org.junit.Test
+    public void testIncrementalUpdate() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        RealParameter origin = new RealParameter("4.89922758686");
+        RealParameter incidenceAges = new RealParameter("0.5 1.5 2.5");
+        RealParameter offset = new RealParameter("0.0");
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", origin,
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "rhoSamplingProb", new RealParameter("0.3"),
+                "rhoSamplingTime", new RealParameter("2.0"));
+
+        ObservedEventsList incremental = new ObservedEventsList(tree,
+                incidenceAges, null, model, offset);
+        incremental.updateEventList();
+
+        for (int iter=0; iter<1000; iter++) {
+
+            // Move a few node heights, sometimes onto the height of another
+            // leaf so that events must be collated and separated again.
+            int nMoves = 1 + Randomizer.nextInt(3);
+            for (int m=0; m<nMoves; m++) {
+                Node node = tree.getNode(Randomizer.nextInt(tree.getNodeCount()));
+                if (node.isLeaf() && Randomizer.nextDouble() < 0.2) {
+                    Node other = tree.getNode(Randomizer.nextInt(tree.getLeafNodeCount()));
+                    node.setHeight(other.getHeight());
+                } else {
+                    node.setHeight(Math.max(0.0, node.getHeight()
+                            + 0.1*Randomizer.nextGaussian()));
+                }
+            }
+
+            if (Randomizer.nextDouble() < 0.1)
+                incidenceAges.setValue(Randomizer.nextInt(3), 3.0*Randomizer.nextDouble());
+
+            if (Randomizer.nextDouble() < 0.1)
+                origin.setValue(4.5 + Randomizer.nextDouble());
+
+            incremental.makeDirty();
+            ObservedEventsList expected = new ObservedEventsList(tree,
+                    incidenceAges, null, model, offset);
+
+            assertEquals(expected.getEventCount(), incremental.getEventCount());
+            for (int i=0; i<incremental.getEventCount(); i++) {
+                assertEquals(expected.getEventTime(i), incremental.getEventTime(i), 1e-12);
+                assertEquals(expected.getEventType(i), incremental.getEventType(i));
+                assertEquals(expected.getEventMultiplicity(i), incremental.getEventMultiplicity(i));
+                assertEquals(expected.getEventLineages(i), incremental.getEventLineages(i));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testTopologyOnlyChange() throws Exception {
+
+        TreeParser tree = new TreeParser("((A:1.0,B:1.0):1.0,(C:1.5,D:1.5):0.5):0.0;",
+                false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("3.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"));
+
+        ObservedEventsList observedEventsList = new ObservedEventsList(tree,
+                null, null, model, new RealParameter("0.0"));
+        assertTrue(observedEventsList.updateEventList());
+
+        // Exchange leaves B and C between their parents, leaving all
+        // node heights unchanged.
+        Node B = tree.getNode(1), C = tree.getNode(2);
+        Node parentB = B.getParent(), parentC = C.getParent();
+        parentB.removeChild(B);
+        parentC.removeChild(C);
+        parentB.addChild(C);
+        parentC.addChild(B);
+
+        observedEventsList.makeDirty();
+        assertFalse(observedEventsList.updateEventList());
+
+        parentB.setHeight(1.2);
+        observedEventsList.makeDirty();
+        assertTrue(observedEventsList.updateEventList());
+    }
+
+    @org.junit.Test
+    public void testIncidenceOnly() throws Exception {
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("3.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"));
+
+        // No tree, so no final tree sample offset either.
+        RealParameter incidenceAges = new RealParameter("0.5 1.5 1.5");
+        ObservedEventsList observedEventsList = new ObservedEventsList(null,
+                incidenceAges, null, model, null);
+
+        assertEquals(3, observedEventsList.getEventCount());
+        assertEquals(1.5, observedEventsList.getEventTime(0), 1e-12);
+        assertEquals(2, observedEventsList.getEventMultiplicity(0));
+        assertEquals(ObservedEvent.Type.UNSEQUENCED_SAMPLE, observedEventsList.getEventType(1));
+        assertEquals(2.5, observedEventsList.getEventTime(1), 1e-12);
+        assertEquals(ObservedEvent.Type.OBSERVATION_END, observedEventsList.getEventType(2));
+
+        incidenceAges.setValue(0, 1.0);
+        observedEventsList.makeDirty();
+        assertTrue(observedEventsList.updateEventList());
+        assertEquals(2.0, observedEventsList.getEventTime(1), 1e-12);
+    }
+
+    @org.junit.Test
+    public void testNearlyConcurrentSources() throws Exception {
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("3.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"));
+
+        // Ages differing by less than the tolerance are collated
+        RealParameter incidenceAges = new RealParameter("0.5 1.5 " + (1.5 + 0.5*ObservedEventsList.tolerance));
+        ObservedEventsList observedEventsList = new ObservedEventsList(null,
+                incidenceAges, null, model, null);
+
+        List<ObservedEvent> eventList = observedEventsList.getEventList();
+        assertEquals(3, eventList.size());
+        assertEquals(2, eventList.get(0).multiplicity);
+        assertFalse(eventList.get(1).isFinal);
+        assertTrue(eventList.get(2).isFinal);
+
+        // Moving each collated source apart must locate the shared event
+        incidenceAges.setValue(2, 1.0);
+        observedEventsList.makeDirty();
+        assertTrue(observedEventsList.updateEventList());
+        incidenceAges.setValue(1, 0.8);
+        observedEventsList.makeDirty();
+        assertTrue(observedEventsList.updateEventList());
+
+        ObservedEventsList expected = new ObservedEventsList(null,
+                incidenceAges, null, model, null);
+        assertEquals(expected.getEventCount(), observedEventsList.getEventCount());
+        for (int i=0; i<expected.getEventCount(); i++) {
+            assertEquals(expected.getEventTime(i), observedEventsList.getEventTime(i), 1e-12);
+            assertEquals(expected.getEventMultiplicity(i), observedEventsList.getEventMultiplicity(i));
+        }
+    }
+}
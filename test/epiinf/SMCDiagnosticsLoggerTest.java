@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCDiagnostics;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SIRModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SMCDiagnosticsLoggerTest {
+
+    @org.junit.Test
+    public void testColumns() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser("((t0:0.5,t1:0.7):0.4,t2:1.0):0.3;",
+                false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("2.5"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100);
+        density.calculateLogP();
+
+        SMCDiagnosticsLogger logger = new SMCDiagnosticsLogger();
+        logger.initByName("treeDensity", density);
+        logger.setID("diag");
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        logger.init(new PrintStream(header, true));
+        assertArrayEquals(new String[] {
+                "diag.ssaSteps", "diag.tauLeaps", "diag.langevinLeaps",
+                "diag.deadParticles", "diag.nanWeights", "diag.resamples",
+                "diag.minESS", "diag.meanESS", "diag.uniqueAncestors",
+                "diag.wallTime"},
+                header.toString().split("\t"));
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        logger.log(0, new PrintStream(line, true));
+        String[] values = line.toString().split("\t");
+
+        SMCDiagnostics diagnostics = density.getDiagnostics();
+        assertEquals(10, values.length);
+        assertEquals(diagnostics.getSSASteps(), Long.parseLong(values[0]));
+        assertEquals(diagnostics.getTauLeaps(), Long.parseLong(values[1]));
+        assertEquals(diagnostics.getLangevinLeaps(), Long.parseLong(values[2]));
+        assertEquals(diagnostics.getDeadParticles(), Long.parseLong(values[3]));
+        assertEquals(diagnostics.getNaNWeights(), Long.parseLong(values[4]));
+        assertEquals(diagnostics.getResampleCount(), Integer.parseInt(values[5]));
+        assertEquals(diagnostics.getMinESS(), Double.parseDouble(values[6]), 0.0);
+        assertEquals(diagnostics.getMeanESS(), Double.parseDouble(values[7]), 0.0);
+        assertEquals(diagnostics.getUniqueAncestors(), Integer.parseInt(values[8]));
+        assertEquals(diagnostics.getWallTime(), Double.parseDouble(values[9]), 0.0);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import epiinf.EpidemicState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ParticlePathStorageTest {
+
+    private static EpidemicState newState(double S, double I, double time) {
+        EpidemicState state = new EpidemicState(S, I, 0, 0);
+        state.time = time;
+        return state;
+    }
+
+    /**
+     * Check stored path of each particle against explicitly copied paths.
+     */
+    private static void checkPaths(ParticlePathStorage storage,
+                                   List<List<EpidemicState>> expectedPaths) {
+        for (int p=0; p<expectedPaths.size(); p++) {
+            List<EpidemicState> path = new ArrayList<>();
+            storage.getPath(p, path);
+
+            List<EpidemicState> expected = expectedPaths.get(p);
+            assertEquals(expected.size(), path.size());
+            for (int i=0; i<path.size(); i++) {
+                assertEquals(expected.get(i).S, path.get(i).S, 0.0);
+                assertEquals(expected.get(i).I, path.get(i).I, 0.0);
+                assertEquals(expected.get(i).time, path.get(i).time, 0.0);
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testRepeatedResampling() throws Exception {
+        int nParticles = 20;
+        Random random = new Random(42);
+
+        ParticlePathStorage storage = new ParticlePathStorage(nParticles);
+        EpidemicState initialState = newState(100, 1, 0.0);
+        storage.reset(initialState);
+
+        List<List<EpidemicState>> expectedPaths = new ArrayList<>();
+        for (int p=0; p<nParticles; p++) {
+            expectedPaths.add(new ArrayList<>());
+            expectedPaths.get(p).add(initialState);
+        }
+
+        int[] ancestors = new int[nParticles];
+        for (int step=0; step<50; step++) {
+            for (int p=0; p<nParticles; p++) {
+                int nStates = random.nextInt(3);
+                for (int i=0; i<nStates; i++) {
+                    EpidemicState state = newState(random.nextInt(100), random.nextInt(100), step + 0.1*i);
+                    storage.add(p, state);
+                    expectedPaths.get(p).add(state);
+                }
+            }
+
+            // Favour low-numbered particles so that lineages die out
+            for (int p=0; p<nParticles; p++)
+                ancestors[p] = random.nextInt(1 + random.nextInt(nParticles));
+            storage.resample(ancestors);
+
+            List<List<EpidemicState>> newPaths = new ArrayList<>();
+            for (int p=0; p<nParticles; p++)
+                newPaths.add(new ArrayList<>(expectedPaths.get(ancestors[p])));
+            expectedPaths = newPaths;
+
+            checkPaths(storage, expectedPaths);
+
+            // Pruning keeps the number of segments in use bounded by the
+            // size of the ancestral tree of the current particles
+            int inUse = storage.getSegmentCount() - storage.getPooledSegmentCount();
+            assertTrue(inUse <= 2*nParticles*(step + 2));
+        }
+
+        // A reset releases every segment to the pool
+        storage.reset(initialState);
+        assertEquals(nParticles + 1,
+                storage.getSegmentCount() - storage.getPooledSegmentCount());
+    }
+
+    @org.junit.Test
+    public void testLineageExtinctionAndReuse() throws Exception {
+        int nParticles = 4;
+
+        ParticlePathStorage storage = new ParticlePathStorage(nParticles);
+        storage.reset(newState(100, 1, 0.0));
+
+        // Root and one tip per particle
+        assertEquals(5, storage.getSegmentCount());
+        assertEquals(0, storage.getPooledSegmentCount());
+
+        for (int p=0; p<nParticles; p++)
+            storage.add(p, newState(100 - p, 1 + p, 1.0));
+
+        // All lineages except that of particle 2 die out.  Their tips are
+        // pruned, while the root is still referenced via particle 2.
+        storage.resample(new int[] {2, 2, 2, 2});
+        assertEquals(9, storage.getSegmentCount());
+        assertEquals(3, storage.getPooledSegmentCount());
+
+        List<EpidemicState> path = new ArrayList<>();
+        for (int p=0; p<nParticles; p++) {
+            path.clear();
+            storage.getPath(p, path);
+            assertEquals(2, path.size());
+            assertEquals(98, path.get(1).S, 0.0);
+            assertEquals(3, path.get(1).I, 0.0);
+        }
+
+        // A permutation moves tips without creating segments
+        storage.resample(new int[] {3, 2, 1, 0});
+        assertEquals(9, storage.getSegmentCount());
+        assertEquals(3, storage.getPooledSegmentCount());
+
+        // New tips reuse pooled segments before allocating more
+        for (int p=0; p<nParticles; p++)
+            storage.add(p, newState(50, p, 2.0));
+        storage.resample(new int[] {1, 1, 1, 1});
+        assertEquals(10, storage.getSegmentCount());
+        assertEquals(3, storage.getPooledSegmentCount());
+
+        // Reused segments hold no stale states
+        for (int p=0; p<nParticles; p++) {
+            path.clear();
+            storage.getPath(p, path);
+            assertEquals(3, path.size());
+            assertEquals(98, path.get(1).S, 0.0);
+            assertEquals(50, path.get(2).S, 0.0);
+            assertEquals(1, path.get(2).I, 0.0);
+        }
+    }
+}
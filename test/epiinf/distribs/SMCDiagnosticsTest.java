@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SIRModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SMCDiagnosticsTest {
+
+    @org.junit.Test
+    public void testCounters() throws Exception {
+        SMCDiagnostics diagnostics = new SMCDiagnostics();
+        diagnostics.reset();
+
+        assertTrue(Double.isNaN(diagnostics.getMinESS()));
+        assertTrue(Double.isNaN(diagnostics.getMeanESS()));
+
+        diagnostics.recordESS(10.0);
+        diagnostics.recordESS(4.0);
+        assertEquals(4.0, diagnostics.getMinESS(), 0.0);
+        assertEquals(7.0, diagnostics.getMeanESS(), 0.0);
+
+        // Founders {0,1,2,3,4} -> {0,0,1,1,4} -> {4,4,0,0,1}
+        diagnostics.resetFounders(5);
+        diagnostics.resample(new int[] {0, 0, 1, 1, 4});
+        diagnostics.resample(new int[] {4, 4, 0, 1, 2});
+        diagnostics.countUniqueAncestors();
+        assertEquals(2, diagnostics.getResampleCount());
+        assertEquals(3, diagnostics.getUniqueAncestors());
+
+        // Counters and founders start afresh
+        diagnostics.reset();
+        diagnostics.resetFounders(5);
+        diagnostics.countUniqueAncestors();
+        assertEquals(0, diagnostics.getResampleCount());
+        assertEquals(5, diagnostics.getUniqueAncestors());
+        assertTrue(Double.isNaN(diagnostics.getMinESS()));
+    }
+
+    private static SMCDiagnostics runFilter(TreeParser tree) throws Exception {
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 200);
+
+        Randomizer.setSeed(42);
+        density.calculateLogP();
+
+        int nEvents = density.observedEventsList.getEventCount();
+        SMCDiagnostics diagnostics = density.getDiagnostics();
+
+        // One ESS per observed event, at least one resampling step
+        // (following the end of observation) and at most one per event
+        assertEquals(nEvents, diagnostics.essCount);
+        assertTrue(diagnostics.getResampleCount() >= 1);
+        assertTrue(diagnostics.getResampleCount() <= nEvents);
+
+        assertTrue(diagnostics.getMinESS() >= 1.0);
+        assertTrue(diagnostics.getMinESS() <= diagnostics.getMeanESS());
+        assertTrue(diagnostics.getMeanESS() <= 200.0);
+
+        assertTrue(diagnostics.getUniqueAncestors() >= 1);
+        assertTrue(diagnostics.getUniqueAncestors() <= 200);
+        assertTrue(diagnostics.getSSASteps() > 0);
+        assertEquals(0, diagnostics.getNaNWeights());
+        assertEquals(0, diagnostics.getTauLeaps());
+
+        return diagnostics;
+    }
+
+    @org.junit.Test
+    public void testFilterRun() throws Exception {
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        SMCDiagnostics diagnostics = runFilter(tree);
+        SMCDiagnostics repeatDiagnostics = runFilter(tree);
+
+        System.out.println("Resamples: " + diagnostics.getResampleCount()
+                + " Min ESS: " + diagnostics.getMinESS()
+                + " Unique ancestors: " + diagnostics.getUniqueAncestors());
+
+        // Counters are determined by the random seed
+        assertEquals(diagnostics.getSSASteps(), repeatDiagnostics.getSSASteps());
+        assertEquals(diagnostics.getResampleCount(), repeatDiagnostics.getResampleCount());
+        assertEquals(diagnostics.getMinESS(), repeatDiagnostics.getMinESS(), 0.0);
+        assertEquals(diagnostics.getMeanESS(), repeatDiagnostics.getMeanESS(), 0.0);
+        assertEquals(diagnostics.getUniqueAncestors(), repeatDiagnostics.getUniqueAncestors());
+    }
+}
@@ -19,12 +19,24 @@ package epiinf.distribs;
 
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeParser;
+import epiinf.BinnedIncidenceData;
+import epiinf.IncidenceLogger;
+import epiinf.TrajectoryLogger;
+import epiinf.models.BirthDeathModel;
 import epiinf.models.EpidemicModel;
 import epiinf.models.SIRModel;
 import epiinf.models.SISModel;
+import epiinf.util.LeapSampler;
+import epiinf.util.ParticleResampler;
 
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -120,6 +132,286 @@ public class SMCTreeDensityTest {
         assertTrue(Math.abs(logP-logPtrue)<0.1);
     }
 
+    @org.junit.Test
+    public void testSISTreeDensityBatchedSampling() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        // Repeated ages give unsequenced sampling events of high
+        // multiplicity, of which some are removals.
+        RealParameter incidenceAges = new RealParameter(
+                "0.5 0.5 0.5 0.5 0.5 0.5 1.5 1.5 1.5 1.5 2.5 2.5 2.5");
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("0.5"),
+                "sequencingProb", new RealParameter("0.6"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "incidenceParameter", incidenceAges,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000);
+
+        ExactTreeDensity exactDensity = new ExactTreeDensity();
+        exactDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "incidenceParameter", incidenceAges,
+                "finalTreeSampleOffset", new RealParameter("0.0"));
+
+        double logP = density.calculateLogP();
+        double logPtrue = exactDensity.calculateLogP();
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testSISTreeDensityBinnedIncidence() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("0.0"),
+                "sequencingProb", new RealParameter("0.5"));
+
+        // Reporting no unsequenced samples over the entire epidemic is
+        // equivalent to conditioning on the tree alone.
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "3.0 0 2.0 0 1.0 0 0.0 0",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "binnedIncidence", binnedIncidence,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000);
+
+        ExactTreeDensity exactDensity = new ExactTreeDensity();
+        exactDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"));
+
+        double logP = density.calculateLogP();
+        double logPtrue = exactDensity.calculateLogP();
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    /**
+     * Log density of incidence ages, integrated over the single age
+     * lying between the given bounds using the midpoint rule.
+     */
+    private static double integrateIncidenceAge(EpidemicModel model,
+                                                double minAge, double maxAge,
+                                                int nPoints) throws Exception {
+        double sum = 0.0;
+        for (int k=0; k<nPoints; k++) {
+            double age = minAge + (k + 0.5)*(maxAge - minAge)/nPoints;
+
+            ExactTreeDensity exactDensity = new ExactTreeDensity();
+            exactDensity.initByName(
+                    "model", model,
+                    "incidenceParameter", new RealParameter(String.valueOf(age)));
+            sum += Math.exp(exactDensity.calculateLogP());
+        }
+
+        return Math.log(sum*(maxAge - minAge)/nPoints);
+    }
+
+    @org.junit.Test
+    public void testSIRBinnedIncidenceCounts() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("0.0"));
+
+        // Poisson counts of samples with unknown times are equivalent to
+        // samples observed at exact times, integrated over those times.
+        double logPtrue = integrateIncidenceAge(model, 2.0, 3.0, 40);
+
+        // Halving the reporting probability while doubling the sampling
+        // rate leaves the distribution of reported counts unchanged, as
+        // samples which are not removals do not affect the epidemic.
+        EpidemicModel doubledModel = new SIRModel();
+        doubledModel.initByName(
+                "origin", new RealParameter("4.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.2"),
+                "removalProb", new RealParameter("0.0"));
+
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "3.0 0 2.0 1 1.0 0 0.0 0",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"),
+                "reportingProb", new RealParameter("0.5"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "model", doubledModel,
+                "binnedIncidence", binnedIncidence,
+                "nParticles", 100000);
+
+        double logP = density.calculateLogP();
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.05);
+
+        // Negative binomial counts approach Poisson counts as the
+        // dispersion parameter grows.
+        BinnedIncidenceData nbBinnedIncidence = new BinnedIncidenceData();
+        nbBinnedIncidence.initByName(
+                "value", "3.0 0 2.0 1 1.0 0 0.0 0",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"),
+                "reportingProb", new RealParameter("0.5"),
+                "noiseModel", BinnedIncidenceData.NoiseModel.NEGATIVE_BINOMIAL,
+                "dispersion", new RealParameter("1e6"));
+
+        SMCTreeDensity nbDensity = new SMCTreeDensity();
+        nbDensity.initByName(
+                "model", doubledModel,
+                "binnedIncidence", nbBinnedIncidence,
+                "nParticles", 100000);
+
+        double nbLogP = nbDensity.calculateLogP();
+
+        System.out.println("Estimate (negative binomial): " + nbLogP);
+
+        assertTrue(Math.abs(nbLogP-logPtrue)<0.05);
+    }
+
+    @org.junit.Test
+    public void testBinnedIncidenceValidation() throws Exception {
+
+        BinnedIncidenceData binnedIncidence = new BinnedIncidenceData();
+        binnedIncidence.initByName(
+                "value", "2.0 1 0.0 0",
+                "valuesAreAges", true,
+                "finalSampleOffset", new RealParameter("0.0"));
+
+        // Unsequenced samples must not be removals
+        EpidemicModel removalModel = new SIRModel();
+        removalModel.initByName(
+                "origin", new RealParameter("4.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        try {
+            new SMCTreeDensity().initByName(
+                    "model", removalModel,
+                    "binnedIncidence", binnedIncidence,
+                    "nParticles", 100);
+            fail("Expected removal sampling to be rejected.");
+        } catch (RuntimeException expected) {
+            // BEAST may wrap the IllegalArgumentException
+        }
+
+        // A tree requires the sequencing probability to divide samples
+        // between the tree and the bins
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("0.0"));
+
+        TreeParser tree = new TreeParser("(A:1.0,B:1.5):0.5;",
+                false, false, true, 0);
+
+        try {
+            new SMCTreeDensity().initByName(
+                    "tree", tree,
+                    "model", model,
+                    "binnedIncidence", binnedIncidence,
+                    "nParticles", 100);
+            fail("Expected missing sequencing probability to be rejected.");
+        } catch (RuntimeException expected) {
+            // BEAST may wrap the IllegalArgumentException
+        }
+    }
+
     @org.junit.Test
     public void testSISTreeDensitySerialLeap() throws Exception {
 
@@ -320,4 +612,1278 @@ public class SMCTreeDensityTest {
         assertTrue(Math.abs(logP-logPtrue)<0.1);
     }
 
+    @org.junit.Test
+    public void testSIRIncidenceOnly() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        RealParameter incidenceAges = new RealParameter("0.5 1.5 1.5 2.5");
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("3.0"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        // Neither density has a tree, so neither needs a final tree
+        // sample offset.
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "model", model,
+                "incidenceParameter", incidenceAges,
+                "nParticles", 10000);
+
+        ExactTreeDensity exactDensity = new ExactTreeDensity();
+        exactDensity.initByName(
+                "model", model,
+                "incidenceParameter", incidenceAges);
+
+        double logP = density.calculateLogP();
+        double logPtrue = exactDensity.calculateLogP();
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensityContempLookAhead() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t2:2.6540971886279987,(t6:0.5985184632462022,t3:0.598518" +
+                        "4632462022):2.0555787253817965):1.3143407954121802" +
+                        ",((((t11:1.7507486451524459,t18:1.7507486451524459" +
+                        "):0.15463202333675685,(t7:0.005557722030708145,t19" +
+                        ":0.005557722030708145):1.8998229464584946):0.04538" +
+                        "965150569485,t17:1.9507703199948976):1.24654512383" +
+                        "0562,((t4:1.3402939924855457,t0:1.3402939924855457" +
+                        "):1.2267309476017108,(((t16:1.6297766592516973,(t8" +
+                        ":1.604699304207743,((t14:0.7386842437142844,t9:0.7" +
+                        "386842437142844):0.26795159631020393,t10:1.0066358" +
+                        "400244884):0.5980634641832547):0.02507735504395425" +
+                        "3):0.390258648420418,(t15:1.8472535458949886,(t20:" +
+                        "0.9138121992788801,t22:0.9138121992788801):0.93344" +
+                        "13466161084):0.17278176177712679):0.04086207977454" +
+                        "6256,((t21:1.3594190980750436,(t13:1.0358015066819" +
+                        "188,(t12:0.7248274453285872,t5:0.7248274453285872)" +
+                        ":0.3109740613533316):0.32361759139312474):0.406905" +
+                        "07105017915,t1:1.7663241691252227):0.2945732183214" +
+                        "389):0.5061275526405948):0.6302905037382032):0.771" +
+                        "1225402147193):0.03156201595982111;",
+                false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.0"),
+                "S0", new RealParameter("199"),
+                "infectionRate", new RealParameter("0.01"),
+                "recoveryRate", new RealParameter("0.2"),
+                "psiSamplingVariable", new RealParameter("0.0"),
+                "removalProb", new RealParameter("1.0"),
+                "rhoSamplingProb", new RealParameter("0.3"),
+                "rhoSamplingTime", new RealParameter("4.0"));
+
+        int nReplicates = 400;
+        double[] logPVar = new double[2];
+        double[] meanMinESS = new double[2];
+
+        for (int la=0; la<2; la++) {
+            Randomizer.setSeed(42);
+
+            SMCTreeDensity density = new SMCTreeDensity();
+            density.initByName(
+                    "tree", tree,
+                    "model", model,
+                    "finalTreeSampleOffset", new RealParameter("0.0"),
+                    "nParticles", 50,
+                    "nThreads", 1,
+                    "useLookAhead", la == 1);
+
+            double sum = 0.0, sum2 = 0.0;
+            for (int r=0; r<nReplicates; r++) {
+                double logP = density.calculateLogP();
+                sum += logP;
+                sum2 += logP*logP;
+                meanMinESS[la] += density.getDiagnostics().getMinESS()/nReplicates;
+            }
+
+            double mean = sum/nReplicates;
+            logPVar[la] = sum2/nReplicates - mean*mean;
+
+            System.out.println("Look-ahead " + (la == 1) + ": logP mean " + mean
+                    + " variance " + logPVar[la]
+                    + " mean min ESS " + meanMinESS[la]);
+        }
+
+        // Look-ahead weighting anticipates the coalescences of the next
+        // interval, so with few particles it should leave both a less
+        // variable likelihood estimate and a less degenerate ensemble.
+        assertTrue(logPVar[1] < logPVar[0]);
+        assertTrue(meanMinESS[1] > meanMinESS[0]);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialAuxiliary() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 2000,
+                "resampler", ParticleResampler.Type.SYSTEMATIC,
+                "auxiliaryRandoms", new RealParameter("0.0"));
+
+        double logP = density.calculateLogP();
+
+        // Estimate is a deterministic function of the auxiliary variables
+        assertTrue(density.calculateLogP() == logP);
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialAdaptive() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100,
+                "targetLogPVariance", 0.001,
+                "adaptationInterval", 1,
+                "varianceReplicates", 5);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Particles: " + density.getParticleCount());
+        assertTrue(density.getParticleCount() > 100);
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    /**
+     * Evaluate the density once with particle count adaptation enabled.
+     *
+     * @return adapted particle count
+     */
+    private static int getAdaptedParticleCount(TreeParser tree, int nParticles,
+                                               int minParticles, int maxParticles) throws Exception {
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", nParticles,
+                "targetLogPVariance", 0.01,
+                "minParticles", minParticles,
+                "maxParticles", maxParticles,
+                "adaptationInterval", 1,
+                "varianceReplicates", 10);
+        density.calculateLogP();
+
+        return density.getParticleCount();
+    }
+
+    @org.junit.Test
+    public void testParticleCountAdaptation() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        // Tree simulated under the model: easy to estimate
+        TreeParser easyTree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        // Two samples from an epidemic of this size are implausible, so
+        // few particles survive: hard to estimate
+        TreeParser hardTree = new TreeParser("(t0:0.5,t1:0.7):0.3;",
+                false, false, true, 0);
+
+        int easyCount = getAdaptedParticleCount(easyTree, 1000, 10, 100000);
+        int hardCount = getAdaptedParticleCount(hardTree, 1000, 10, 100000);
+
+        System.out.println("Easy: " + easyCount + " Hard: " + hardCount);
+
+        assertTrue(easyCount < 1000);
+        assertTrue(hardCount > 1000);
+
+        // Adapted counts are clamped to the allowed range
+        assertEquals(800, getAdaptedParticleCount(easyTree, 1000, 800, 100000));
+        assertEquals(300, getAdaptedParticleCount(hardTree, 200, 10, 300));
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialCheckpointed() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "checkpointInterval", 5);
+
+        density.calculateLogP();
+
+        // Model and tree unchanged: restarts from final checkpoint
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    /**
+     * Run a filter from the origin using the given auxiliary variables,
+     * for comparison with a restarted filter using the same variables.
+     */
+    private static SMCTreeDensity runFromOrigin(TreeParser tree, EpidemicModel model,
+                                                RealParameter auxiliaryRandoms) throws Exception {
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 500,
+                "resampler", ParticleResampler.Type.SYSTEMATIC,
+                "auxiliaryRandoms", new RealParameter(auxiliaryRandoms.getValues()),
+                "auxiliaryRandomsPerParticle", 1000);
+        density.calculateLogP();
+
+        return density;
+    }
+
+    /**
+     * @return youngest internal node of tree
+     */
+    private static Node getYoungestInternalNode(TreeParser tree) {
+        Node youngest = tree.getRoot();
+        for (Node node : tree.getNodesAsArray()) {
+            if (!node.isLeaf() && node.getHeight() < youngest.getHeight())
+                youngest = node;
+        }
+
+        return youngest;
+    }
+
+    @org.junit.Test
+    public void testCheckpointRestartYoungNodeChange() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        RealParameter auxiliaryRandoms = new RealParameter("0.0");
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 500,
+                "resampler", ParticleResampler.Type.SYSTEMATIC,
+                "auxiliaryRandoms", auxiliaryRandoms,
+                "auxiliaryRandomsPerParticle", 1000,
+                "checkpointInterval", 5);
+        density.calculateLogP();
+        auxiliaryRandoms.setEverythingDirty(false);
+        long fullSSASteps = density.getDiagnostics().getSSASteps();
+
+        // Move the youngest coalescence closer to its children
+        density.store();
+        Node node = getYoungestInternalNode(tree);
+        double childHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        node.setHeight(0.5*(node.getHeight() + childHeight));
+        density.checkDirtiness();
+        double logP = density.calculateLogP();
+        long restartSSASteps = density.getDiagnostics().getSSASteps();
+
+        SMCTreeDensity fullDensity = runFromOrigin(tree, model, auxiliaryRandoms);
+
+        System.out.println("Restarted: " + logP + " (" + restartSSASteps + " SSA steps)");
+        System.out.println("From origin: " + fullDensity.getCurrentLogP()
+                + " (" + fullSSASteps + " SSA steps)");
+
+        // Later events involve a larger epidemic, so only part of the work is saved
+        assertTrue(restartSSASteps < 3*fullSSASteps/4);
+        assertTrue(logP == fullDensity.getCurrentLogP());
+    }
+
+    @org.junit.Test
+    public void testCheckpointRestartLateRateShiftChange() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        RealParameter infectionRate = new RealParameter("0.02 0.02");
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", infectionRate,
+                "infectionRateShiftTimes", new RealParameter("4.5"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        RealParameter auxiliaryRandoms = new RealParameter("0.0");
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 500,
+                "resampler", ParticleResampler.Type.SYSTEMATIC,
+                "auxiliaryRandoms", auxiliaryRandoms,
+                "auxiliaryRandomsPerParticle", 1000,
+                "checkpointInterval", 5);
+        density.calculateLogP();
+        auxiliaryRandoms.setEverythingDirty(false);
+        long fullSSASteps = density.getDiagnostics().getSSASteps();
+
+        // Change the infection rate following the shift
+        density.store();
+        infectionRate.setValue(1, 0.03);
+        model.checkDirtiness();
+        density.checkDirtiness();
+        double logP = density.calculateLogP();
+        long restartSSASteps = density.getDiagnostics().getSSASteps();
+
+        SMCTreeDensity fullDensity = runFromOrigin(tree, model, auxiliaryRandoms);
+
+        System.out.println("Restarted: " + logP + " (" + restartSSASteps + " SSA steps)");
+        System.out.println("From origin: " + fullDensity.getCurrentLogP()
+                + " (" + fullSSASteps + " SSA steps)");
+
+        assertTrue(restartSSASteps < fullSSASteps/2);
+        assertTrue(logP == fullDensity.getCurrentLogP());
+    }
+
+    @org.junit.Test
+    public void testCheckpointStoreRestore() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        RealParameter auxiliaryRandoms = new RealParameter("0.0");
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 500,
+                "resampler", ParticleResampler.Type.SYSTEMATIC,
+                "auxiliaryRandoms", auxiliaryRandoms,
+                "auxiliaryRandomsPerParticle", 1000,
+                "checkpointInterval", 5);
+        double logP = density.calculateLogP();
+        density.accept();
+        auxiliaryRandoms.setEverythingDirty(false);
+
+        Node node = getYoungestInternalNode(tree);
+        double height = node.getHeight();
+        double childHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+
+        // Rejected proposal, whose run overwrites the late checkpoints of
+        // the active buffers
+        density.store();
+        node.setHeight(childHeight + 0.1*(height - childHeight));
+        density.checkDirtiness();
+        double rejectedLogP = density.calculateLogP();
+        node.setHeight(height);
+        density.restore();
+
+        assertTrue(density.getCurrentLogP() == logP);
+
+        // Next proposal restarts from the checkpoints of the restored state
+        density.store();
+        node.setHeight(0.5*(height + childHeight));
+        density.checkDirtiness();
+        double proposedLogP = density.calculateLogP();
+
+        SMCTreeDensity fullDensity = runFromOrigin(tree, model, auxiliaryRandoms);
+
+        System.out.println("Initial: " + logP);
+        System.out.println("Rejected: " + rejectedLogP);
+        System.out.println("Restarted: " + proposedLogP);
+        System.out.println("From origin: " + fullDensity.getCurrentLogP());
+
+        assertTrue(proposedLogP == fullDensity.getCurrentLogP());
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialThreshold() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000);
+
+        density.setLogPThreshold(() -> -40.0);
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+        assertTrue(!density.wasAbandoned());
+
+        // Threshold above the true density is never reached
+        density.setLogPThreshold(() -> -20.0);
+        assertTrue(density.calculateLogP() == Double.NEGATIVE_INFINITY);
+        assertTrue(density.wasAbandoned());
+        assertTrue(density.getLogPUpperBound() < -20.0);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialThreaded() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "nThreads", 4);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testThreadPoolShared() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        // Choose a thread count the common pool cannot provide
+        int nThreads = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000,
+                "nThreads", nThreads);
+
+        ForkJoinPool pool = density.threadPool;
+        assertTrue(pool != ForkJoinPool.commonPool());
+        assertTrue(pool.getParallelism() == nThreads);
+
+        // Re-initialisation with the same thread count keeps the pool
+        density.initAndValidate();
+        assertTrue(density.threadPool == pool);
+        assertFalse(pool.isShutdown());
+
+        // A different thread count replaces the pool, shutting down the old one
+        density.nThreadsInput.setValue(1, density);
+        density.initAndValidate();
+        assertTrue(density.threadPool == null);
+        assertTrue(pool.isShutdown());
+
+        if (ForkJoinPool.getCommonPoolParallelism() > 1) {
+            density.nThreadsInput.setValue(ForkJoinPool.getCommonPoolParallelism(), density);
+            density.initAndValidate();
+            assertTrue(density.threadPool == ForkJoinPool.commonPool());
+        }
+
+        assertTrue(Double.isFinite(density.calculateLogP()));
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensityThreadCountIndependent() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 10000,
+                "nThreads", 1);
+
+        SMCTreeDensity densityThreaded = new SMCTreeDensity();
+        densityThreaded.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 10000,
+                "nThreads", 3);
+
+        Randomizer.setSeed(42);
+        double logP = density.calculateLogP();
+
+        Randomizer.setSeed(42);
+        double logPThreaded = densityThreaded.calculateLogP();
+
+        System.out.println("Single thread: " + logP);
+        System.out.println("Three threads: " + logPThreaded);
+
+        assertTrue(logP == logPThreaded);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensityAuxiliaryExhaustedThreadCountIndependent() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        // Too few auxiliary variables per particle, so that particles
+        // continue with their fallback streams.
+        Randomizer.setSeed(42);
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 2000,
+                "auxiliaryRandoms", new RealParameter("0.0"),
+                "auxiliaryRandomsPerParticle", 20,
+                "nThreads", 1);
+        double logP = density.calculateLogP();
+
+        Randomizer.setSeed(42);
+        SMCTreeDensity densityThreaded = new SMCTreeDensity();
+        densityThreaded.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 2000,
+                "auxiliaryRandoms", new RealParameter("0.0"),
+                "auxiliaryRandomsPerParticle", 20,
+                "nThreads", 3);
+        double logPThreaded = densityThreaded.calculateLogP();
+
+        System.out.println("Single thread: " + logP);
+        System.out.println("Three threads: " + logPThreaded);
+
+        assertTrue(logP == logPThreaded);
+        assertTrue(Math.abs(logP + 28.20) < 0.15);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialFixedLeap() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "useTauLeaping", true,
+                "tauLeapingEpsilon", 0.0);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testTrajectoriesNotRecordedByDefault() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000,
+                "nThreads", 1);
+
+        SMCTreeDensity recordingDensity = new SMCTreeDensity();
+        recordingDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000,
+                "nThreads", 1,
+                "recordTrajectories", true);
+
+        Randomizer.setSeed(42);
+        double logP = density.calculateLogP();
+
+        Randomizer.setSeed(42);
+        double recordingLogP = recordingDensity.calculateLogP();
+
+        // Paths are only stored when requested, and storing them
+        // leaves the estimate unchanged
+        assertTrue(density.particlePaths == null);
+        assertTrue(recordingDensity.particlePaths != null);
+        assertEquals(recordingLogP, logP, 0.0);
+    }
+
+    @org.junit.Test
+    public void testLoggersRequireTrajectories() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000);
+        assertTrue(density.particlePaths == null);
+
+        new TrajectoryLogger().initByName("treeDensity", density);
+        assertTrue(density.particlePaths != null);
+
+        SMCTreeDensity otherDensity = new SMCTreeDensity();
+        otherDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000);
+        assertTrue(otherDensity.particlePaths == null);
+
+        new IncidenceLogger().initByName("treeDensity", otherDensity);
+        assertTrue(otherDensity.particlePaths != null);
+    }
+
+    @org.junit.Test
+    public void testLoggerRejectsNonRecordingDensity() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity nonRecordingDensity = new SMCTreeDensity();
+        nonRecordingDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000,
+                "recordTrajectories", false);
+
+        try {
+            new TrajectoryLogger().initByName("treeDensity", nonRecordingDensity);
+            fail("Expected trajectory logger to be rejected.");
+        } catch (RuntimeException expected) {
+            // BEAST may wrap the IllegalArgumentException
+        }
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialLangevin() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("9999"),
+                "infectionRate", new RealParameter("0.0002"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.001"),
+                "removalProb", new RealParameter("1.0"));
+
+        int nReplicates = 20;
+        double[] meanLogP = new double[2];
+        long[] ssaSteps = new long[2], langevinSteps = new long[2];
+
+        // Chemical Langevin integration off (cleThresh = 0) and on (default)
+        for (int i=0; i<2; i++) {
+            Randomizer.setSeed(42);
+
+            SMCTreeDensity density = new SMCTreeDensity();
+            density.initByName(
+                    "tree", tree,
+                    "model", model,
+                    "finalTreeSampleOffset", new RealParameter("0.0"),
+                    "nParticles", 100,
+                    "nThreads", 1,
+                    "cleThresh", i == 0 ? 0.0 : 20.0);
+
+            for (int r=0; r<nReplicates; r++) {
+                meanLogP[i] += density.calculateLogP()/nReplicates;
+                ssaSteps[i] += density.getDiagnostics().getSSASteps();
+                langevinSteps[i] += density.getDiagnostics().getLangevinLeaps();
+            }
+
+            System.out.println("cleThresh " + (i == 0 ? 0.0 : 20.0)
+                    + ": mean logP " + meanLogP[i]
+                    + ", SSA steps " + ssaSteps[i]
+                    + ", Langevin steps " + langevinSteps[i]);
+        }
+
+        // Once the epidemic is large, particles are integrated in a
+        // small number of Langevin steps in place of many SSA steps,
+        // without shifting the likelihood estimate.
+        assertEquals(0, langevinSteps[0]);
+        assertTrue(langevinSteps[1] > 0);
+        assertTrue(5*(ssaSteps[1] + langevinSteps[1]) < ssaSteps[0]);
+        assertEquals(meanLogP[0], meanLogP[1], 1.0);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialBinomialLeap() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "useTauLeaping", true,
+                "tauLeapingEpsilon", 0.0,
+                "leapingAlgorithm", LeapSampler.Type.BINOMIAL);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testSIRTreeDensitySerialRLeap() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "((t10:1.190994645607128,((t5:0.7907784749295401,t0:2.137323" +
+                        "582518187):1.4069968260134451,(((((t1:1.35747685412" +
+                        "18845,t2:1.1326815198385916):1.353533897088965,t9:0" +
+                        ".561536306309963):0.2839477233273353,t15:0.38749087" +
+                        "865769694):0.08355380761559106,(t4:1.96826481583497" +
+                        "83,t8:0.9918701157630321):0.18905207020723713):0.05" +
+                        "1536457989408646,t7:1.3799674904273243):0.095042916" +
+                        "80756127):0.13130794670059887):1.1041993932072272,(" +
+                        "t13:1.796340301846171,(t12:1.7408704970223141,(((t1" +
+                        "4:0.4222181780048908,t3:2.2744621113125665):0.36206" +
+                        "299564941613,t11:1.124843163313686):0.1561269293807" +
+                        "6744,t6:1.8854439746459617):0.4677724578417486):0.2" +
+                        "1513248992333622):0.25084875675842433):0.1193998384" +
+                        "1998814;" , false, false, true, 0);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("4.89922758686"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "useTauLeaping", true,
+                "leapingAlgorithm", LeapSampler.Type.R_LEAPING);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -28.20;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.1);
+    }
+
+    @org.junit.Test
+    public void testBDTreeDensityExact() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        // Includes a sampled ancestor and samples at an interior rho
+        // sampling time
+        TreeParser tree = new TreeParser(
+                "(((t1:1.0,t2:0.0):0.5,t3:1.7):0.3,t4:1.5):0.4;",
+                false, false, true, 0);
+
+        EpidemicModel model = new BirthDeathModel();
+        model.initByName(
+                "origin", new RealParameter("3.0"),
+                "infectionRate", new RealParameter("1.0"),
+                "recoveryRate", new RealParameter("0.3"),
+                "psiSamplingVariable", new RealParameter("0.2"),
+                "removalProb", new RealParameter("0.7"),
+                "rhoSamplingProb", new RealParameter("0.3"),
+                "rhoSamplingTime", new RealParameter("2.5"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000);
+
+        SMCTreeDensity smcDensity = new SMCTreeDensity();
+        smcDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100000,
+                "useExactBirthDeath", false);
+
+        double logP = density.calculateLogP();
+        double logPsmc = smcDensity.calculateLogP();
+        double logPtrue = -9.440;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Exact: " + logP);
+        System.out.println("Estimate: " + logPsmc);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.001);
+        assertTrue(Math.abs(logPsmc-logPtrue)<0.1);
+    }
 }
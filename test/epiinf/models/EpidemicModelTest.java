@@ -1,9 +1,13 @@
 package epiinf.models;
 
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import epiinf.EpidemicEvent;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class EpidemicModelTest {
 
@@ -52,5 +56,32 @@ public class EpidemicModelTest {
         originParameter.setValue(0.0);
         assertEquals(0, birthDeathModel.binarySearch(timeParameter, true, 0));
     }
-}
 
+    @Test
+    public void testSnapshotReuse() {
+
+        RealParameter infectionRate = new RealParameter("2");
+
+        SIRModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("10.0"),
+                "S0", new IntegerParameter("100"),
+                "infectionRate", infectionRate,
+                "recoveryRate", new RealParameter("1"),
+                "removalProb", new RealParameter("1"));
+
+        ModelSnapshot snapshot = model.getSnapshot();
+
+        // Recompiling unchanged parameters keeps the existing snapshot
+        model.restore();
+        assertSame(snapshot, model.getSnapshot());
+
+        // Changed parameters yield a new snapshot, leaving the old one intact
+        infectionRate.setValue(4.0);
+        model.restore();
+        ModelSnapshot newSnapshot = model.getSnapshot();
+        assertNotSame(snapshot, newSnapshot);
+        assertEquals(2.0*newSnapshot.getRate(0, EpidemicEvent.INFECTION)/4.0,
+                snapshot.getRate(0, EpidemicEvent.INFECTION), 1e-12);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.GammaFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DiscreteVariatesTest {
+
+    private static final int N_SAMPLES = 200000;
+
+    /**
+     * Compare a sample with a discrete distribution using its mean,
+     * variance and a chi-square test.  Tail values with small expected
+     * counts are pooled with their neighbours.
+     *
+     * @param counts number of times each value was drawn
+     * @param logPmf log probability of each value
+     * @param mean mean of distribution
+     * @param variance variance of distribution
+     */
+    private static void checkSample(long[] counts, double[] logPmf,
+                                    double mean, double variance) {
+        double sumX = 0.0, sumX2 = 0.0;
+        for (int x=0; x<counts.length; x++) {
+            sumX += x*(double)counts[x];
+            sumX2 += x*(double)x*counts[x];
+        }
+        double sampleMean = sumX/N_SAMPLES;
+        double sampleVariance = sumX2/N_SAMPLES - sampleMean*sampleMean;
+
+        System.out.println("Mean: " + sampleMean + " (" + mean + ")"
+                + " Variance: " + sampleVariance + " (" + variance + ")");
+
+        assertEquals(mean, sampleMean, 5*Math.sqrt(variance/N_SAMPLES));
+        assertEquals(variance, sampleVariance, 0.03*variance);
+
+        double chiSq = 0.0;
+        int nBins = 0;
+        double observed = 0.0, expected = 0.0, cumulative = 0.0;
+        for (int x=0; x<counts.length; x++) {
+            observed += counts[x];
+            expected += N_SAMPLES*Math.exp(logPmf[x]);
+            cumulative += Math.exp(logPmf[x]);
+
+            if (expected >= 10.0 && N_SAMPLES*(1.0 - cumulative) >= 10.0) {
+                chiSq += (observed - expected)*(observed - expected)/expected;
+                nBins += 1;
+                observed = 0.0;
+                expected = 0.0;
+            }
+        }
+        chiSq += (observed - expected)*(observed - expected)/expected;
+        nBins += 1;
+
+        int df = nBins - 1;
+        System.out.println("Chi-square: " + chiSq + " (df=" + df + ")");
+
+        assertTrue(chiSq < df + 5*Math.sqrt(2.0*df));
+    }
+
+    private static void checkPoisson(double mean, long seed) {
+        SplittableRandomStream random = new SplittableRandomStream(seed);
+
+        int maxValue = (int)(mean + 20*Math.sqrt(mean) + 20);
+        long[] counts = new long[maxValue+1];
+        for (int i=0; i<N_SAMPLES; i++) {
+            double k = DiscreteVariates.nextPoisson(mean, random);
+            assertTrue(k >= 0 && k <= maxValue && k == Math.floor(k));
+            counts[(int)k] += 1;
+        }
+
+        double[] logPmf = new double[maxValue+1];
+        for (int k=0; k<=maxValue; k++)
+            logPmf[k] = k*Math.log(mean) - mean - GammaFunction.lnGamma(k+1);
+
+        checkSample(counts, logPmf, mean, mean);
+    }
+
+    private static void checkBinomial(int n, double p, long seed) {
+        SplittableRandomStream random = new SplittableRandomStream(seed);
+
+        long[] counts = new long[n+1];
+        for (int i=0; i<N_SAMPLES; i++)
+            counts[DiscreteVariates.nextBinomial(n, p, random)] += 1;
+
+        double[] logPmf = new double[n+1];
+        for (int k=0; k<=n; k++) {
+            logPmf[k] = GammaFunction.lnGamma(n+1) - GammaFunction.lnGamma(k+1)
+                    - GammaFunction.lnGamma(n-k+1)
+                    + k*Math.log(p) + (n-k)*Math.log(1.0-p);
+        }
+
+        checkSample(counts, logPmf, n*p, n*p*(1.0-p));
+    }
+
+    @org.junit.Test
+    public void testPoisson() throws Exception {
+        // Sequential method
+        checkPoisson(0.5, 1);
+        checkPoisson(9.9, 2);
+
+        // PTRS
+        checkPoisson(10.0, 3);
+        checkPoisson(10.5, 4);
+        checkPoisson(100.0, 5);
+        checkPoisson(5000.0, 6);
+    }
+
+    @org.junit.Test
+    public void testBinomial() throws Exception {
+        // Inversion
+        checkBinomial(20, 0.3, 1);
+        checkBinomial(100, 0.29, 2);
+
+        // BTPE
+        checkBinomial(100, 0.3, 3);
+        checkBinomial(100, 0.31, 4);
+        checkBinomial(10000, 0.45, 5);
+
+        // Success probabilities above one half, by both methods
+        checkBinomial(100, 0.75, 6);
+        checkBinomial(1000, 0.9, 7);
+        checkBinomial(200, 0.5, 8);
+    }
+
+    @org.junit.Test
+    public void testStirlingCorrection() throws Exception {
+        for (int k=5; k<=1000; k+=5) {
+            double correction = GammaFunction.lnGamma(k+1)
+                    - (k + 0.5)*Math.log(k+1) + (k + 1)
+                    - 0.5*Math.log(2*Math.PI);
+
+            assertEquals(correction, DiscreteVariates.stirlingCorrection(k+1),
+                    1e-8);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ParticleResamplerTest {
+
+    private static final int N_PARTICLES = 50;
+    private static final int N_REPLICATES = 20000;
+
+    /**
+     * @return normalized weights of widely varying size, including some
+     * which are zero
+     */
+    private static double[] getWeights() {
+        double[] weights = new double[N_PARTICLES];
+        double sum = 0.0;
+        for (int p=0; p<N_PARTICLES; p++) {
+            weights[p] = p % 7 == 3 ? 0.0 : Math.exp(0.1*p) + 0.3*(p % 4);
+            sum += weights[p];
+        }
+
+        for (int p=0; p<N_PARTICLES; p++)
+            weights[p] /= sum;
+
+        return weights;
+    }
+
+    /**
+     * Resample repeatedly, checking that offspring counts lie within the
+     * given distance of their expected values and that their means agree
+     * with these expected values.
+     *
+     * @param type resampling scheme
+     * @param maxBelow largest allowed shortfall below floor(N*w)
+     * @param maxAbove largest allowed excess above ceil(N*w), or -1 to
+     *                 leave the excess unchecked
+     */
+    private static void checkOffspringCounts(ParticleResampler.Type type,
+                                             int maxBelow, int maxAbove) {
+        double[] weights = getWeights();
+        int[] ancestors = new int[N_PARTICLES];
+        int[] counts = new int[N_PARTICLES];
+        double[] meanCounts = new double[N_PARTICLES];
+
+        ParticleResampler resampler = new ParticleResampler(type, N_PARTICLES, 0);
+        SplittableRandomStream random = new SplittableRandomStream(42);
+
+        for (int r=0; r<N_REPLICATES; r++) {
+            resampler.resample(weights, ancestors, random);
+
+            Arrays.fill(counts, 0);
+            for (int p=0; p<N_PARTICLES; p++)
+                counts[ancestors[p]] += 1;
+
+            for (int j=0; j<N_PARTICLES; j++) {
+                double expected = N_PARTICLES*weights[j];
+                assertTrue(counts[j] >= Math.floor(expected) - maxBelow);
+                if (maxAbove >= 0)
+                    assertTrue(counts[j] <= Math.ceil(expected + 1e-12) + maxAbove);
+                if (weights[j] == 0.0)
+                    assertEquals(0, counts[j]);
+
+                meanCounts[j] += counts[j]/(double)N_REPLICATES;
+            }
+        }
+
+        // Every scheme is unbiased
+        for (int j=0; j<N_PARTICLES; j++) {
+            double expected = N_PARTICLES*weights[j];
+            assertEquals(expected, meanCounts[j], 0.05);
+        }
+    }
+
+    @org.junit.Test
+    public void testSystematic() throws Exception {
+        checkOffspringCounts(ParticleResampler.Type.SYSTEMATIC, 0, 0);
+    }
+
+    @org.junit.Test
+    public void testStratified() throws Exception {
+        // Each offspring count differs from its expected value by less
+        // than two, as only the strata at either end of a particle's
+        // cumulative weight interval may or may not select it.
+        checkOffspringCounts(ParticleResampler.Type.STRATIFIED, 1, 1);
+    }
+
+    @org.junit.Test
+    public void testResidual() throws Exception {
+        // Deterministic copies guarantee at least floor(N*w) offspring.
+        checkOffspringCounts(ParticleResampler.Type.RESIDUAL, 0, -1);
+    }
+
+    @org.junit.Test
+    public void testMetropolisAvoidsZeroWeights() throws Exception {
+        double[] weights = getWeights();
+        int[] ancestors = new int[N_PARTICLES];
+
+        // With this many steps, a chain starting on a particle of zero
+        // weight is all but certain to move to one of positive weight,
+        // after which it never returns.
+        ParticleResampler resampler = new ParticleResampler(
+                ParticleResampler.Type.METROPOLIS, N_PARTICLES, 100);
+        SplittableRandomStream random = new SplittableRandomStream(42);
+
+        for (int r=0; r<1000; r++) {
+            resampler.resample(weights, ancestors, random);
+            for (int p=0; p<N_PARTICLES; p++)
+                assertTrue(weights[ancestors[p]] > 0.0);
+        }
+    }
+}